@@ -67,6 +67,7 @@ public class ActionBar implements GpsManagerListener {
     private static String altimString;
     private static String azimString;
     private static String loggingString;
+    private static String loggedPointsString;
     private static String acquirefixString;
     private static String gpsonString;
     private final GpsManager gpsManager;
@@ -125,6 +126,7 @@ public class ActionBar implements GpsManagerListener {
         azimString = context.getString(R.string.azimuth);
         nodataString = context.getString(R.string.nogps_data);
         loggingString = context.getString(R.string.text_logging);
+        loggedPointsString = context.getString(R.string.text_logged_points);
         acquirefixString = context.getString(R.string.gps_searching_fix);
         gpsonString = context.getString(R.string.text_gpson);
 
@@ -278,6 +280,12 @@ public class ActionBar implements GpsManagerListener {
             sb.append(loggingString);
             sb.append(": ").append(gpsManager.isDatabaseLogging()); //$NON-NLS-1$
             sb.append("\n");
+            if (gpsManager.isDatabaseLogging()) {
+                sb.append(loggedPointsString);
+                sb.append(": ").append(gpsManager.getCurrentRunningGpsLogPointsNum()); //$NON-NLS-1$
+                sb.append("/").append(gpsManager.getCurrentRunningGpsLogReceivedPointsNum()); //$NON-NLS-1$
+                sb.append("\n");
+            }
             addGpsStatusInfo(sb);
         }
         return sb.toString();
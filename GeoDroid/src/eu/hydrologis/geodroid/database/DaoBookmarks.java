@@ -134,19 +134,13 @@ public class DaoBookmarks {
     public static List<Bookmark> getBookmarksInWorldBounds( float n, float s, float w, float e ) throws IOException {
 
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
-        String query = "SELECT _id, lon, lat, text FROM XXX WHERE (lon BETWEEN XXX AND XXX) AND (lat BETWEEN XXX AND XXX)";
-        // String[] args = new String[]{TABLE_NOTES, String.valueOf(w), String.valueOf(e),
-        // String.valueOf(s), String.valueOf(n)};
-
-        query = query.replaceFirst("XXX", TABLE_BOOKMARKS);
-        query = query.replaceFirst("XXX", String.valueOf(w));
-        query = query.replaceFirst("XXX", String.valueOf(e));
-        query = query.replaceFirst("XXX", String.valueOf(s));
-        query = query.replaceFirst("XXX", String.valueOf(n));
+        String query = "SELECT _id, lon, lat, text FROM " + TABLE_BOOKMARKS + " WHERE "
+                + SpatialIndex.getBoundsFilter(sqliteDatabase, TABLE_BOOKMARKS, null);
+        String[] args = new String[]{String.valueOf(w), String.valueOf(e), String.valueOf(s), String.valueOf(n)};
 
         // Logger.i("DAOBOOKMARKS", "Query: " + query);
 
-        Cursor c = sqliteDatabase.rawQuery(query, null);
+        Cursor c = sqliteDatabase.rawQuery(query, args);
         List<Bookmark> bookmarks = new ArrayList<Bookmark>();
         c.moveToFirst();
         while( !c.isAfterLast() ) {
@@ -25,13 +25,16 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.mapsforge.android.maps.Projection;
 import org.mapsforge.android.maps.overlay.OverlayWay;
 import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.util.MercatorProjection;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
@@ -39,6 +42,7 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Point;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.gps.IGpsLogDbHelper;
@@ -50,7 +54,10 @@ import eu.geopaparazzi.library.gpx.parser.TrackPoint;
 import eu.geopaparazzi.library.gpx.parser.WayPoint;
 import eu.geodroid.library.util.ColorUtilities;
 import eu.geodroid.library.util.LibraryConstants;
+import eu.hydrologis.geodroid.GeoDroidApplication;
 import eu.hydrologis.geodroid.maps.LogMapItem;
+import eu.hydrologis.geodroid.maps.overlays.GpsLogsLayer;
+import eu.hydrologis.geodroid.util.Constants;
 import eu.hydrologis.geodroid.util.Line;
 import eu.hydrologis.geodroid.util.LineArray;
 
@@ -73,15 +80,58 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     private static final String COLUMN_LOG_ENDTS = "endts";
     private static final String COLUMN_LOG_TEXT = "text";
 
-    private static final String COLUMN_LOGID = "logid";
+    static final String COLUMN_LOGID = "logid";
 
     public static final String TABLE_GPSLOGS = "gpslogs";
     public static final String TABLE_DATA = "gpslog_data";
     public static final String TABLE_PROPERTIES = "gpslogsproperties";
+    public static final String TABLE_CHUNKS = "gpslog_chunks";
+
+    private static final String COLUMN_CHUNK_SEQ = "seq";
+    private static final String COLUMN_CHUNK_COUNT = "count";
+    private static final String COLUMN_CHUNK_MINLON = "minlon";
+    private static final String COLUMN_CHUNK_MAXLON = "maxlon";
+    private static final String COLUMN_CHUNK_MINLAT = "minlat";
+    private static final String COLUMN_CHUNK_MAXLAT = "maxlat";
+    private static final String COLUMN_CHUNK_DATA = "data";
+
+    /**
+     * The max number of logs for which the open chunk is kept in memory.
+     */
+    private static final int OPEN_CHUNKS_CACHE_SIZE = 8;
 
     private static SimpleDateFormat dateFormatter = LibraryConstants.TIME_FORMATTER_SQLITE;
     private static SimpleDateFormat dateFormatterForFile = LibraryConstants.TIMESTAMPFORMATTER;
 
+    /**
+     * The last chunk of the logs stored in compact form, by log id. The logs stored
+     * as rows map to <code>null</code>.
+     * 
+     * <p>Every point is written to the database as it is added, so an entry can be
+     * dropped at any time and is read back from the database when needed. An entry
+     * holds the points of the running transaction too, so it has to be dropped when
+     * that is rolled back, see {@link #onGpsLogDataPointsRolledBack(long...)}.</p>
+     */
+    private static final LinkedHashMap<Long, OpenChunk> openChunks = new LinkedHashMap<Long, OpenChunk>(16, 0.75f, true){
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry( Map.Entry<Long, OpenChunk> eldest ) {
+            return size() > OPEN_CHUNKS_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The compiled insert of the points stored as rows and the database it belongs to.
+     */
+    private static SQLiteStatement insertDataStatement;
+    private static SQLiteDatabase insertDataDatabase;
+
+    private static class OpenChunk {
+        long rowId = -1;
+        long seq = 0;
+        final GpsLogChunk chunk = new GpsLogChunk();
+    }
+
     public SQLiteDatabase getDatabase( Context context ) throws Exception {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
         return sqliteDatabase;
@@ -133,13 +183,233 @@ public class DaoGpsLog implements IGpsLogDbHelper {
 
     public void addGpsLogDataPoint( SQLiteDatabase sqliteDatabase, long gpslogId, double lon, double lat, double altim,
             Date timestamp ) throws IOException {
+        synchronized (openChunks) {
+            Long key = Long.valueOf(gpslogId);
+            if (!openChunks.containsKey(key)) {
+                openChunks.put(key, isCompactStorage(sqliteDatabase, gpslogId) ? readOpenChunk(sqliteDatabase, gpslogId) : null);
+            }
+            OpenChunk openChunk = openChunks.get(key);
+            if (openChunk != null) {
+                addChunkPoint(sqliteDatabase, gpslogId, openChunk, lon, lat, altim, timestamp);
+                return;
+            }
+        }
+        insertDataRow(sqliteDatabase, gpslogId, lon, lat, altim, dateFormatter.format(timestamp));
+    }
+
+    /**
+     * Add many points to a log.
+     * 
+     * <p>Same as calling {@link #addGpsLogDataPoint(SQLiteDatabase, long, double, double, double, Date)}
+     * for each point, but in compact storage each chunk row is written once, instead of once per point.
+     * The caller handles the transaction.</p>
+     * 
+     * @param sqliteDatabase the database.
+     * @param gpslogId the id of the log.
+     * @param lons the longitudes.
+     * @param lats the latitudes.
+     * @param altims the elevations.
+     * @param times the times of the points, in milliseconds.
+     * @param count the number of points to add from the arrays.
+     * @throws IOException
+     */
+    public void addGpsLogDataPoints( SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+            double[] altims, long[] times, int count ) throws IOException {
+        synchronized (openChunks) {
+            Long key = Long.valueOf(gpslogId);
+            if (!openChunks.containsKey(key)) {
+                openChunks.put(key, isCompactStorage(sqliteDatabase, gpslogId) ? readOpenChunk(sqliteDatabase, gpslogId) : null);
+            }
+            OpenChunk openChunk = openChunks.get(key);
+            if (openChunk != null) {
+                boolean written = true;
+                for( int i = 0; i < count; i++ ) {
+                    if (openChunk.chunk.isFull()) {
+                        if (!written) {
+                            writeOpenChunk(sqliteDatabase, gpslogId, openChunk);
+                        }
+                        startNewChunk(openChunk);
+                    }
+                    openChunk.chunk.add(lons[i], lats[i], altims[i], times[i]);
+                    written = false;
+                }
+                if (!written) {
+                    writeOpenChunk(sqliteDatabase, gpslogId, openChunk);
+                }
+                return;
+            }
+        }
+        Date date = new Date(0);
+        for( int i = 0; i < count; i++ ) {
+            date.setTime(times[i]);
+            insertDataRow(sqliteDatabase, gpslogId, lons[i], lats[i], altims[i], dateFormatter.format(date));
+        }
+    }
+
+    private static void insertDataRow( SQLiteDatabase sqliteDatabase, long gpslogId, double lon, double lat, double altim,
+            String ts ) {
+        synchronized (DaoGpsLog.class) {
+            if (insertDataStatement == null || insertDataDatabase != sqliteDatabase) {
+                if (insertDataStatement != null) {
+                    insertDataStatement.close();
+                }
+                String query = "INSERT INTO " + TABLE_DATA + " (" + COLUMN_LOGID + ", " + COLUMN_DATA_LON + ", "
+                        + COLUMN_DATA_LAT + ", " + COLUMN_DATA_ALTIM + ", " + COLUMN_DATA_TS + ") VALUES (?, ?, ?, ?, ?)";
+                insertDataStatement = sqliteDatabase.compileStatement(query);
+                insertDataDatabase = sqliteDatabase;
+            }
+            insertDataStatement.bindLong(1, gpslogId);
+            insertDataStatement.bindDouble(2, lon);
+            insertDataStatement.bindDouble(3, lat);
+            insertDataStatement.bindDouble(4, altim);
+            insertDataStatement.bindString(5, ts);
+            insertDataStatement.executeInsert();
+        }
+    }
+
+    /**
+     * Checks if the points of a log are stored in chunks.
+     * 
+     * <p>Logs that already have points keep their storage, new logs use the one
+     * chosen in the preferences.</p>
+     */
+    private static boolean isCompactStorage( SQLiteDatabase sqliteDatabase, long logId ) {
+        String[] args = new String[]{String.valueOf(logId)};
+        if (hasRows(sqliteDatabase, "select 1 from " + TABLE_CHUNKS + " where " + COLUMN_LOGID + " = ? limit 1", args)) {
+            return true;
+        }
+        if (hasRows(sqliteDatabase, "select 1 from " + TABLE_DATA + " where " + COLUMN_LOGID + " = ? limit 1", args)) {
+            return false;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(GeoDroidApplication.getInstance());
+        return preferences.getBoolean(Constants.PREFS_KEY_GPSLOG_COMPACT_STORAGE, false);
+    }
+
+    private static boolean hasRows( SQLiteDatabase sqliteDatabase, String query, String[] args ) {
+        Cursor c = sqliteDatabase.rawQuery(query, args);
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Read the last chunk of a log, to continue filling it.
+     */
+    private static OpenChunk readOpenChunk( SQLiteDatabase sqliteDatabase, long logId ) throws IOException {
+        OpenChunk openChunk = new OpenChunk();
+        String query = "select " + COLUMN_ID + ", " + COLUMN_CHUNK_SEQ + ", " + COLUMN_CHUNK_DATA + " from " + TABLE_CHUNKS
+                + " where " + COLUMN_LOGID + " = ? order by " + COLUMN_CHUNK_SEQ + " desc limit 1";
+        Cursor c = sqliteDatabase.rawQuery(query, new String[]{String.valueOf(logId)});
+        try {
+            if (c.moveToFirst()) {
+                openChunk.chunk.decode(c.getBlob(2));
+                if (openChunk.chunk.isFull()) {
+                    openChunk.chunk.clear();
+                    openChunk.seq = c.getLong(1) + 1;
+                } else {
+                    openChunk.rowId = c.getLong(0);
+                    openChunk.seq = c.getLong(1);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return openChunk;
+    }
+
+    /**
+     * Add a point to the last chunk of a log and write the chunk.
+     * 
+     * <p>The chunk row is rewritten at each point, which touches only the logid and seq
+     * index when a new chunk is started.</p>
+     */
+    private static void addChunkPoint( SQLiteDatabase sqliteDatabase, long logId, OpenChunk openChunk, double lon,
+            double lat, double altim, Date timestamp ) {
+        if (!openChunk.chunk.add(lon, lat, altim, timestamp.getTime())) {
+            // full, go on in a new chunk
+            startNewChunk(openChunk);
+            openChunk.chunk.add(lon, lat, altim, timestamp.getTime());
+        }
+        writeOpenChunk(sqliteDatabase, logId, openChunk);
+    }
+
+    private static void startNewChunk( OpenChunk openChunk ) {
+        openChunk.chunk.clear();
+        openChunk.rowId = -1;
+        openChunk.seq++;
+    }
+
+    /**
+     * Write the last chunk of a log, inserting its row if it is new.
+     */
+    private static void writeOpenChunk( SQLiteDatabase sqliteDatabase, long logId, OpenChunk openChunk ) {
+        GpsLogChunk chunk = openChunk.chunk;
         ContentValues values = new ContentValues();
-        values.put(COLUMN_LOGID, (int) gpslogId);
-        values.put(COLUMN_DATA_LON, lon);
-        values.put(COLUMN_DATA_LAT, lat);
-        values.put(COLUMN_DATA_ALTIM, altim);
-        values.put(COLUMN_DATA_TS, dateFormatter.format(timestamp));
-        sqliteDatabase.insertOrThrow(TABLE_DATA, null, values);
+        values.put(COLUMN_CHUNK_COUNT, chunk.size());
+        values.put(COLUMN_LOG_ENDTS, chunk.getTime(chunk.size() - 1));
+        values.put(COLUMN_CHUNK_MINLON, chunk.getMinLon());
+        values.put(COLUMN_CHUNK_MAXLON, chunk.getMaxLon());
+        values.put(COLUMN_CHUNK_MINLAT, chunk.getMinLat());
+        values.put(COLUMN_CHUNK_MAXLAT, chunk.getMaxLat());
+        values.put(COLUMN_CHUNK_DATA, chunk.encode());
+        if (openChunk.rowId != -1) {
+            int updated = sqliteDatabase.update(TABLE_CHUNKS, values, COLUMN_ID + " = ?",
+                    new String[]{String.valueOf(openChunk.rowId)});
+            if (updated == 1) {
+                return;
+            }
+            // the row was lost with a rolled back transaction, write it again
+        }
+        values.put(COLUMN_LOGID, logId);
+        values.put(COLUMN_CHUNK_SEQ, openChunk.seq);
+        values.put(COLUMN_LOG_STARTTS, chunk.getTime(0));
+        openChunk.rowId = sqliteDatabase.insertOrThrow(TABLE_CHUNKS, null, values);
+    }
+
+    public void onGpsLogDataPointsRolledBack( long... gpslogIds ) {
+        // the cached chunks still hold the rolled back points
+        dropOpenChunks(gpslogIds);
+    }
+
+    /**
+     * Forget the last chunks of some logs, to read them again from the database.
+     */
+    private static void dropOpenChunks( long... logIds ) {
+        synchronized (openChunks) {
+            for( long logId : logIds ) {
+                openChunks.remove(Long.valueOf(logId));
+            }
+        }
+    }
+
+    /**
+     * Get the number of points of a log.
+     * 
+     * @param sqliteDatabase the database.
+     * @param logId the id of the log.
+     * @return the number of points.
+     */
+    private static int getPointsCount( SQLiteDatabase sqliteDatabase, long logId ) {
+        String[] args = new String[]{String.valueOf(logId)};
+        int count = 0;
+        Cursor c = sqliteDatabase.rawQuery("select count(*) from " + TABLE_DATA + " where " + COLUMN_LOGID + " = ?", args);
+        try {
+            c.moveToFirst();
+            count += c.getInt(0);
+        } finally {
+            c.close();
+        }
+        c = sqliteDatabase.rawQuery("select total(" + COLUMN_CHUNK_COUNT + ") from " + TABLE_CHUNKS + " where "
+                + COLUMN_LOGID + " = ?", args);
+        try {
+            c.moveToFirst();
+            count += c.getInt(0);
+        } finally {
+            c.close();
+        }
+        return count;
     }
 
     public void deleteGpslog( Context context, long id ) throws IOException {
@@ -164,12 +434,18 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sqlUpdate.execute();
             sqlUpdate.close();
 
+            query = "delete from " + TABLE_CHUNKS + " where " + COLUMN_LOGID + " = " + id;
+            sqlUpdate = sqliteDatabase.compileStatement(query);
+            sqlUpdate.execute();
+            sqlUpdate.close();
+
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
             GPLog.error("DOAGPSLOG", e.getLocalizedMessage(), e);
             throw new IOException(e.getLocalizedMessage());
         } finally {
             sqliteDatabase.endTransaction();
+            dropOpenChunks(id);
         }
     }
 
@@ -373,36 +649,26 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     private static List<GeoPoint> getGpslogGeoPoints( SQLiteDatabase sqliteDatabase, long logId, int pointsNum )
             throws IOException {
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
-        String strWhere = COLUMN_LOGID + "=" + logId;
-        Cursor c = null;
-        try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder);
-            int count = c.getCount();
-            int jump = 0;
-            if (pointsNum != -1 && count > pointsNum) {
+        int jump = 0;
+        if (pointsNum != -1) {
+            int count = getPointsCount(sqliteDatabase, logId);
+            if (count > pointsNum) {
                 jump = (int) Math.ceil((double) count / pointsNum);
             }
+        }
 
-            c.moveToFirst();
+        GpsLogPointsReader reader = new GpsLogPointsReader(sqliteDatabase, logId);
+        try {
             List<GeoPoint> line = new ArrayList<GeoPoint>();
-            while( !c.isAfterLast() ) {
-                double lon = c.getDouble(0);
-                double lat = c.getDouble(1);
-                line.add(new GeoPoint(lat, lon));
-                c.moveToNext();
-                for( int i = 1; i < jump; i++ ) {
-                    c.moveToNext();
-                    if (c.isAfterLast()) {
-                        break;
-                    }
+            int index = 0;
+            while( reader.next() ) {
+                if (jump == 0 || index++ % jump == 0) {
+                    line.add(new GeoPoint(reader.getLat(), reader.getLon()));
                 }
             }
             return line;
         } finally {
-            if (c != null)
-                c.close();
+            reader.close();
         }
     }
 
@@ -526,12 +792,38 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sqlUpdate.execute();
             sqlUpdate.close();
 
+            // the chunks of the removed log follow the ones of the destination
+            long seqOffset = 0;
+            Cursor c = sqliteDatabase.rawQuery("select max(" + COLUMN_CHUNK_SEQ + ") from " + TABLE_CHUNKS + " where "
+                    + COLUMN_LOGID + " = " + destinationLogId, null);
+            try {
+                if (c.moveToFirst() && !c.isNull(0)) {
+                    seqOffset = c.getLong(0) + 1;
+                }
+            } finally {
+                c.close();
+            }
+            sb = new StringBuilder();
+            sb.append("UPDATE ");
+            sb.append(TABLE_CHUNKS);
+            sb.append(" SET ");
+            sb.append(COLUMN_LOGID).append("=").append(destinationLogId).append(", ");
+            sb.append(COLUMN_CHUNK_SEQ).append("=").append(COLUMN_CHUNK_SEQ).append("+").append(seqOffset).append(" ");
+            sb.append("WHERE ").append(COLUMN_LOGID).append("=").append(logidToRemove);
+            query = sb.toString();
+            if (GPLog.LOG_HEAVY)
+                GPLog.addLogEntry("DAOGPSLOG", query);
+            sqlUpdate = sqliteDatabase.compileStatement(query);
+            sqlUpdate.execute();
+            sqlUpdate.close();
+
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
             GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
             throw new IOException(e.getLocalizedMessage());
         } finally {
             sqliteDatabase.endTransaction();
+            dropOpenChunks(logidToRemove, destinationLogId);
         }
     }
 
@@ -601,33 +893,17 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         e = e + DatabaseManager.BUFFER;
         w = w - DatabaseManager.BUFFER;
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        StringBuilder sB = new StringBuilder();
-        sB.append(COLUMN_LOGID);
-        sB.append(" = ");
-        sB.append(logId);
-        sB.append(" AND (");
-        sB.append(COLUMN_DATA_LON);
-        sB.append(" BETWEEN ? AND ?) AND (");
-        sB.append(COLUMN_DATA_LAT);
-        sB.append(" BETWEEN ? AND ?)");
-        String strWhere = sB.toString();
-        String[] strWhereArgs = new String[]{String.valueOf(w), String.valueOf(e), String.valueOf(s), String.valueOf(n)};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
         LineArray line = new LineArray("log_" + logId);
-        Cursor c = null;
+        GpsLogPointsReader reader = new GpsLogPointsReader(sqliteDatabase, logId, n, s, w, e);
         try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, strWhereArgs, null, null, strSortOrder);
-            c.moveToFirst();
-
             int previousScreenX = Integer.MAX_VALUE;
             int previousScreenY = Integer.MAX_VALUE;
 
             @SuppressWarnings("unused")
             int jump = 0;
-            while( !c.isAfterLast() ) {
-                float lon = c.getFloat(0);
-                float lat = c.getFloat(1);
+            while( reader.next() ) {
+                float lon = (float) reader.getLon();
+                float lat = (float) reader.getLat();
 
                 GeoPoint g = new GeoPoint(lat, lon);
                 Point mapPixels = pj.toPixels(g, null);
@@ -635,7 +911,6 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                 int screenX = mapPixels.x;
                 int screenY = mapPixels.y;
                 if (abs(screenX - previousScreenX) < decimationFactor && abs(screenY - previousScreenY) < decimationFactor) {
-                    c.moveToNext();
                     jump++;
                     continue;
                 }
@@ -643,7 +918,6 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                 previousScreenY = screenY;
 
                 line.addPoint(lon, lat);
-                c.moveToNext();
             }
             // if (Debug.D)
             // Logger.d("DAOGPSLOG", "Logs jumped: " + jump + " with thres: " + decimationFactor);
@@ -653,127 +927,208 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             // entry.getValue().getIndex());
             // }
         } finally {
-            if (c != null)
-                c.close();
+            reader.close();
         }
         return line;
     }
 
     /**
      * Retrieve a log in the given world bounds as {@link Path} to be drawn.
-     * @param n
-     * @param s
-     * @param w
-     * @param e
-     * @param path
-     * @param pj
-     * @param logId
-     * @param decimationFactor
      * 
+     * <p>The points are decimated in screen space and the path is in pixels at the
+     * given zoom level, relative to the given origin. Where the log leaves the bounds
+     * the path is interrupted.</p>
+     * 
+     * @param n the north bound.
+     * @param s the south bound.
+     * @param w the west bound.
+     * @param e the east bound.
+     * @param path the path to fill.
+     * @param zoomLevel the zoom level to project the points to.
+     * @param originX the x of the path origin, in pixels at the zoom level.
+     * @param originY the y of the path origin, in pixels at the zoom level.
+     * @param logId the id of the log.
+     * @param decimationFactor the min distance in pixels between two points of the path.
+     * @return <code>true</code> if the path has at least a segment.
      * @throws IOException
      */
-    public static void getPathInWorldBoundsByIdDecimated( float n, float s, float w, float e, Path path, Projection pj,
-            long logId, int decimationFactor ) throws IOException {
+    public static boolean getPathInWorldBoundsByIdDecimated( double n, double s, double w, double e, Path path,
+            byte zoomLevel, long originX, long originY, long logId, int decimationFactor ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
         n = n + DatabaseManager.BUFFER;
         s = s - DatabaseManager.BUFFER;
         e = e + DatabaseManager.BUFFER;
         w = w - DatabaseManager.BUFFER;
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
+        boolean hasSegments = false;
+        GpsLogPointsReader reader = new GpsLogPointsReader(sqliteDatabase, logId, n, s, w, e);
+        try {
+            long previousScreenX = Long.MAX_VALUE;
+            long previousScreenY = Long.MAX_VALUE;
+            while( reader.next() ) {
+                long screenX = Math.round(MercatorProjection.longitudeToPixelX(reader.getLon(), zoomLevel)) - originX;
+                long screenY = Math.round(MercatorProjection.latitudeToPixelY(reader.getLat(), zoomLevel)) - originY;
+                if (!reader.followsPrevious()) {
+                    // first point or the log went out of the bounds in between
+                    path.moveTo(screenX, screenY);
+                } else if (abs(screenX - previousScreenX) >= decimationFactor
+                        || abs(screenY - previousScreenY) >= decimationFactor) {
+                    path.lineTo(screenX, screenY);
+                    hasSegments = true;
+                } else {
+                    // on screen it would be placed on the same pixel
+                    continue;
+                }
+                previousScreenX = screenX;
+                previousScreenY = screenY;
+            }
+        } finally {
+            reader.close();
+        }
+        return hasSegments;
+    }
+
+    /**
+     * Get the visible gps logs with their bounds, without reading their points.
+     * 
+     * @return the logs to draw.
+     * @throws IOException
+     */
+    public static List<GpsLogsLayer.GpsLog> getVisibleGpslogs() throws IOException {
+        SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
+        List<GpsLogsLayer.GpsLog> logsList = new ArrayList<GpsLogsLayer.GpsLog>();
+
         StringBuilder sB = new StringBuilder();
+        sB.append("select l.");
+        sB.append(COLUMN_ID);
+        sB.append(", p.");
+        sB.append(COLUMN_PROPERTIES_COLOR);
+        sB.append(", p.");
+        sB.append(COLUMN_PROPERTIES_WIDTH);
+        sB.append(", max(d.maxlat), min(d.minlat), min(d.minlon), max(d.maxlon)");
+        sB.append(" from ");
+        sB.append(TABLE_GPSLOGS);
+        sB.append(" l, ");
+        sB.append(TABLE_PROPERTIES);
+        sB.append(" p, (");
+        // the bounds of the points stored as rows and of the ones stored in chunks
+        String visibleLogs = COLUMN_LOGID + " in (select " + COLUMN_LOGID + " from " + TABLE_PROPERTIES + " where "
+                + COLUMN_PROPERTIES_VISIBLE + " = 1)";
+        sB.append("select ").append(COLUMN_LOGID).append(", count(*) as count");
+        sB.append(", max(").append(COLUMN_DATA_LAT).append(") as maxlat");
+        sB.append(", min(").append(COLUMN_DATA_LAT).append(") as minlat");
+        sB.append(", min(").append(COLUMN_DATA_LON).append(") as minlon");
+        sB.append(", max(").append(COLUMN_DATA_LON).append(") as maxlon");
+        sB.append(" from ").append(TABLE_DATA);
+        sB.append(" where ").append(visibleLogs);
+        sB.append(" group by ").append(COLUMN_LOGID);
+        sB.append(" union all select ").append(COLUMN_LOGID).append(", sum(").append(COLUMN_CHUNK_COUNT).append(")");
+        sB.append(", max(").append(COLUMN_CHUNK_MAXLAT).append(")");
+        sB.append(", min(").append(COLUMN_CHUNK_MINLAT).append(")");
+        sB.append(", min(").append(COLUMN_CHUNK_MINLON).append(")");
+        sB.append(", max(").append(COLUMN_CHUNK_MAXLON).append(")");
+        sB.append(" from ").append(TABLE_CHUNKS);
+        sB.append(" where ").append(visibleLogs);
+        sB.append(" group by ").append(COLUMN_LOGID);
+        sB.append(") d where l.");
+        sB.append(COLUMN_ID);
+        sB.append(" = p.");
         sB.append(COLUMN_LOGID);
-        sB.append(" = ");
-        sB.append(logId);
-        sB.append(" AND (");
-        sB.append(COLUMN_DATA_LON);
-        sB.append(" BETWEEN ? AND ?) AND (");
-        sB.append(COLUMN_DATA_LAT);
-        sB.append(" BETWEEN ? AND ?)");
-        String strWhere = sB.toString();
-        String[] strWhereArgs = new String[]{String.valueOf(w), String.valueOf(e), String.valueOf(s), String.valueOf(n)};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
+        sB.append(" and p.");
+        sB.append(COLUMN_PROPERTIES_VISIBLE);
+        sB.append(" = 1 and d.");
+        sB.append(COLUMN_LOGID);
+        sB.append(" = l.");
+        sB.append(COLUMN_ID);
+        sB.append(" group by l.");
+        sB.append(COLUMN_ID);
+        sB.append(" having sum(d.count) > 1 order by l.");
+        sB.append(COLUMN_ID);
+        String query = sB.toString();
 
         Cursor c = null;
         try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, strWhereArgs, null, null, strSortOrder);
+            c = sqliteDatabase.rawQuery(query, null);
             c.moveToFirst();
-
-            int previousScreenX = Integer.MAX_VALUE;
-            int previousScreenY = Integer.MAX_VALUE;
-
-            @SuppressWarnings("unused")
-            int jump = 0;
-            boolean first = true;
             while( !c.isAfterLast() ) {
-                float lon = c.getFloat(0);
-                float lat = c.getFloat(1);
-
-                GeoPoint g = new GeoPoint(lat, lon);
-                Point mapPixels = pj.toPixels(g, null);
-                // check if on screen it would be placed on the same pixel
-                int screenX = mapPixels.x;
-                int screenY = mapPixels.y;
-                if (abs(screenX - previousScreenX) < decimationFactor && abs(screenY - previousScreenY) < decimationFactor) {
-                    c.moveToNext();
-                    jump++;
-                    continue;
-                }
-                previousScreenX = screenX;
-                previousScreenY = screenY;
-
-                if (first) {
-                    path.moveTo(screenX, screenY);
-                    first = false;
-                } else {
-                    path.lineTo(screenX, screenY);
-                }
+                long logid = c.getLong(0);
+                String color = c.getString(1);
+                double width = c.getDouble(2);
+
+                Paint wayPaintOutline = new Paint(Paint.ANTI_ALIAS_FLAG);
+                wayPaintOutline.setStyle(Paint.Style.STROKE);
+                wayPaintOutline.setColor(ColorUtilities.toColor(color));
+                wayPaintOutline.setAlpha(255);
+                wayPaintOutline.setStrokeWidth((float) width);
+                wayPaintOutline.setStrokeJoin(Paint.Join.ROUND);
+
+                logsList.add(new GpsLogsLayer.GpsLog(logid, wayPaintOutline, c.getDouble(3), c.getDouble(4), c.getDouble(5), c
+                        .getDouble(6)));
                 c.moveToNext();
             }
-            // if (Debug.D)
-            // Logger.d("DAOGPSLOG", "Log points jumped: " + jump + " with thres: " +
-            // decimationFactor);
         } finally {
             if (c != null)
                 c.close();
         }
+        return logsList;
     }
 
     /**
-     * Get the map of lines from the db, having the gpslog id in the key.
+     * Get the bounds of all the gps logs, without reading their points.
      * 
-     * @return the map of lines.
+     * <p>Points in 0,0 are left out for the points stored as rows, the chunks
+     * give the bounds of all their points.</p>
+     * 
+     * @return the bounds as [n, s, w, e] or <code>null</code> if there are no points.
      * @throws IOException
      */
-    public static LinkedHashMap<Long, Line> getLinesMap( ) throws IOException {
+    public static double[] getGpslogsBounds() throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
-        LinkedHashMap<Long, Line> linesMap = new LinkedHashMap<Long, Line>();
 
-        String asColumnsToReturn[] = {COLUMN_LOGID, COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        String strSortOrder = COLUMN_LOGID + "," + COLUMN_DATA_TS + " ASC";
+        StringBuilder sB = new StringBuilder();
+        sB.append("select count(*)");
+        sB.append(", max(").append(COLUMN_DATA_LAT).append(")");
+        sB.append(", min(").append(COLUMN_DATA_LAT).append(")");
+        sB.append(", min(").append(COLUMN_DATA_LON).append(")");
+        sB.append(", max(").append(COLUMN_DATA_LON).append(")");
+        sB.append(" from ").append(TABLE_DATA);
+        sB.append(" where not (").append(COLUMN_DATA_LAT).append(" < 0.0001 and ");
+        sB.append(COLUMN_DATA_LON).append(" < 0.0001)");
+        sB.append(" union all select count(*)");
+        sB.append(", max(").append(COLUMN_CHUNK_MAXLAT).append(")");
+        sB.append(", min(").append(COLUMN_CHUNK_MINLAT).append(")");
+        sB.append(", min(").append(COLUMN_CHUNK_MINLON).append(")");
+        sB.append(", max(").append(COLUMN_CHUNK_MAXLON).append(")");
+        sB.append(" from ").append(TABLE_CHUNKS);
+        String query = sB.toString();
+
+        double[] bounds = null;
         Cursor c = null;
         try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, null, null, null, null, strSortOrder);
+            c = sqliteDatabase.rawQuery(query, null);
             c.moveToFirst();
             while( !c.isAfterLast() ) {
-                long logid = c.getLong(0);
-                double lon = c.getDouble(1);
-                double lat = c.getDouble(2);
-                double altim = c.getDouble(3);
-                String date = c.getString(4);
-                Line line = linesMap.get(logid);
-                if (line == null) {
-                    line = new Line("log_" + logid);
-                    linesMap.put(logid, line);
+                if (c.getLong(0) > 0) {
+                    double n = c.getDouble(1);
+                    double s = c.getDouble(2);
+                    double w = c.getDouble(3);
+                    double e = c.getDouble(4);
+                    if (bounds == null) {
+                        bounds = new double[]{n, s, w, e};
+                    } else {
+                        bounds[0] = Math.max(bounds[0], n);
+                        bounds[1] = Math.min(bounds[1], s);
+                        bounds[2] = Math.min(bounds[2], w);
+                        bounds[3] = Math.max(bounds[3], e);
+                    }
                 }
-                line.addPoint(lon, lat, altim, date);
                 c.moveToNext();
             }
         } finally {
             if (c != null)
                 c.close();
         }
-        return linesMap;
+        return bounds;
     }
 
     /**
@@ -787,38 +1142,26 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     public static Line getGpslogAsLine( long logId, int pointsNum ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
-        String strWhere = COLUMN_LOGID + "=" + logId;
-        Cursor c = null;
-        try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder);
-            int count = c.getCount();
-            int jump = 0;
-            if (pointsNum != -1 && count > pointsNum) {
+        int jump = 0;
+        if (pointsNum != -1) {
+            int count = getPointsCount(sqliteDatabase, logId);
+            if (count > pointsNum) {
                 jump = (int) Math.ceil((double) count / pointsNum);
             }
+        }
 
-            c.moveToFirst();
+        GpsLogPointsReader reader = new GpsLogPointsReader(sqliteDatabase, logId);
+        try {
             Line line = new Line("log_" + logId);
-            while( !c.isAfterLast() ) {
-                double lon = c.getDouble(0);
-                double lat = c.getDouble(1);
-                double altim = c.getDouble(2);
-                String date = c.getString(3);
-                line.addPoint(lon, lat, altim, date);
-                c.moveToNext();
-                for( int i = 1; i < jump; i++ ) {
-                    c.moveToNext();
-                    if (c.isAfterLast()) {
-                        break;
-                    }
+            int index = 0;
+            while( reader.next() ) {
+                if (jump == 0 || index++ % jump == 0) {
+                    line.addPoint(reader.getLon(), reader.getLat(), reader.getAltim(), reader.getTimestamp());
                 }
             }
             return line;
         } finally {
-            if (c != null)
-                c.close();
+            reader.close();
         }
     }
 
@@ -832,23 +1175,16 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     public static double[] getGpslogFirstPoint( long logId ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
-        String strWhere = COLUMN_LOGID + "=" + logId;
-        Cursor c = null;
+        GpsLogPointsReader reader = new GpsLogPointsReader(sqliteDatabase, logId);
         try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder, "1");
-            c.moveToFirst();
             double[] lonLat = new double[2];
-            while( !c.isAfterLast() ) {
-                lonLat[0] = c.getDouble(0);
-                lonLat[1] = c.getDouble(1);
-                break;
+            if (reader.next()) {
+                lonLat[0] = reader.getLon();
+                lonLat[1] = reader.getLat();
             }
             return lonLat;
         } finally {
-            if (c != null)
-                c.close();
+            reader.close();
         }
     }
 
@@ -916,6 +1252,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                     sqliteDatabase.setTransactionSuccessful();
                 } catch (Exception e) {
                     GPLog.error("DAOMAPS", e.getLocalizedMessage(), e);
+                    helper.onGpsLogDataPointsRolledBack(logId);
                     throw new IOException(e.getLocalizedMessage());
                 } finally {
                     sqliteDatabase.endTransaction();
@@ -944,6 +1281,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                     sqliteDatabase.setTransactionSuccessful();
                 } catch (Exception e) {
                     GPLog.error("DAOMAPS", e.getLocalizedMessage(), e);
+                    helper.onGpsLogDataPointsRolledBack(logId);
                     throw new IOException(e.getLocalizedMessage());
                 } finally {
                     sqliteDatabase.endTransaction();
@@ -1051,6 +1389,8 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_X_BY_Y);
         sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_LOGID_X_Y);
 
+        createChunksTable(sqliteDatabase);
+
         /*
          * gps log table
          */
@@ -1097,4 +1437,50 @@ public class DaoGpsLog implements IGpsLogDbHelper {
 
     }
 
+    /**
+     * Create the table of the gps log points stored in chunks.
+     * 
+     * @param sqliteDatabase the database.
+     */
+    public static void createChunksTable( SQLiteDatabase sqliteDatabase ) {
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE TABLE ");
+        sB.append(TABLE_CHUNKS);
+        sB.append(" (");
+        sB.append(COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, ");
+        sB.append(COLUMN_LOGID).append(" INTEGER NOT NULL ");
+        sB.append("CONSTRAINT ");
+        sB.append(COLUMN_LOGID);
+        sB.append(" REFERENCES ");
+        sB.append(TABLE_GPSLOGS);
+        sB.append("(" + COLUMN_ID + ") ON DELETE CASCADE,");
+        sB.append(COLUMN_CHUNK_SEQ).append(" INTEGER NOT NULL,");
+        sB.append(COLUMN_CHUNK_COUNT).append(" INTEGER NOT NULL,");
+        // times in milliseconds
+        sB.append(COLUMN_LOG_STARTTS).append(" INTEGER NOT NULL,");
+        sB.append(COLUMN_LOG_ENDTS).append(" INTEGER NOT NULL,");
+        sB.append(COLUMN_CHUNK_MINLON).append(" REAL NOT NULL,");
+        sB.append(COLUMN_CHUNK_MAXLON).append(" REAL NOT NULL,");
+        sB.append(COLUMN_CHUNK_MINLAT).append(" REAL NOT NULL,");
+        sB.append(COLUMN_CHUNK_MAXLAT).append(" REAL NOT NULL,");
+        sB.append(COLUMN_CHUNK_DATA).append(" BLOB NOT NULL");
+        sB.append(");");
+        String CREATE_TABLE_GPSLOG_CHUNKS = sB.toString();
+
+        sB = new StringBuilder();
+        sB.append("CREATE INDEX gpslog_chunks_logid_seq_idx ON ");
+        sB.append(TABLE_CHUNKS);
+        sB.append(" ( ");
+        sB.append(COLUMN_LOGID);
+        sB.append(", ");
+        sB.append(COLUMN_CHUNK_SEQ);
+        sB.append(" );");
+        String CREATE_INDEX_GPSLOG_CHUNKS_LOGID_SEQ = sB.toString();
+
+        if (GPLog.LOG_ANDROID)
+            Log.i("DAOGPSLOG", "Create the gpslog_chunks table.");
+        sqliteDatabase.execSQL(CREATE_TABLE_GPSLOG_CHUNKS);
+        sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_CHUNKS_LOGID_SEQ);
+    }
+
 }
@@ -123,19 +123,13 @@ public class DaoImages {
     public static List<Image> getImagesInWorldBounds( float n, float s, float w, float e ) throws IOException {
 
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
-        String query = "SELECT _id, lon, lat, altim, azim, path, text, ts FROM XXX WHERE (lon BETWEEN XXX AND XXX) AND (lat BETWEEN XXX AND XXX)";
-        // String[] args = new String[]{TABLE_NOTES, String.valueOf(w), String.valueOf(e),
-        // String.valueOf(s), String.valueOf(n)};
-
-        query = query.replaceFirst("XXX", TABLE_IMAGES);
-        query = query.replaceFirst("XXX", String.valueOf(w));
-        query = query.replaceFirst("XXX", String.valueOf(e));
-        query = query.replaceFirst("XXX", String.valueOf(s));
-        query = query.replaceFirst("XXX", String.valueOf(n));
+        String query = "SELECT _id, lon, lat, altim, azim, path, text, ts FROM " + TABLE_IMAGES + " WHERE "
+                + SpatialIndex.getBoundsFilter(sqliteDatabase, TABLE_IMAGES, null);
+        String[] args = new String[]{String.valueOf(w), String.valueOf(e), String.valueOf(s), String.valueOf(n)};
 
         // if (Debug.D) Logger.i("DAOIMAGES", "Query: " + query);
 
-        Cursor c = sqliteDatabase.rawQuery(query, null);
+        Cursor c = sqliteDatabase.rawQuery(query, args);
         List<Image> images = new ArrayList<Image>();
         c.moveToFirst();
         while( !c.isAfterLast() ) {
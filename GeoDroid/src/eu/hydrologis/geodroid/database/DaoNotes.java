@@ -91,7 +91,12 @@ public class DaoNotes {
         }
     }
 
-    public static void addNoteNoTransaction( double lon, double lat, double altim, Date timestamp, String text, String category,
+    /**
+     * Adds a note inside a transaction handled by the caller.
+     * 
+     * @return the id of the new note.
+     */
+    public static long addNoteNoTransaction( double lon, double lat, double altim, Date timestamp, String text, String category,
             String form, int type, SQLiteDatabase sqliteDatabase ) {
         if (category == null) {
             category = NoteType.POI.getDef();
@@ -107,6 +112,7 @@ public class DaoNotes {
         values.put(COLUMN_FORM, form);
         values.put(COLUMN_TYPE, type);
         LASTINSERTEDNOTE_ID = sqliteDatabase.insertOrThrow(TABLE_NOTES, null, values);
+        return LASTINSERTEDNOTE_ID;
     }
 
     public static void deleteNote( long id ) throws IOException {
@@ -127,6 +133,36 @@ public class DaoNotes {
         }
     }
 
+    /**
+     * Deletes many notes in a single transaction.
+     * 
+     * @param ids the ids of the notes to delete.
+     * @throws IOException
+     */
+    public static void deleteNotes( List<Long> ids ) throws IOException {
+        SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
+        sqliteDatabase.beginTransaction();
+        try {
+            String query = "delete from " + TABLE_NOTES + " where " + COLUMN_ID + " = ?";
+            SQLiteStatement sqlDelete = sqliteDatabase.compileStatement(query);
+            try {
+                for( Long id : ids ) {
+                    sqlDelete.bindLong(1, id);
+                    sqlDelete.execute();
+                }
+            } finally {
+                sqlDelete.close();
+            }
+
+            sqliteDatabase.setTransactionSuccessful();
+        } catch (Exception e) {
+            GPLog.error("DAONOTES", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+    }
+
     public static void updateForm( long id, String jsonStr ) throws IOException {
         ContentValues updatedValues = new ContentValues();
         updatedValues.put(COLUMN_FORM, jsonStr);
@@ -203,19 +239,13 @@ public class DaoNotes {
     public static List<Note> getNotesInWorldBounds( float n, float s, float w, float e ) throws IOException {
 
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
-        String query = "SELECT _id, lon, lat, altim, text, cat, ts, type, form FROM XXX WHERE (lon BETWEEN XXX AND XXX) AND (lat BETWEEN XXX AND XXX)";
-        // String[] args = new String[]{TABLE_NOTES, String.valueOf(w), String.valueOf(e),
-        // String.valueOf(s), String.valueOf(n)};
-
-        query = query.replaceFirst("XXX", TABLE_NOTES);
-        query = query.replaceFirst("XXX", String.valueOf(w));
-        query = query.replaceFirst("XXX", String.valueOf(e));
-        query = query.replaceFirst("XXX", String.valueOf(s));
-        query = query.replaceFirst("XXX", String.valueOf(n));
+        String query = "SELECT _id, lon, lat, altim, text, cat, ts, type, form FROM " + TABLE_NOTES + " WHERE "
+                + SpatialIndex.getBoundsFilter(sqliteDatabase, TABLE_NOTES, null);
+        String[] args = new String[]{String.valueOf(w), String.valueOf(e), String.valueOf(s), String.valueOf(n)};
 
         // if (Debug.D) Logger.i("DAONOTES", "Query: " + query);
 
-        Cursor c = sqliteDatabase.rawQuery(query, null);
+        Cursor c = sqliteDatabase.rawQuery(query, args);
         List<Note> notes = new ArrayList<Note>();
         c.moveToFirst();
         while( !c.isAfterLast() ) {
@@ -38,7 +38,7 @@ import eu.hydrologis.geodroid.GeoDroidApplication;
 @SuppressWarnings("nls")
 public class DatabaseManager {
 
-    public static final int DATABASE_VERSION = 7;
+    public static final int DATABASE_VERSION = 9;
 
     public static final String DEBUG_TAG = "DATABASEMANAGER";
 
@@ -89,6 +89,7 @@ public class DatabaseManager {
         if (databaseHelper != null) {
             if (Debug.D)
                 Log.i(DEBUG_TAG, "Closing database");
+            GPLog.flush();
             databaseHelper.close();
             if (Debug.D)
                 Log.i(DEBUG_TAG, "Database closed");
@@ -152,6 +153,17 @@ public class DatabaseManager {
             DaoGpsLog.createTables();
             DaoBookmarks.createTables();
             DaoImages.createTables();
+            createSpatialIndexes();
+        }
+
+        /**
+         * Create the R*Tree indexes of the point tables.
+         */
+        private void createSpatialIndexes() {
+            SpatialIndex.create(db, DaoNotes.TABLE_NOTES, null);
+            SpatialIndex.create(db, DaoImages.TABLE_IMAGES, null);
+            SpatialIndex.create(db, DaoBookmarks.TABLE_BOOKMARKS, null);
+            SpatialIndex.create(db, DaoGpsLog.TABLE_DATA, DaoGpsLog.COLUMN_LOGID);
         }
 
         /**
@@ -181,6 +193,12 @@ public class DatabaseManager {
             if (oldDbVersion <= 6) {
                 GPLog.createTables(db);
             }
+            if (oldDbVersion <= 7) {
+                createSpatialIndexes();
+            }
+            if (oldDbVersion <= 8) {
+                DaoGpsLog.createChunksTable(db);
+            }
             db.beginTransaction();
             try {
                 db.setTransactionSuccessful();
@@ -0,0 +1,245 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.database;
+
+import java.io.IOException;
+
+/**
+ * A chunk of consecutive points of a gps log, stored as a single blob.
+ *
+ * <p>Longitude and latitude are kept as integers of 1e-7 degrees (about a centimeter),
+ * the elevation as integer centimeters and the time as milliseconds. In the blob each
+ * value is stored as the difference to the same value of the previous point, zigzag
+ * and varint encoded, so that the points of a track, being close in space and time,
+ * take few bytes each.</p>
+ *
+ * <p>The blob starts with the number of points, followed by lon, lat, elevation and
+ * time of each point.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogChunk {
+    /**
+     * The max number of points in a chunk.
+     */
+    public static final int MAX_POINTS = 256;
+
+    private static final double COORD_SCALE = 1E7;
+    private static final double ALTIM_SCALE = 100.0;
+
+    private final int[] lons = new int[MAX_POINTS];
+    private final int[] lats = new int[MAX_POINTS];
+    private final long[] altims = new long[MAX_POINTS];
+    private final long[] times = new long[MAX_POINTS];
+    private int size = 0;
+
+    private double minLon;
+    private double maxLon;
+    private double minLat;
+    private double maxLat;
+
+    /**
+     * Append a point to the chunk.
+     *
+     * @param lon the longitude.
+     * @param lat the latitude.
+     * @param altim the elevation.
+     * @param time the time in milliseconds.
+     * @return <code>false</code> if the chunk is full and the point was not added.
+     */
+    public boolean add( double lon, double lat, double altim, long time ) {
+        if (size == MAX_POINTS) {
+            return false;
+        }
+        lons[size] = (int) Math.round(lon * COORD_SCALE);
+        lats[size] = (int) Math.round(lat * COORD_SCALE);
+        altims[size] = Math.round(altim * ALTIM_SCALE);
+        times[size] = time;
+        // the bounds of the stored values, which are the ones read back
+        double storedLon = getLon(size);
+        double storedLat = getLat(size);
+        if (size == 0) {
+            minLon = maxLon = storedLon;
+            minLat = maxLat = storedLat;
+        } else {
+            minLon = Math.min(minLon, storedLon);
+            maxLon = Math.max(maxLon, storedLon);
+            minLat = Math.min(minLat, storedLat);
+            maxLat = Math.max(maxLat, storedLat);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Remove all the points.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the number of points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return <code>true</code> if no more points can be added.
+     */
+    public boolean isFull() {
+        return size == MAX_POINTS;
+    }
+
+    /**
+     * @param index the index of the point.
+     * @return the longitude of the point.
+     */
+    public double getLon( int index ) {
+        return lons[index] / COORD_SCALE;
+    }
+
+    /**
+     * @param index the index of the point.
+     * @return the latitude of the point.
+     */
+    public double getLat( int index ) {
+        return lats[index] / COORD_SCALE;
+    }
+
+    /**
+     * @param index the index of the point.
+     * @return the elevation of the point.
+     */
+    public double getAltim( int index ) {
+        return altims[index] / ALTIM_SCALE;
+    }
+
+    /**
+     * @param index the index of the point.
+     * @return the time of the point in milliseconds.
+     */
+    public long getTime( int index ) {
+        return times[index];
+    }
+
+    public double getMinLon() {
+        return minLon;
+    }
+
+    public double getMaxLon() {
+        return maxLon;
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    /**
+     * Encode the points of the chunk.
+     *
+     * @return the blob.
+     */
+    public byte[] encode() {
+        // worst case of 5 bytes per int and 10 per long
+        byte[] buffer = new byte[5 + size * 30];
+        int pos = writeVarint(buffer, 0, size);
+        long prevLon = 0;
+        long prevLat = 0;
+        long prevAltim = 0;
+        long prevTime = 0;
+        for( int i = 0; i < size; i++ ) {
+            pos = writeVarint(buffer, pos, zigzag(lons[i] - prevLon));
+            pos = writeVarint(buffer, pos, zigzag(lats[i] - prevLat));
+            pos = writeVarint(buffer, pos, zigzag(altims[i] - prevAltim));
+            pos = writeVarint(buffer, pos, zigzag(times[i] - prevTime));
+            prevLon = lons[i];
+            prevLat = lats[i];
+            prevAltim = altims[i];
+            prevTime = times[i];
+        }
+        byte[] blob = new byte[pos];
+        System.arraycopy(buffer, 0, blob, 0, pos);
+        return blob;
+    }
+
+    /**
+     * Replace the points of the chunk with the ones of a blob.
+     *
+     * @param blob the blob, as created by {@link #encode()}.
+     * @throws IOException if the blob is not valid.
+     */
+    public void decode( byte[] blob ) throws IOException {
+        clear();
+        try {
+            int[] pos = new int[1];
+            int count = (int) readVarint(blob, pos);
+            if (count < 0 || count > MAX_POINTS) {
+                throw new IOException("Invalid gps log chunk size: " + count); //$NON-NLS-1$
+            }
+            long lon = 0;
+            long lat = 0;
+            long altim = 0;
+            long time = 0;
+            for( int i = 0; i < count; i++ ) {
+                lon += unzigzag(readVarint(blob, pos));
+                lat += unzigzag(readVarint(blob, pos));
+                altim += unzigzag(readVarint(blob, pos));
+                time += unzigzag(readVarint(blob, pos));
+                add(lon / COORD_SCALE, lat / COORD_SCALE, altim / ALTIM_SCALE, time);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated gps log chunk."); //$NON-NLS-1$
+        }
+    }
+
+    private static long zigzag( long value ) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag( long value ) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeVarint( byte[] buffer, int pos, long value ) {
+        while( (value & ~0x7FL) != 0 ) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static long readVarint( byte[] buffer, int[] pos ) {
+        long value = 0;
+        int shift = 0;
+        while( true ) {
+            byte b = buffer[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
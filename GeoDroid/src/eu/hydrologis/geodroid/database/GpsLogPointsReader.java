@@ -0,0 +1,291 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.database;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import eu.geodroid.library.util.LibraryConstants;
+
+/**
+ * Reader of the points of a gps log, ordered by time.
+ *
+ * <p>The points of a log can be stored one per row in the data table or packed in
+ * {@link GpsLogChunk}s in the chunks table (and both, for merged logs). The reader
+ * streams both and merges them by time. Chunks are decoded one at a time, while
+ * reading.</p>
+ *
+ * <p>If bounds are given, only the points inside them are returned and only the
+ * chunks that intersect them are decoded.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsLogPointsReader {
+    private static final int NONE = 0;
+    private static final int ROWS = 1;
+    private static final int CHUNKS = 2;
+
+    private final SimpleDateFormat dateFormatter = (SimpleDateFormat) LibraryConstants.TIME_FORMATTER_SQLITE.clone();
+
+    private final boolean hasBounds;
+    private final double n;
+    private final double s;
+    private final double w;
+    private final double e;
+
+    private Cursor rowsCursor;
+    private boolean hasRow = false;
+    private long rowId;
+
+    private Cursor chunksCursor;
+    private final GpsLogChunk chunk = new GpsLogChunk();
+    private boolean hasChunkPoint = false;
+    private long chunkSeq = -1;
+    private int chunkIndex = -1;
+
+    private int source = NONE;
+    private double lon;
+    private double lat;
+    private double altim;
+    private String timestamp;
+    private long time;
+    private boolean followsPrevious;
+
+    private long previousRowId;
+    private long previousChunkSeq;
+    private int previousChunkIndex;
+    private int previousChunkSize;
+
+    /**
+     * Read all the points of a log.
+     *
+     * @param sqliteDatabase the database.
+     * @param logId the id of the log.
+     * @throws IOException
+     */
+    public GpsLogPointsReader( SQLiteDatabase sqliteDatabase, long logId ) throws IOException {
+        this(sqliteDatabase, logId, false, 0, 0, 0, 0);
+    }
+
+    /**
+     * Read the points of a log inside some bounds.
+     *
+     * @param sqliteDatabase the database.
+     * @param logId the id of the log.
+     * @param n the north bound.
+     * @param s the south bound.
+     * @param w the west bound.
+     * @param e the east bound.
+     * @throws IOException
+     */
+    public GpsLogPointsReader( SQLiteDatabase sqliteDatabase, long logId, double n, double s, double w, double e )
+            throws IOException {
+        this(sqliteDatabase, logId, true, n, s, w, e);
+    }
+
+    private GpsLogPointsReader( SQLiteDatabase sqliteDatabase, long logId, boolean hasBounds, double n, double s, double w,
+            double e ) throws IOException {
+        this.hasBounds = hasBounds;
+        this.n = n;
+        this.s = s;
+        this.w = w;
+        this.e = e;
+
+        String logIdString = String.valueOf(logId);
+        String rowsQuery;
+        String[] rowsArgs;
+        String chunksQuery;
+        String[] chunksArgs;
+        if (hasBounds) {
+            rowsQuery = "select _id, lon, lat, altim, ts from " + DaoGpsLog.TABLE_DATA + " where "
+                    + SpatialIndex.getBoundsFilter(sqliteDatabase, DaoGpsLog.TABLE_DATA, DaoGpsLog.COLUMN_LOGID)
+                    + " order by ts, _id";
+            chunksQuery = "select seq, data from " + DaoGpsLog.TABLE_CHUNKS
+                    + " where logid = ? and maxlon >= ? and minlon <= ? and maxlat >= ? and minlat <= ? order by seq";
+            rowsArgs = new String[]{logIdString, String.valueOf(w), String.valueOf(e), String.valueOf(s), String.valueOf(n)};
+            chunksArgs = rowsArgs;
+        } else {
+            rowsQuery = "select _id, lon, lat, altim, ts from " + DaoGpsLog.TABLE_DATA + " where logid = ? order by ts, _id";
+            chunksQuery = "select seq, data from " + DaoGpsLog.TABLE_CHUNKS + " where logid = ? order by seq";
+            rowsArgs = new String[]{logIdString};
+            chunksArgs = rowsArgs;
+        }
+        try {
+            rowsCursor = sqliteDatabase.rawQuery(rowsQuery, rowsArgs);
+            rowsCursor.moveToFirst();
+            hasRow = !rowsCursor.isAfterLast();
+            if (hasRow) {
+                rowId = rowsCursor.getLong(0);
+            }
+
+            chunksCursor = sqliteDatabase.rawQuery(chunksQuery, chunksArgs);
+            chunksCursor.moveToFirst();
+            advanceChunkPoint();
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Move to the next point.
+     *
+     * @return <code>false</code> if there are no more points.
+     * @throws IOException if a chunk can't be decoded.
+     */
+    public boolean next() throws IOException {
+        int previousSource = source;
+        boolean takeRow;
+        if (hasRow && hasChunkPoint) {
+            // mixed logs, the rows timestamps have the precision of the seconds
+            String rowTs = rowsCursor.getString(4);
+            String chunkTs = dateFormatter.format(new Date(chunk.getTime(chunkIndex)));
+            takeRow = rowTs.compareTo(chunkTs) <= 0;
+        } else if (hasRow) {
+            takeRow = true;
+        } else if (hasChunkPoint) {
+            takeRow = false;
+        } else {
+            source = NONE;
+            return false;
+        }
+
+        if (takeRow) {
+            source = ROWS;
+            lon = rowsCursor.getDouble(1);
+            lat = rowsCursor.getDouble(2);
+            altim = rowsCursor.getDouble(3);
+            timestamp = rowsCursor.getString(4);
+            time = -1;
+            followsPrevious = previousSource == ROWS && rowId == previousRowId + 1;
+            previousRowId = rowId;
+
+            rowsCursor.moveToNext();
+            hasRow = !rowsCursor.isAfterLast();
+            if (hasRow) {
+                rowId = rowsCursor.getLong(0);
+            }
+        } else {
+            source = CHUNKS;
+            lon = chunk.getLon(chunkIndex);
+            lat = chunk.getLat(chunkIndex);
+            altim = chunk.getAltim(chunkIndex);
+            time = chunk.getTime(chunkIndex);
+            timestamp = null;
+            followsPrevious = previousSource == CHUNKS
+                    && ((chunkSeq == previousChunkSeq && chunkIndex == previousChunkIndex + 1) || (chunkSeq == previousChunkSeq + 1
+                            && chunkIndex == 0 && previousChunkIndex == previousChunkSize - 1));
+            previousChunkSeq = chunkSeq;
+            previousChunkIndex = chunkIndex;
+            previousChunkSize = chunk.size();
+
+            advanceChunkPoint();
+        }
+        return true;
+    }
+
+    /**
+     * Move to the next point of the chunks that is inside the bounds, decoding the next chunk if needed.
+     */
+    private void advanceChunkPoint() throws IOException {
+        while( true ) {
+            chunkIndex++;
+            if (chunkIndex >= chunk.size()) {
+                if (chunksCursor.isAfterLast()) {
+                    hasChunkPoint = false;
+                    return;
+                }
+                chunkSeq = chunksCursor.getLong(0);
+                chunk.decode(chunksCursor.getBlob(1));
+                chunksCursor.moveToNext();
+                chunkIndex = -1;
+                continue;
+            }
+            if (!hasBounds) {
+                hasChunkPoint = true;
+                return;
+            }
+            double pointLon = chunk.getLon(chunkIndex);
+            double pointLat = chunk.getLat(chunkIndex);
+            if (pointLon >= w && pointLon <= e && pointLat >= s && pointLat <= n) {
+                hasChunkPoint = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the longitude of the current point.
+     */
+    public double getLon() {
+        return lon;
+    }
+
+    /**
+     * @return the latitude of the current point.
+     */
+    public double getLat() {
+        return lat;
+    }
+
+    /**
+     * @return the elevation of the current point.
+     */
+    public double getAltim() {
+        return altim;
+    }
+
+    /**
+     * @return the timestamp of the current point, in the database format.
+     */
+    public String getTimestamp() {
+        if (timestamp == null) {
+            timestamp = dateFormatter.format(new Date(time));
+        }
+        return timestamp;
+    }
+
+    /**
+     * @return <code>true</code> if the current point directly follows the previous one
+     *          in the log, i.e. no point was left out by the bounds in between.
+     */
+    public boolean followsPrevious() {
+        return followsPrevious;
+    }
+
+    /**
+     * Release the cursors.
+     */
+    public void close() {
+        if (rowsCursor != null) {
+            rowsCursor.close();
+            rowsCursor = null;
+        }
+        if (chunksCursor != null) {
+            chunksCursor.close();
+            chunksCursor = null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.database;
+
+import java.util.HashMap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import eu.geopaparazzi.library.database.GPLog;
+
+/**
+ * R*Tree indexes of the point tables of the project database.
+ *
+ * <p>The index of a table is the virtual table <code>&lt;table&gt;_rtree</code>, kept in sync
+ * with the table through triggers, so that all the inserts, updates and deletes maintain it.
+ * It indexes the <code>lon</code> and <code>lat</code> columns of the table and optionally
+ * a key column, as a further dimension matched by equality.</p>
+ *
+ * <p>If the sqlite of the device has no R*Tree module, no index is created and the bounds
+ * filters fall back to plain range queries.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class SpatialIndex {
+    private static final String COLUMN_LON = "lon";
+    private static final String COLUMN_LAT = "lat";
+    private static final String COLUMN_ID = "_id";
+
+    /**
+     * Existence of the indexes, by database path and table.
+     */
+    private static final HashMap<String, Boolean> existing = new HashMap<String, Boolean>();
+
+    /**
+     * Create the index of a table and fill it with the existing rows.
+     *
+     * @param db the database.
+     * @param table the table to index.
+     * @param keyColumn an integer column to index beside the position or <code>null</code>.
+     * @return <code>true</code> if the index could be created.
+     */
+    public static boolean create( SQLiteDatabase db, String table, String keyColumn ) {
+        String rtree = table + "_rtree";
+
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE VIRTUAL TABLE ").append(rtree).append(" USING rtree(id, ");
+        if (keyColumn != null) {
+            sB.append("min").append(keyColumn).append(", max").append(keyColumn).append(", ");
+        }
+        sB.append("min").append(COLUMN_LON).append(", max").append(COLUMN_LON).append(", ");
+        sB.append("min").append(COLUMN_LAT).append(", max").append(COLUMN_LAT).append(");");
+        String CREATE_RTREE = sB.toString();
+
+        String values = valuesOf("new", keyColumn);
+        sB = new StringBuilder();
+        sB.append("CREATE TRIGGER ").append(rtree).append("_insert AFTER INSERT ON ").append(table);
+        sB.append(" BEGIN INSERT INTO ").append(rtree).append(" VALUES (").append(values).append("); END;");
+        String CREATE_INSERT_TRIGGER = sB.toString();
+
+        sB = new StringBuilder();
+        sB.append("CREATE TRIGGER ").append(rtree).append("_update AFTER UPDATE OF ");
+        if (keyColumn != null) {
+            sB.append(keyColumn).append(", ");
+        }
+        sB.append(COLUMN_LON).append(", ").append(COLUMN_LAT).append(" ON ").append(table);
+        sB.append(" BEGIN INSERT OR REPLACE INTO ").append(rtree).append(" VALUES (").append(values).append("); END;");
+        String CREATE_UPDATE_TRIGGER = sB.toString();
+
+        sB = new StringBuilder();
+        sB.append("CREATE TRIGGER ").append(rtree).append("_delete AFTER DELETE ON ").append(table);
+        sB.append(" BEGIN DELETE FROM ").append(rtree).append(" WHERE id = old.").append(COLUMN_ID).append("; END;");
+        String CREATE_DELETE_TRIGGER = sB.toString();
+
+        sB = new StringBuilder();
+        sB.append("INSERT INTO ").append(rtree).append(" SELECT ").append(valuesOf(null, keyColumn));
+        sB.append(" FROM ").append(table).append(";");
+        String FILL_RTREE = sB.toString();
+
+        if (GPLog.LOG_ANDROID)
+            Log.i("SPATIALINDEX", "Create the spatial index of: " + table);
+        boolean created = false;
+        db.beginTransaction();
+        try {
+            db.execSQL(CREATE_RTREE);
+            db.execSQL(CREATE_INSERT_TRIGGER);
+            db.execSQL(CREATE_UPDATE_TRIGGER);
+            db.execSQL(CREATE_DELETE_TRIGGER);
+            db.execSQL(FILL_RTREE);
+            db.setTransactionSuccessful();
+            created = true;
+        } catch (Exception e) {
+            // most probably no rtree module, the range queries will be used
+            Log.e("SPATIALINDEX", e.getLocalizedMessage(), e);
+        } finally {
+            db.endTransaction();
+        }
+        synchronized (existing) {
+            existing.put(db.getPath() + "#" + table, created);
+        }
+        return created;
+    }
+
+    private static String valuesOf( String rowPrefix, String keyColumn ) {
+        String prefix = rowPrefix == null ? "" : rowPrefix + ".";
+        StringBuilder sB = new StringBuilder();
+        sB.append(prefix).append(COLUMN_ID).append(", ");
+        if (keyColumn != null) {
+            sB.append(prefix).append(keyColumn).append(", ").append(prefix).append(keyColumn).append(", ");
+        }
+        sB.append(prefix).append(COLUMN_LON).append(", ").append(prefix).append(COLUMN_LON).append(", ");
+        sB.append(prefix).append(COLUMN_LAT).append(", ").append(prefix).append(COLUMN_LAT);
+        return sB.toString();
+    }
+
+    /**
+     * Check if a table has its index.
+     *
+     * @param db the database.
+     * @param table the table.
+     * @return <code>true</code> if the index exists.
+     */
+    public static boolean exists( SQLiteDatabase db, String table ) {
+        String key = db.getPath() + "#" + table;
+        synchronized (existing) {
+            Boolean exists = existing.get(key);
+            if (exists == null) {
+                Cursor c = db.rawQuery("SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?",
+                        new String[]{table + "_rtree"});
+                try {
+                    c.moveToFirst();
+                    exists = c.getInt(0) > 0;
+                } finally {
+                    c.close();
+                }
+                existing.put(key, exists);
+            }
+            return exists;
+        }
+    }
+
+    /**
+     * Get the where clause that selects the rows of a table inside some bounds.
+     *
+     * <p>The clause takes, in order, the value of the key column if any, then the west,
+     * east, south and north bounds as arguments.</p>
+     *
+     * @param db the database.
+     * @param table the table.
+     * @param keyColumn the key column the table was indexed with or <code>null</code>.
+     * @return the where clause, without the <code>WHERE</code> keyword.
+     */
+    public static String getBoundsFilter( SQLiteDatabase db, String table, String keyColumn ) {
+        StringBuilder sB = new StringBuilder();
+        if (exists(db, table)) {
+            sB.append(COLUMN_ID).append(" IN (SELECT id FROM ").append(table).append("_rtree WHERE ");
+            if (keyColumn != null) {
+                sB.append("min").append(keyColumn).append(" = ? AND ");
+            }
+            sB.append("max").append(COLUMN_LON).append(" >= ? AND min").append(COLUMN_LON).append(" <= ? AND ");
+            sB.append("max").append(COLUMN_LAT).append(" >= ? AND min").append(COLUMN_LAT).append(" <= ?)");
+        } else {
+            if (keyColumn != null) {
+                sB.append(keyColumn).append(" = ? AND ");
+            }
+            sB.append("(").append(COLUMN_LON).append(" BETWEEN ? AND ?) AND (");
+            sB.append(COLUMN_LAT).append(" BETWEEN ? AND ?)");
+        }
+        return sB.toString();
+    }
+}
@@ -18,32 +18,40 @@
 package eu.hydrologis.geodroid.gpx;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
-import java.util.List;
+import java.text.MessageFormat;
+import java.util.Arrays;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.os.Handler;
+import android.widget.Toast;
 import eu.geopaparazzi.library.database.GPLog;
-import eu.geopaparazzi.library.gpx.GpxItem;
-import eu.geopaparazzi.library.gpx.parser.GpxParser;
-import eu.geopaparazzi.library.gpx.parser.GpxParser.Route;
-import eu.geopaparazzi.library.gpx.parser.GpxParser.TrackSegment;
-import eu.geopaparazzi.library.gpx.parser.WayPoint;
-import eu.geodroid.library.util.FileUtilities;
 import eu.geodroid.library.util.LibraryConstants;
-import eu.hydrologis.geodroid.database.DaoGpsLog;
+import eu.geodroid.library.util.Utilities;
 import eu.hydrologis.geodroid.R;
 
 /**
- * Gpx file import activity.
+ * Gpx and kml files import activity.
+ * 
+ * <p>The path can be a file or a folder, in which case all its gpx and kml files
+ * are imported. The files are streamed into the database by a {@link ParallelGpxImporter},
+ * while the progress is shown.</p>
  * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class GpxImportActivity extends Activity {
+    private static final int MSG_PROGRESS = 1;
+    private static final int MSG_FILE_DONE = 2;
+    private static final int MSG_DONE = 0;
 
     private String path;
+    private ParallelGpxImporter importer;
+    private int[] filesPercent;
+    private int doneFilesNum = 0;
 
     public void onCreate( Bundle icicle ) {
         super.onCreate(icicle);
@@ -53,73 +61,56 @@ public class GpxImportActivity extends Activity {
         if (extras != null) {
             path = extras.getString(LibraryConstants.PREFS_KEY_PATH);
 
-            gpxImportProgressDialog = ProgressDialog.show(GpxImportActivity.this, getString(R.string.gpx_import_processing),
-                    "", true, true); //$NON-NLS-1$
+            File file = new File(path);
+            File[] files;
+            if (file.isDirectory()) {
+                files = file.listFiles(new FileFilter(){
+                    public boolean accept( File pathname ) {
+                        String name = pathname.getName().toLowerCase();
+                        return pathname.isFile() && (name.endsWith(".gpx") || name.endsWith(".kml")); //$NON-NLS-1$ //$NON-NLS-2$
+                    }
+                });
+                if (files == null) {
+                    files = new File[0];
+                }
+                Arrays.sort(files);
+            } else {
+                files = new File[]{file};
+            }
+            filesPercent = new int[files.length];
+
+            importer = new ParallelGpxImporter(GpxImportActivity.this, files){
+                public void onFileProgress( int fileIndex, int percent ) {
+                    gpsImportHandler.sendMessage(gpsImportHandler.obtainMessage(MSG_PROGRESS, fileIndex, percent));
+                }
+                public void onFileDone( int fileIndex, boolean success ) {
+                    gpsImportHandler.sendMessage(gpsImportHandler.obtainMessage(MSG_FILE_DONE, fileIndex, 0));
+                }
+            };
+
+            gpxImportProgressDialog = new ProgressDialog(GpxImportActivity.this);
+            gpxImportProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            gpxImportProgressDialog.setMessage(getProgressMessage());
+            gpxImportProgressDialog.setMax(100);
+            gpxImportProgressDialog.setCancelable(true);
+            gpxImportProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener(){
+                public void onCancel( DialogInterface dialog ) {
+                    importer.cancel();
+                }
+            });
+            gpxImportProgressDialog.show();
             new Thread(){
                 public void run() {
+                    String report = null;
                     try {
-                        File file = new File(path);
-                        String fileName = FileUtilities.getNameWithoutExtention(file);
-                        GpxParser parser = new GpxParser(path);
-                        if (parser.parse()) {
-                            List<WayPoint> wayPoints = parser.getWayPoints();
-                            if (wayPoints.size() > 0) {
-                                GpxItem item = new GpxItem();
-                                item.setName(fileName);
-                                item.setWidth("2"); //$NON-NLS-1$
-                                item.setVisible(false);
-                                item.setColor("blue"); //$NON-NLS-1$
-                                item.setData(wayPoints);
-                                DaoGpsLog.importGpxToMap(GpxImportActivity.this, item);
-                            }
-                            List<TrackSegment> tracks = parser.getTracks();
-                            if (tracks.size() > 0) {
-                                for( TrackSegment trackSegment : tracks ) {
-                                    String tName = trackSegment.getName();
-                                    if (tName == null) {
-                                        tName = ""; //$NON-NLS-1$
-                                    } else {
-                                        tName = " - " + tName; //$NON-NLS-1$
-                                    }
-                                    String name = fileName + tName;
-                                    GpxItem item = new GpxItem();
-                                    item.setName(name);
-                                    item.setWidth("2"); //$NON-NLS-1$
-                                    item.setVisible(false);
-                                    item.setColor("red"); //$NON-NLS-1$
-                                    item.setData(trackSegment);
-                                    DaoGpsLog.importGpxToMap(GpxImportActivity.this, item);
-                                }
-                            }
-                            List<Route> routes = parser.getRoutes();
-                            if (routes.size() > 0) {
-                                for( Route route : routes ) {
-                                    String rName = route.getName();
-                                    if (rName == null) {
-                                        rName = ""; //$NON-NLS-1$
-                                    } else {
-                                        rName = " - " + rName; //$NON-NLS-1$
-                                    }
-                                    String name = fileName + rName;
-                                    GpxItem item = new GpxItem();
-                                    item.setName(name);
-                                    item.setWidth("2"); //$NON-NLS-1$
-                                    item.setVisible(false);
-                                    item.setColor("green"); //$NON-NLS-1$
-                                    item.setData(route);
-                                    DaoGpsLog.importGpxToMap(GpxImportActivity.this, item);
-                                }
-                            }
-                        } else {
-                            if (GPLog.LOG)
-                                GPLog.addLogEntry(this, "ERROR"); //$NON-NLS-1$
-                        }
-
+                        importer.importFiles();
+                        report = MessageFormat.format(getString(R.string.gpx_import_report), importer.getImportedFilesNum(),
+                                filesPercent.length, importer.getPointsNum(), (int) importer.getPointsPerSecond());
                     } catch (IOException e) {
                         GPLog.error(this, e.getLocalizedMessage(), e);
                         e.printStackTrace();
                     } finally {
-                        gpsImportHandler.sendEmptyMessage(0);
+                        gpsImportHandler.sendMessage(gpsImportHandler.obtainMessage(MSG_DONE, report));
                         finish();
                     }
                 }
@@ -128,10 +119,35 @@ public class GpxImportActivity extends Activity {
         }
 
     }
+
+    private String getProgressMessage() {
+        return getString(R.string.gpx_import_processing) + " (" + doneFilesNum + "/" + filesPercent.length + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
     private ProgressDialog gpxImportProgressDialog;
     private Handler gpsImportHandler = new Handler(){
         public void handleMessage( android.os.Message msg ) {
-            gpxImportProgressDialog.dismiss();
+            switch( msg.what ) {
+            case MSG_PROGRESS:
+            case MSG_FILE_DONE:
+                filesPercent[msg.arg1] = msg.what == MSG_FILE_DONE ? 100 : msg.arg2;
+                if (msg.what == MSG_FILE_DONE) {
+                    doneFilesNum++;
+                    gpxImportProgressDialog.setMessage(getProgressMessage());
+                }
+                int percentSum = 0;
+                for( int percent : filesPercent ) {
+                    percentSum += percent;
+                }
+                gpxImportProgressDialog.setProgress(percentSum / filesPercent.length);
+                break;
+            default:
+                gpxImportProgressDialog.dismiss();
+                if (msg.obj != null) {
+                    Utilities.toast(getApplicationContext(), (String) msg.obj, Toast.LENGTH_LONG);
+                }
+                break;
+            }
         };
     };
 }
@@ -0,0 +1,201 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.gpx;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.gpx.parser.IGpxStreamHandler;
+import eu.hydrologis.geodroid.database.DaoGpsLog;
+import eu.hydrologis.geodroid.database.DaoNotes;
+import eu.hydrologis.geodroid.database.NoteType;
+
+/**
+ * Writer of the content of a gpx or kml file into the database.
+ *
+ * <p>Waypoints become notes, track segments and routes become gps logs. Points are
+ * written {@link #BATCH_SIZE} at a time, inside the transaction handled by the
+ * caller, see {@link ParallelGpxImporter}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpxImporter implements IGpxStreamHandler {
+    /**
+     * The number of points of a line written at once.
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    private final Context context;
+    private final String gpxName;
+    private final SQLiteDatabase sqliteDatabase;
+    private final DaoGpsLog daoGpsLog = new DaoGpsLog();
+    private final long importTime = System.currentTimeMillis();
+    private final Date date = new Date(0);
+
+    private final double[] lons = new double[BATCH_SIZE];
+    private final double[] lats = new double[BATCH_SIZE];
+    private final double[] altims = new double[BATCH_SIZE];
+    private final long[] times = new long[BATCH_SIZE];
+    private int count = 0;
+    private int pointsNum = 0;
+
+    private String lineName;
+    private boolean isRoute;
+    private long logId = -1;
+    private int linePointsNum;
+    private long lastTime;
+    private final List<Long> importedLogIds = new ArrayList<Long>();
+    private final List<Long> importedNoteIds = new ArrayList<Long>();
+    private int committedLogsNum = 0;
+    private int committedNotesNum = 0;
+
+    /**
+     * @param context the context to use.
+     * @param sqliteDatabase the database to write to.
+     * @param gpxName the name of the gpx, used for the notes and logs.
+     */
+    public GpxImporter( Context context, SQLiteDatabase sqliteDatabase, String gpxName ) {
+        this.context = context;
+        this.sqliteDatabase = sqliteDatabase;
+        this.gpxName = gpxName;
+    }
+
+    public void wayPoint( double lon, double lat, double elevation, long time, String name, String description )
+            throws IOException {
+        date.setTime(time >= 0 ? time : importTime);
+        String text = name != null && name.length() > 0 ? name : gpxName;
+        long noteId = DaoNotes.addNoteNoTransaction(lon, lat, Double.isNaN(elevation) ? -1.0 : elevation, date, text,
+                NoteType.POI.getDef(), "", NoteType.POI.getTypeNum(), sqliteDatabase);
+        importedNoteIds.add(noteId);
+        pointsNum++;
+    }
+
+    public void lineStart( String name, boolean isRoute ) throws IOException {
+        this.isRoute = isRoute;
+        if (isRoute) {
+            lineName = name != null ? name : gpxName;
+        } else {
+            lineName = name != null ? gpxName + " - " + name : gpxName;
+        }
+        logId = -1;
+        linePointsNum = 0;
+    }
+
+    public void linePoint( double lon, double lat, double elevation, long time ) throws IOException {
+        if (time < 0) {
+            // no time in the file, keep the points ordered
+            time = importTime + linePointsNum * 1000l;
+        }
+        if (logId == -1) {
+            date.setTime(time);
+            logId = daoGpsLog.addGpsLog(context, date, date, lineName, 2f, isRoute ? "green" : "blue", true);
+            importedLogIds.add(logId);
+        }
+        lons[count] = lon;
+        lats[count] = lat;
+        altims[count] = Double.isNaN(elevation) ? -1.0 : elevation;
+        times[count] = time;
+        count++;
+        linePointsNum++;
+        lastTime = time;
+        if (count == BATCH_SIZE) {
+            writePoints();
+        }
+        pointsNum++;
+    }
+
+    public void lineEnd() throws IOException {
+        writePoints();
+        date.setTime(lastTime);
+        daoGpsLog.setEndTs(context, logId, date);
+        logId = -1;
+    }
+
+    public void progress( long readBytes, long totalBytes ) {
+        // the progress is reported by the parsing side
+    }
+
+    /**
+     * Write the points kept in memory.
+     *
+     * @throws IOException
+     */
+    public void writePoints() throws IOException {
+        if (count > 0) {
+            daoGpsLog.addGpsLogDataPoints(sqliteDatabase, logId, lons, lats, altims, times, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * @return the number of waypoints and line points received.
+     */
+    public int getPointsNum() {
+        return pointsNum;
+    }
+
+    /**
+     * Tells that the transaction writing the file has been committed.
+     */
+    public void onCommit() {
+        committedLogsNum = importedLogIds.size();
+        committedNotesNum = importedNoteIds.size();
+    }
+
+    /**
+     * Forget the state kept for the logs, after the transaction writing them was rolled back.
+     *
+     * <p>The logs and notes created in that transaction don't exist anymore and their ids
+     * can be reused, so they are not removed by {@link #removeImported()}.</p>
+     */
+    public void onRollback() {
+        long[] logIds = new long[importedLogIds.size()];
+        for( int i = 0; i < logIds.length; i++ ) {
+            logIds[i] = importedLogIds.get(i);
+        }
+        daoGpsLog.onGpsLogDataPointsRolledBack(logIds);
+        importedLogIds.subList(committedLogsNum, importedLogIds.size()).clear();
+        importedNoteIds.subList(committedNotesNum, importedNoteIds.size()).clear();
+    }
+
+    /**
+     * Remove the logs and notes imported so far, after a failure.
+     */
+    public void removeImported() {
+        for( Long importedLogId : importedLogIds ) {
+            try {
+                daoGpsLog.deleteGpslog(context, importedLogId);
+            } catch (Exception e) {
+                GPLog.error(this, "Could not remove the partially imported log: " + importedLogId, e);
+            }
+        }
+        if (importedNoteIds.size() > 0) {
+            try {
+                DaoNotes.deleteNotes(importedNoteIds);
+            } catch (Exception e) {
+                GPLog.error(this, "Could not remove the partially imported notes: " + gpxName, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.gpx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.gpx.parser.GpxParser;
+import eu.geopaparazzi.library.gpx.parser.IGpxStreamHandler;
+import eu.geopaparazzi.library.gpx.parser.KmlParser;
+import eu.geodroid.library.util.FileUtilities;
+import eu.hydrologis.geodroid.database.DatabaseManager;
+
+/**
+ * Import of many gpx and kml files at once.
+ *
+ * <p>The files are parsed concurrently on a small pool of threads. The parsers put what
+ * they read, in batches, in a bounded queue. A single writer, the thread that calls
+ * {@link #importFiles()}, drains the queue into the database through a {@link GpxImporter}
+ * per file, in transactions of {@link #TRANSACTION_SIZE} points. Parsing and writing
+ * overlap, and the bounded queue keeps the memory used constant.</p>
+ *
+ * <p>A file that fails or is cancelled while importing is removed. The files completed
+ * before a {@link #cancel()} are kept.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ParallelGpxImporter {
+    /**
+     * The max number of files parsed at the same time.
+     */
+    public static final int MAX_PARSERS = 3;
+
+    /**
+     * The number of points written in a transaction.
+     */
+    public static final int TRANSACTION_SIZE = 20000;
+
+    private static final int EVENTS_BATCH_SIZE = 512;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final long IDLE_COMMIT_MILLIS = 500;
+
+    private static final byte WAYPOINT = 0;
+    private static final byte TRACK_START = 1;
+    private static final byte ROUTE_START = 2;
+    private static final byte LINE_POINT = 3;
+    private static final byte LINE_END = 4;
+
+    /**
+     * A batch of what was read from a file.
+     */
+    private static class EventsBatch {
+        final int fileIndex;
+        final byte[] types = new byte[EVENTS_BATCH_SIZE];
+        final double[] lons = new double[EVENTS_BATCH_SIZE];
+        final double[] lats = new double[EVENTS_BATCH_SIZE];
+        final double[] elevations = new double[EVENTS_BATCH_SIZE];
+        final long[] times = new long[EVENTS_BATCH_SIZE];
+        final String[] names = new String[EVENTS_BATCH_SIZE];
+        final String[] descriptions = new String[EVENTS_BATCH_SIZE];
+        int size = 0;
+        int pointsNum = 0;
+        /**
+         * If <code>true</code>, this is the last batch of the file.
+         */
+        boolean isLast = false;
+        /**
+         * If <code>true</code>, the whole file was parsed. Only set on the last batch.
+         */
+        boolean success = false;
+
+        EventsBatch( int fileIndex ) {
+            this.fileIndex = fileIndex;
+        }
+    }
+
+    private final Context context;
+    private final File[] files;
+    private final BlockingQueue<EventsBatch> queue = new ArrayBlockingQueue<EventsBatch>(QUEUE_CAPACITY);
+    private volatile boolean isCancelled = false;
+
+    private int importedFilesNum = 0;
+    private long pointsNum = 0;
+    private long elapsedMillis = 0;
+
+    /**
+     * @param context the context to use.
+     * @param files the gpx and kml files to import.
+     */
+    public ParallelGpxImporter( Context context, File[] files ) {
+        this.context = context;
+        this.files = files;
+    }
+
+    /**
+     * Import the files, blocking until all of them are done.
+     *
+     * @throws IOException if the database is not available.
+     */
+    public void importFiles() throws IOException {
+        SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
+        long start = SystemClock.elapsedRealtime();
+
+        int parsersNum = Math.max(1, Math.min(files.length, Math.min(MAX_PARSERS, Runtime.getRuntime().availableProcessors())));
+        ExecutorService parsersPool = Executors.newFixedThreadPool(parsersNum);
+        for( int i = 0; i < files.length; i++ ) {
+            parsersPool.execute(new FileParser(i));
+        }
+        parsersPool.shutdown();
+
+        GpxImporter[] importers = new GpxImporter[files.length];
+        boolean[] failed = new boolean[files.length];
+        int doneFilesNum = 0;
+        int pointsInTransaction = 0;
+        boolean inTransaction = false;
+        boolean interrupted = false;
+        try {
+            while( doneFilesNum < files.length ) {
+                EventsBatch batch;
+                try {
+                    batch = queue.poll(IDLE_COMMIT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // stop the parsers and go on until they are done
+                    interrupted = true;
+                    cancel();
+                    continue;
+                }
+                if (batch == null) {
+                    // the parsers are slower, make what was written so far durable
+                    if (inTransaction) {
+                        inTransaction = false;
+                        pointsInTransaction = 0;
+                        commit(sqliteDatabase, importers, failed);
+                    }
+                    continue;
+                }
+
+                if (!inTransaction) {
+                    sqliteDatabase.beginTransaction();
+                    inTransaction = true;
+                }
+                int fileIndex = batch.fileIndex;
+                GpxImporter importer = importers[fileIndex];
+                if (importer == null) {
+                    String name = FileUtilities.getNameWithoutExtention(files[fileIndex]);
+                    importer = new GpxImporter(context, sqliteDatabase, name);
+                    importers[fileIndex] = importer;
+                }
+                if (!failed[fileIndex]) {
+                    try {
+                        write(batch, importer);
+                    } catch (Exception e) {
+                        GPLog.error(this, "Could not write: " + files[fileIndex], e);
+                        failed[fileIndex] = true;
+                    }
+                }
+                pointsInTransaction += batch.pointsNum;
+
+                if (batch.isLast) {
+                    doneFilesNum++;
+                    // commit, to report the file only once it is safe
+                    inTransaction = false;
+                    pointsInTransaction = 0;
+                    commit(sqliteDatabase, importers, failed);
+
+                    boolean success = batch.success && !failed[fileIndex];
+                    if (success) {
+                        importedFilesNum++;
+                        pointsNum += importer.getPointsNum();
+                    } else {
+                        importer.removeImported();
+                    }
+                    importers[fileIndex] = null;
+                    onFileDone(fileIndex, success);
+                } else if (pointsInTransaction >= TRANSACTION_SIZE) {
+                    inTransaction = false;
+                    pointsInTransaction = 0;
+                    commit(sqliteDatabase, importers, failed);
+                }
+            }
+        } finally {
+            if (inTransaction) {
+                sqliteDatabase.endTransaction();
+            }
+            elapsedMillis = SystemClock.elapsedRealtime() - start;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (GPLog.LOG) {
+            GPLog.addLogEntry(this, "Imported " + importedFilesNum + " of " + files.length + " files, " + pointsNum
+                    + " points at " + (int) getPointsPerSecond() + " points/s");
+        }
+    }
+
+    /**
+     * Write the points kept by the importers and commit the current transaction.
+     *
+     * <p>If the commit fails, the files being imported are marked as failed and the import is cancelled.</p>
+     */
+    private void commit( SQLiteDatabase sqliteDatabase, GpxImporter[] importers, boolean[] failed ) {
+        try {
+            try {
+                for( int i = 0; i < importers.length; i++ ) {
+                    if (importers[i] != null && !failed[i]) {
+                        importers[i].writePoints();
+                    }
+                }
+                sqliteDatabase.setTransactionSuccessful();
+            } finally {
+                sqliteDatabase.endTransaction();
+            }
+            for( int i = 0; i < importers.length; i++ ) {
+                if (importers[i] != null) {
+                    importers[i].onCommit();
+                }
+            }
+        } catch (Exception e) {
+            GPLog.error(this, "Could not commit the imported points.", e);
+            for( int i = 0; i < importers.length; i++ ) {
+                if (importers[i] != null) {
+                    importers[i].onRollback();
+                    failed[i] = true;
+                }
+            }
+            cancel();
+        }
+    }
+
+    private void write( EventsBatch batch, GpxImporter importer ) throws IOException {
+        for( int i = 0; i < batch.size; i++ ) {
+            switch( batch.types[i] ) {
+            case WAYPOINT:
+                importer.wayPoint(batch.lons[i], batch.lats[i], batch.elevations[i], batch.times[i], batch.names[i],
+                        batch.descriptions[i]);
+                break;
+            case TRACK_START:
+                importer.lineStart(batch.names[i], false);
+                break;
+            case ROUTE_START:
+                importer.lineStart(batch.names[i], true);
+                break;
+            case LINE_POINT:
+                importer.linePoint(batch.lons[i], batch.lats[i], batch.elevations[i], batch.times[i]);
+                break;
+            case LINE_END:
+                importer.lineEnd();
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stop the import. The files that are not completed are removed.
+     */
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    /**
+     * @return <code>true</code> if the import was cancelled.
+     */
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * Called when the percentage of a file read changes.
+     *
+     * <p>Called on the parsing threads, does nothing by default.</p>
+     *
+     * @param fileIndex the index of the file.
+     * @param percent the percentage of the file read.
+     */
+    public void onFileProgress( int fileIndex, int percent ) {
+    }
+
+    /**
+     * Called when a file is done and committed, or removed.
+     *
+     * <p>Called on the importing thread, does nothing by default.</p>
+     *
+     * @param fileIndex the index of the file.
+     * @param success <code>true</code> if the file was imported.
+     */
+    public void onFileDone( int fileIndex, boolean success ) {
+    }
+
+    /**
+     * @return the number of files imported.
+     */
+    public int getImportedFilesNum() {
+        return importedFilesNum;
+    }
+
+    /**
+     * @return the number of points of the imported files.
+     */
+    public long getPointsNum() {
+        return pointsNum;
+    }
+
+    /**
+     * @return the duration of the import in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the throughput of the import.
+     */
+    public double getPointsPerSecond() {
+        if (elapsedMillis == 0) {
+            return 0;
+        }
+        return pointsNum * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * Parser of a file, that puts what it reads in the queue.
+     */
+    private class FileParser implements Runnable, IGpxStreamHandler {
+        private final int fileIndex;
+        private EventsBatch batch;
+        private int percent = -1;
+
+        FileParser( int fileIndex ) {
+            this.fileIndex = fileIndex;
+            batch = new EventsBatch(fileIndex);
+        }
+
+        public void run() {
+            boolean success = false;
+            if (!isCancelled) {
+                File file = files[fileIndex];
+                try {
+                    if (file.getName().toLowerCase().endsWith(".kml")) {
+                        new KmlParser(file.getAbsolutePath()).parse(this);
+                    } else {
+                        new GpxParser(file.getAbsolutePath()).parse(this);
+                    }
+                    success = true;
+                } catch (Exception e) {
+                    if (!isCancelled) {
+                        GPLog.error(this, "Could not import: " + file, e);
+                    }
+                }
+            }
+            batch.isLast = true;
+            batch.success = success;
+            // the writer waits for the last batch of each file, it can't be lost
+            boolean interrupted = false;
+            while( true ) {
+                try {
+                    queue.put(batch);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void wayPoint( double lon, double lat, double elevation, long time, String name, String description )
+                throws IOException {
+            int index = add(WAYPOINT);
+            batch.lons[index] = lon;
+            batch.lats[index] = lat;
+            batch.elevations[index] = elevation;
+            batch.times[index] = time;
+            batch.names[index] = name;
+            batch.descriptions[index] = description;
+            batch.pointsNum++;
+        }
+
+        public void lineStart( String name, boolean isRoute ) throws IOException {
+            int index = add(isRoute ? ROUTE_START : TRACK_START);
+            batch.names[index] = name;
+        }
+
+        public void linePoint( double lon, double lat, double elevation, long time ) throws IOException {
+            int index = add(LINE_POINT);
+            batch.lons[index] = lon;
+            batch.lats[index] = lat;
+            batch.elevations[index] = elevation;
+            batch.times[index] = time;
+            batch.pointsNum++;
+        }
+
+        public void lineEnd() throws IOException {
+            add(LINE_END);
+        }
+
+        public void progress( long readBytes, long totalBytes ) {
+            int newPercent = totalBytes > 0 ? (int) (readBytes * 100 / totalBytes) : 0;
+            if (newPercent != percent) {
+                percent = newPercent;
+                onFileProgress(fileIndex, percent);
+            }
+        }
+
+        /**
+         * Add an event to the batch, handing the batch to the writer first if it is full.
+         *
+         * @return the index of the event in the batch.
+         */
+        private int add( byte type ) throws IOException {
+            if (isCancelled) {
+                throw new IOException("Import cancelled.");
+            }
+            if (batch.size == EVENTS_BATCH_SIZE) {
+                try {
+                    queue.put(batch);
+                } catch (InterruptedException e) {
+                    throw new IOException("Import interrupted.");
+                }
+                batch = new EventsBatch(fileIndex);
+            }
+            int index = batch.size++;
+            batch.types[index] = type;
+            return index;
+        }
+    }
+}
@@ -41,7 +41,6 @@ import org.mapsforge.android.maps.mapgenerator.tiledownloader.MapnikTileDownload
 import org.mapsforge.android.maps.mapgenerator.tiledownloader.OpenCycleMapTileDownloader;
 import org.mapsforge.android.maps.overlay.Overlay;
 import org.mapsforge.android.maps.overlay.OverlayItem;
-import org.mapsforge.android.maps.overlay.OverlayWay;
 import org.mapsforge.core.model.GeoPoint;
 
 import android.app.Activity;
@@ -613,8 +612,8 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
             dataOverlay.clearItems();
             dataOverlay.clearWays();
 
-            List<OverlayWay> logOverlaysList = DaoGpsLog.getGpslogOverlays();
-            dataOverlay.addWays(logOverlaysList);
+            // only the bounds, the points are read by the overlay for the visible area
+            dataOverlay.setGpsLogs(DaoGpsLog.getVisibleGpslogs());
 
             /* images */
             if (DataManager.getInstance().areImagesVisible()) {
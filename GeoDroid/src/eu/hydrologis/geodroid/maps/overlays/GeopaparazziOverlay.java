@@ -18,6 +18,14 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import jsqlite.Exception;
 
@@ -28,6 +36,7 @@ import org.mapsforge.android.maps.overlay.Overlay;
 import org.mapsforge.android.maps.overlay.OverlayItem;
 import org.mapsforge.android.maps.overlay.OverlayWay;
 import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.util.MercatorProjection;
 
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
@@ -45,25 +54,23 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.preference.PreferenceManager;
 
-import com.vividsolutions.jts.android.PointTransformation;
-import com.vividsolutions.jts.android.ShapeWriter;
-import com.vividsolutions.jts.android.geom.DrawableShape;
-import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.android.WKBShapeWriter;
 
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.forms.FormActivity;
+import eu.geopaparazzi.library.gps.GpsLogTrack;
 import eu.geopaparazzi.library.gps.GpsManager;
 import eu.geodroid.library.util.ColorUtilities;
 import eu.geodroid.library.util.LibraryConstants;
 import eu.geodroid.library.util.ResourcesManager;
 import eu.geopaparazzi.spatialite.database.spatial.SpatialDatabasesManager;
-import eu.geopaparazzi.spatialite.database.spatial.core.GeometryIterator;
 import eu.geopaparazzi.spatialite.database.spatial.core.ISpatialDatabaseHandler;
 import eu.geopaparazzi.spatialite.database.spatial.core.SpatialVectorTable;
 import eu.geopaparazzi.spatialite.database.spatial.core.Style;
 import eu.hydrologis.geodroid.database.DaoNotes;
 import eu.hydrologis.geodroid.database.NoteType;
 import eu.hydrologis.geodroid.maps.MapsActivity;
+import eu.hydrologis.geodroid.maps.overlays.VectorTileCache.VectorTile;
 import eu.hydrologis.geodroid.util.Constants;
 import eu.hydrologis.geodroid.util.Note;
 import eu.hydrologis.geodroid.R;
@@ -82,7 +89,14 @@ import eu.hydrologis.geodroid.R;
 public abstract class GeopaparazziOverlay extends Overlay {
     private int crossSize = 20;
     private static final String THREAD_NAME = "GeopaparazziOverlay"; //$NON-NLS-1$
-    private static final int ITEM_INITIAL_CAPACITY = 8;
+    private static final String LOADER_THREAD_NAME = "GeopaparazziOverlayLoader"; //$NON-NLS-1$
+    private static final int MAX_LOADER_THREADS = 4;
+    private static final long LOADER_POLL_MILLIS = 20;
+    /**
+     * The max zoom level at which items are clustered.
+     */
+    private static final byte CLUSTER_MAX_ZOOM = 15;
+    private static final float CLUSTER_RADIUS = OverlayItemsClusters.CELL_SIZE / 3f;
 
     /**
      * Sets the bounds of the given drawable so that (0,0) is the center of the bottom row.
@@ -113,9 +127,16 @@ public abstract class GeopaparazziOverlay extends Overlay {
      * way stuff
      */
     private Paint defaultWayPaintFill;
+    private final GpsLogsLayer gpsLogsLayer = new GpsLogsLayer();
     private Paint defaultWayPaintOutline;
     private Path wayPath;
 
+    /*
+     * spatialite stuff
+     */
+    private final VectorTileCache vectorTileCache = new VectorTileCache(Runtime.getRuntime().maxMemory() / 16);
+    private ExecutorService loadersExecutor;
+
     /*
      * item stuff
      */
@@ -126,8 +147,13 @@ public abstract class GeopaparazziOverlay extends Overlay {
     private int left;
     private int right;
     private int top;
-    private List<Integer> visibleItems;
-    private List<Integer> visibleItemsRedraw;
+    private volatile OverlayItemsIndex itemsIndex = OverlayItemsIndex.EMPTY;
+    private volatile boolean itemsIndexDirty = true;
+    private final OverlayItemsIndex.Result drawItems = new OverlayItemsIndex.Result();
+    private final OverlayItemsIndex.Result drawClusters = new OverlayItemsIndex.Result();
+    private Paint clusterFill;
+    private Paint clusterOutline;
+    private Paint clusterText;
 
     /*
      * cross stuff
@@ -144,8 +170,7 @@ public abstract class GeopaparazziOverlay extends Overlay {
     private GpsData overlayGps;
     private Drawable gpsMarker;
 
-    private Path gpsPath;
-    private OverlayWay gpslogOverlay;
+    private final GpsTrackBuffer currentGpsLog = new GpsTrackBuffer();
     private Paint gpsTrackPaintYellow;
     private Paint gpsTrackPaintBlack;
     private Paint gpsOutline;
@@ -157,7 +182,6 @@ public abstract class GeopaparazziOverlay extends Overlay {
     private Paint gpsGreenFill;
     private Paint gpsBlueFill;
 
-    private List<GeoPoint> currentGpsLog = new ArrayList<GeoPoint>();
     private Context context;
     private int inset = 5;
     private Paint textPaint;
@@ -175,8 +199,6 @@ public abstract class GeopaparazziOverlay extends Overlay {
         this.wayPath.setFillType(Path.FillType.EVEN_ODD);
 
         this.itemPosition = new Point();
-        this.visibleItems = new ArrayList<Integer>(ITEM_INITIAL_CAPACITY);
-        this.visibleItemsRedraw = new ArrayList<Integer>(ITEM_INITIAL_CAPACITY);
 
         // cross
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
@@ -207,7 +229,6 @@ public abstract class GeopaparazziOverlay extends Overlay {
         overlayGps = new GpsData();
         this.circlePosition = new Point();
         this.path = new Path();
-        this.gpsPath = new Path();
 
         gpsMarker = context.getResources().getDrawable(R.drawable.current_position);
         gpsFill = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -268,8 +289,22 @@ public abstract class GeopaparazziOverlay extends Overlay {
             textHaloPaint.setTextSize(notesTextSize);
         }
 
+        clusterFill = new Paint(Paint.ANTI_ALIAS_FLAG);
+        clusterFill.setStyle(Paint.Style.FILL);
+        clusterFill.setColor(Color.rgb(255, 140, 0));
+        clusterFill.setAlpha(200);
+        clusterOutline = new Paint(Paint.ANTI_ALIAS_FLAG);
+        clusterOutline.setStyle(Paint.Style.STROKE);
+        clusterOutline.setColor(Color.WHITE);
+        clusterOutline.setStrokeWidth(3);
+        clusterText = new Paint(Paint.ANTI_ALIAS_FLAG);
+        clusterText.setStyle(Paint.Style.FILL);
+        clusterText.setColor(Color.WHITE);
+        clusterText.setTextAlign(Paint.Align.CENTER);
+        clusterText.setFakeBoldText(true);
+        clusterText.setTextSize(CLUSTER_RADIUS);
+
         gpsMarker = ItemizedOverlay.boundCenter(gpsMarker);
-        gpslogOverlay = new OverlayWay(null, gpsOutline);
 
         currentGpsLog.clear();
     }
@@ -334,23 +369,6 @@ public abstract class GeopaparazziOverlay extends Overlay {
         }
     }
 
-    private void assembleGpsWayPath( Point drawPosition, OverlayWay overlayWay ) {
-        this.gpsPath.reset();
-        for( int i = 0; i < overlayWay.cachedWayPositions.length; ++i ) {
-            this.gpsPath.moveTo(overlayWay.cachedWayPositions[i][0].x - drawPosition.x, overlayWay.cachedWayPositions[i][0].y
-                    - drawPosition.y);
-            for( int j = 1; j < overlayWay.cachedWayPositions[i].length; ++j ) {
-                this.gpsPath.lineTo(overlayWay.cachedWayPositions[i][j].x - drawPosition.x, overlayWay.cachedWayPositions[i][j].y
-                        - drawPosition.y);
-            }
-        }
-    }
-
-    private void drawGpsWayPathOnCanvas( Canvas canvas, OverlayWay overlayWay ) {
-        canvas.drawPath(this.gpsPath, this.gpsTrackPaintBlack);
-        canvas.drawPath(this.gpsPath, this.gpsTrackPaintYellow);
-    }
-
     private void drawGpsOnCanvas( Canvas canvas, GpsData gpsCircle ) {
         canvas.drawPath(this.path, gpsOutline);
         canvas.drawPath(this.path, gpsFill);
@@ -358,17 +376,21 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
     @SuppressWarnings("nls")
     public void setGpsPosition( GeoPoint position, float accuracy ) {
-        GpsManager gpsManager = GpsManager.getInstance(context);
-        if (gpsManager.isDatabaseLogging()) {
-            currentGpsLog.add(position);
-        } else {
-            currentGpsLog.clear();
-        }
         if (GPLog.LOG_ABSURD)
             GPLog.addLogEntry(this, "Set gps data: " + position.getLongitude() + "/" + position.getLatitude() + "/" + accuracy);
         overlayGps.setCircleData(position, accuracy);
     }
 
+    /**
+     * Set the gps logs to draw.
+     * 
+     * @param gpsLogs the logs.
+     */
+    public void setGpsLogs( List<GpsLogsLayer.GpsLog> gpsLogs ) {
+        gpsLogsLayer.setGpsLogs(gpsLogs);
+        super.requestRedraw();
+    }
+
     /**
      * Creates a way in this overlay.
      * 
@@ -384,7 +406,12 @@ public abstract class GeopaparazziOverlay extends Overlay {
         /*
          * first spatialite layers, if any
          */
-        drawFromSpatialite(canvas, drawPosition, projection, drawZoomLevel);
+        drawFromSpatialite(canvas, drawPosition, drawZoomLevel);
+
+        /*
+         * gps logs
+         */
+        gpsLogsLayer.draw(canvas, drawPosition, drawZoomLevel);
 
         /*
          * WAYS
@@ -428,18 +455,30 @@ public abstract class GeopaparazziOverlay extends Overlay {
          * ITEMS
          */
 
-        // erase the list of visible items
-        this.visibleItemsRedraw.clear();
-
         int canvasHeight = canvas.getHeight();
         int canvasWidth = canvas.getWidth();
 
-        int numberOfItems = itemSize();
-        for( int itemIndex = 0; itemIndex < numberOfItems; ++itemIndex ) {
+        // only touch the items whose marker can fall in the canvas
+        OverlayItemsIndex index = getItemsIndex();
+        double scale = 1 << drawZoomLevel;
+        index.query((drawPosition.x - index.getMarkerRight() - 1) / scale, //
+                (drawPosition.y - index.getMarkerBottom() - 1) / scale, //
+                (drawPosition.x + canvasWidth - index.getMarkerLeft() + 1) / scale, //
+                (drawPosition.y + canvasHeight - index.getMarkerTop() + 1) / scale, drawItems);
+        // at low zoom levels crowded items are drawn as a single counted marker
+        OverlayItemsClusters clusters = null;
+        if (drawZoomLevel <= CLUSTER_MAX_ZOOM) {
+            clusters = index.getClusters(drawZoomLevel);
+        }
+        for( int i = 0; i < drawItems.size; ++i ) {
             if (isInterrupted() || sizeHasChanged()) {
                 // stop working
                 return;
             }
+            int itemIndex = drawItems.items[i];
+            if (clusters != null && clusters.isClustered(itemIndex)) {
+                continue;
+            }
 
             // get the current item
             OverlayItem overlayItem = createItem(itemIndex);
@@ -495,9 +534,6 @@ public abstract class GeopaparazziOverlay extends Overlay {
                     // restore the position of the marker
                     this.itemMarker.setBounds(markerBounds);
 
-                    // add the current item index to the list of visible items
-                    this.visibleItemsRedraw.add(Integer.valueOf(itemIndex));
-
                     if (isNotesTextVisible && overlayItem instanceof NoteOverlayItem) {
                         String title = overlayItem.getTitle();
                         float delta = markerBounds.width() / 4f;
@@ -509,43 +545,21 @@ public abstract class GeopaparazziOverlay extends Overlay {
                 }
             }
         }
-
-        // swap the two visible item lists
-        synchronized (this.visibleItems) {
-            List<Integer> visibleItemsTemp = this.visibleItems;
-            this.visibleItems = this.visibleItemsRedraw;
-            this.visibleItemsRedraw = visibleItemsTemp;
+        if (clusters != null) {
+            drawClusters(canvas, drawPosition, clusters, scale);
         }
 
         /*
          * gps logging track
          */
         GpsManager gpsManager = GpsManager.getInstance(context);
-        if (gpsManager.isDatabaseLogging()) {
+        GpsLogTrack gpsLogTrack = gpsManager.getCurrentRecordedGpsLog();
+        if (gpsLogTrack != null) {
             // if a track is recorded, show it
-            synchronized (gpslogOverlay) {
-                int size = currentGpsLog.size();
-                if (size > 1) {
-                    GeoPoint[] geoPoints = currentGpsLog.toArray(new GeoPoint[0]);
-                    gpslogOverlay.setWayNodes(new GeoPoint[][]{geoPoints});
-                    // make sure that the current way has way nodes
-                    if (gpslogOverlay.wayNodes != null && gpslogOverlay.wayNodes.length != 0) {
-                        // make sure that the cached way node positions are valid
-                        if (drawZoomLevel != gpslogOverlay.cachedZoomLevel) {
-                            for( int i = 0; i < gpslogOverlay.cachedWayPositions.length; ++i ) {
-                                for( int j = 0; j < gpslogOverlay.cachedWayPositions[i].length; ++j ) {
-                                    gpslogOverlay.cachedWayPositions[i][j] = projection.toPoint(gpslogOverlay.wayNodes[i][j],
-                                            gpslogOverlay.cachedWayPositions[i][j], drawZoomLevel);
-                                }
-                            }
-                            gpslogOverlay.cachedZoomLevel = drawZoomLevel;
-                        }
-
-                        assembleGpsWayPath(drawPosition, gpslogOverlay);
-                        drawGpsWayPathOnCanvas(canvas, gpslogOverlay);
-                    }
-                }
-            }
+            currentGpsLog.update(gpsLogTrack.getSnapshot());
+            currentGpsLog.draw(canvas, drawPosition, drawZoomLevel, gpsTrackPaintBlack, gpsTrackPaintYellow);
+        } else {
+            currentGpsLog.clear();
         }
 
         /*
@@ -647,107 +661,183 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
     }
 
-    private void drawFromSpatialite( Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel ) {
+    private void drawFromSpatialite( Canvas canvas, Point drawPosition, byte drawZoomLevel ) {
         /* 
-         * draw from spatialite
+         * draw from spatialite, through the tiles cache
          */
-        GeoPoint zeroPoint = projection.fromPixels(0, 0);
-        GeoPoint whPoint = projection.fromPixels(canvas.getWidth(), canvas.getHeight());
-
-        double n = zeroPoint.getLatitude();
-        double w = zeroPoint.getLongitude();
-        double s = whPoint.getLatitude();
-        double e = whPoint.getLongitude();
-
+        int tileSize = VectorTileCache.TILE_SIZE;
+        int maxTile = (1 << drawZoomLevel) - 1;
+        int minTileX = Math.max(0, (int) Math.floor(drawPosition.x / (double) tileSize));
+        int minTileY = Math.max(0, (int) Math.floor(drawPosition.y / (double) tileSize));
+        int maxTileX = Math.min(maxTile, (int) Math.floor((drawPosition.x + canvas.getWidth()) / (double) tileSize));
+        int maxTileY = Math.min(maxTile, (int) Math.floor((drawPosition.y + canvas.getHeight()) / (double) tileSize));
+
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        List<FutureTask<Boolean>> allLoads = new ArrayList<FutureTask<Boolean>>();
         try {
             SpatialDatabasesManager sdManager = SpatialDatabasesManager.getInstance();
             List<SpatialVectorTable> spatialTables = sdManager.getSpatialVectorTables(false);
-            for( int i = 0; i < spatialTables.size(); i++ ) {
+
+            /*
+             * start loading what is not cached yet, databases lend a connection to each load
+             */
+            int tablesCount = spatialTables.size();
+            VectorTilesLoader[] loaders = new VectorTilesLoader[tablesCount];
+            // one slot per table, null if nothing has to be loaded
+            List<FutureTask<Boolean>> loads = new ArrayList<FutureTask<Boolean>>(tablesCount);
+            for( int i = 0; i < tablesCount; i++ ) {
+                loads.add(null);
+                SpatialVectorTable spatialTable = spatialTables.get(i);
+                if (spatialTable.getStyle().enabled == 0) {
+                    continue;
+                }
+                int missingMinX = Integer.MAX_VALUE;
+                int missingMinY = Integer.MAX_VALUE;
+                int missingMaxX = -1;
+                int missingMaxY = -1;
+                for( int y = minTileY; y <= maxTileY; y++ ) {
+                    for( int x = minTileX; x <= maxTileX; x++ ) {
+                        if (vectorTileCache.get(spatialTable, drawZoomLevel, x, y) == null) {
+                            missingMinX = Math.min(missingMinX, x);
+                            missingMinY = Math.min(missingMinY, y);
+                            missingMaxX = Math.max(missingMaxX, x);
+                            missingMaxY = Math.max(missingMaxY, y);
+                        }
+                    }
+                }
+                if (missingMaxX < 0) {
+                    continue;
+                }
+                ISpatialDatabaseHandler spatialDatabaseHandler = sdManager.getVectorHandler(spatialTable);
+                loaders[i] = new VectorTilesLoader(vectorTileCache, spatialDatabaseHandler, spatialTable, drawZoomLevel,
+                        missingMinX, missingMinY, missingMaxX, missingMaxY, cancelled);
+                FutureTask<Boolean> load = new FutureTask<Boolean>(loaders[i]);
+                loads.set(i, load);
+                allLoads.add(load);
+                getLoadersExecutor().execute(load);
+            }
+
+            /*
+             * then draw in layer order, as soon as each layer is available
+             */
+            for( int i = 0; i < tablesCount; i++ ) {
                 SpatialVectorTable spatialTable = spatialTables.get(i);
                 if (spatialTable.getStyle().enabled == 0) {
                     continue;
                 }
+                FutureTask<Boolean> load = loads.get(i);
+                if (load != null) {
+                    Boolean loaded = null;
+                    while( loaded == null ) {
+                        if (isInterrupted() || sizeHasChanged()) {
+                            // stop working
+                            return;
+                        }
+                        try {
+                            loaded = load.get(LOADER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException e) {
+                            // check again for interruption
+                        } catch (ExecutionException e) {
+                            e.getCause().printStackTrace();
+                            loaded = Boolean.FALSE;
+                        }
+                    }
+                    if (loaded) {
+                        loaders[i].putInCache(vectorTileCache);
+                    }
+                }
                 if (isInterrupted() || sizeHasChanged()) {
                     // stop working
                     return;
                 }
-                ISpatialDatabaseHandler spatialDatabaseHandler = sdManager.getVectorHandler(spatialTable);
 
+                ISpatialDatabaseHandler spatialDatabaseHandler = sdManager.getVectorHandler(spatialTable);
                 Style style4Table = spatialTable.getStyle();
-                GeometryIterator geometryIterator = null;
-                try {
-                    geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds("4326", spatialTable, n, s, e, w);
-                    Paint fill = null;
-                    Paint stroke = null;
-                    if (style4Table.fillcolor != null && style4Table.fillcolor.trim().length() > 0)
-                        fill = spatialDatabaseHandler.getFillPaint4Style(style4Table);
-                    if (style4Table.strokecolor != null && style4Table.strokecolor.trim().length() > 0)
-                        stroke = spatialDatabaseHandler.getStrokePaint4Style(style4Table);
-                    if (spatialTable.isPolygon()) {
-                        PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                                drawZoomLevel);
-                        ShapeWriter wr = new ShapeWriter(pointTransformer);
-                        wr.setRemoveDuplicatePoints(true);
-                        wr.setDecimation(spatialTable.getStyle().decimationFactor);
-                        while( geometryIterator.hasNext() ) {
-                            Geometry geom = geometryIterator.next();
-                            if (geom != null) {
-                                DrawableShape shape = wr.toShape(geom);
-                                if (fill != null)
-                                    shape.fill(canvas, fill);
-                                if (stroke != null)
-                                    shape.draw(canvas, stroke);
-                            }
-                            if (isInterrupted() || sizeHasChanged()) {
-                                // stop working
-                                return;
-                            }
-                        }
-                    } else if (spatialTable.isLine()) {
-                        PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                                drawZoomLevel);
-                        ShapeWriter wr = new ShapeWriter(pointTransformer);
-                        wr.setRemoveDuplicatePoints(true);
-                        wr.setDecimation(spatialTable.getStyle().decimationFactor);
-                        while( geometryIterator.hasNext() ) {
-                            Geometry geom = geometryIterator.next();
-                            DrawableShape shape = wr.toShape(geom);
-                            if (stroke != null)
-                                shape.draw(canvas, stroke);
-                            if (isInterrupted() || sizeHasChanged()) {
-                                // stop working
-                                return;
-                            }
+                Paint fill = null;
+                Paint stroke = null;
+                if (style4Table.fillcolor != null && style4Table.fillcolor.trim().length() > 0)
+                    fill = spatialDatabaseHandler.getFillPaint4Style(style4Table);
+                if (style4Table.strokecolor != null && style4Table.strokecolor.trim().length() > 0)
+                    stroke = spatialDatabaseHandler.getStrokePaint4Style(style4Table);
+
+                WKBShapeWriter pointWriter = null;
+                if (spatialTable.isPoint()) {
+                    pointWriter = new WKBShapeWriter(null, style4Table.shape, style4Table.size);
+                }
+                for( int y = minTileY; y <= maxTileY; y++ ) {
+                    for( int x = minTileX; x <= maxTileX; x++ ) {
+                        VectorTile tile = vectorTileCache.get(spatialTable, drawZoomLevel, x, y);
+                        if (tile == null) {
+                            continue;
                         }
-                    } else if (spatialTable.isPoint()) {
-                        PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                                drawZoomLevel);
-                        ShapeWriter wr = new ShapeWriter(pointTransformer, spatialTable.getStyle().shape,
-                                spatialTable.getStyle().size);
-                        wr.setRemoveDuplicatePoints(true);
-                        wr.setDecimation(spatialTable.getStyle().decimationFactor);
-                        while( geometryIterator.hasNext() ) {
-                            Geometry geom = geometryIterator.next();
-                            DrawableShape shape = wr.toShape(geom);
-                            if (fill != null)
-                                shape.fill(canvas, fill);
-                            if (stroke != null)
-                                shape.draw(canvas, stroke);
-                            if (isInterrupted() || sizeHasChanged()) {
-                                // stop working
-                                return;
+                        canvas.save();
+                        canvas.translate(x * tileSize - drawPosition.x, y * tileSize - drawPosition.y);
+                        canvas.clipRect(0, 0, tileSize, tileSize);
+                        tile.drawPaths(canvas, fill, stroke);
+                        if (pointWriter != null) {
+                            for( int p = 0; p < tile.pointsCount * 2; p += 2 ) {
+                                pointWriter.drawPoint(tile.points[p], tile.points[p + 1], canvas, fill, stroke);
                             }
                         }
+                        canvas.restore();
                     }
-                } finally {
-                    if (geometryIterator != null)
-                        geometryIterator.close();
                 }
             }
         } catch (Exception e1) {
             e1.printStackTrace();
+        } catch (InterruptedException e1) {
+            // stop working
+        } finally {
+            // whatever is still running for this frame is useless now
+            cancelled.set(true);
+            for( FutureTask<Boolean> load : allLoads ) {
+                load.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Draw the clusters of more items that fall in the canvas.
+     */
+    private void drawClusters( Canvas canvas, Point drawPosition, OverlayItemsClusters clusters, double scale ) {
+        float radius = CLUSTER_RADIUS + clusterOutline.getStrokeWidth();
+        clusters.query((drawPosition.x - radius) / scale, //
+                (drawPosition.y - radius) / scale, //
+                (drawPosition.x + canvas.getWidth() + radius) / scale, //
+                (drawPosition.y + canvas.getHeight() + radius) / scale, drawClusters);
+        float textOffset = (clusterText.descent() + clusterText.ascent()) / 2f;
+        for( int i = 0; i < drawClusters.size; ++i ) {
+            if (isInterrupted() || sizeHasChanged()) {
+                // stop working
+                return;
+            }
+            int cluster = drawClusters.items[i];
+            int count = clusters.getCount(cluster);
+            if (count < 2) {
+                continue;
+            }
+            float x = (float) (clusters.getX(cluster) * scale - drawPosition.x);
+            float y = (float) (clusters.getY(cluster) * scale - drawPosition.y);
+            canvas.drawCircle(x, y, CLUSTER_RADIUS, clusterFill);
+            canvas.drawCircle(x, y, CLUSTER_RADIUS, clusterOutline);
+            canvas.drawText(String.valueOf(count), x, y - textOffset, clusterText);
+        }
+    }
+
+    private synchronized ExecutorService getLoadersExecutor() {
+        if (loadersExecutor == null) {
+            int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADER_THREADS));
+            loadersExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread(r, LOADER_THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return loadersExecutor;
     }
+
     @Override
     protected String getThreadName() {
         return THREAD_NAME;
@@ -757,9 +847,66 @@ public abstract class GeopaparazziOverlay extends Overlay {
      * This method should be called after ways have been added to the overlay.
      */
     protected final void populate() {
+        itemsIndexDirty = true;
         super.requestRedraw();
     }
 
+    /**
+     * Get the spatial index of the items, rebuilding it if the items changed.
+     * 
+     * @return the index.
+     */
+    private synchronized OverlayItemsIndex getItemsIndex() {
+        if (!itemsIndexDirty) {
+            return itemsIndex;
+        }
+        // cleared before reading the items, so that changes made meanwhile trigger a new build
+        itemsIndexDirty = false;
+
+        int numberOfItems = itemSize();
+        double[] x = new double[numberOfItems];
+        double[] y = new double[numberOfItems];
+        int[] indexes = new int[numberOfItems];
+        int count = 0;
+        int markerLeft = 0;
+        int markerTop = 0;
+        int markerRight = 0;
+        int markerBottom = 0;
+        if (this.itemDefaultMarker != null) {
+            Rect bounds = this.itemDefaultMarker.getBounds();
+            markerLeft = bounds.left;
+            markerTop = bounds.top;
+            markerRight = bounds.right;
+            markerBottom = bounds.bottom;
+        }
+        for( int itemIndex = 0; itemIndex < numberOfItems; ++itemIndex ) {
+            OverlayItem overlayItem = createItem(itemIndex);
+            if (overlayItem == null) {
+                continue;
+            }
+            synchronized (overlayItem) {
+                GeoPoint point = overlayItem.getPoint();
+                if (point == null) {
+                    continue;
+                }
+                Drawable marker = overlayItem.getMarker();
+                if (marker != null) {
+                    Rect bounds = marker.getBounds();
+                    markerLeft = Math.min(markerLeft, bounds.left);
+                    markerTop = Math.min(markerTop, bounds.top);
+                    markerRight = Math.max(markerRight, bounds.right);
+                    markerBottom = Math.max(markerBottom, bounds.bottom);
+                }
+                x[count] = MercatorProjection.longitudeToPixelX(point.getLongitude(), (byte) 0);
+                y[count] = MercatorProjection.latitudeToPixelY(point.getLatitude(), (byte) 0);
+                indexes[count] = itemIndex;
+                count++;
+            }
+        }
+        itemsIndex = new OverlayItemsIndex(x, y, indexes, count, markerLeft, markerTop, markerRight, markerBottom);
+        return itemsIndex;
+    }
+
     /**
      * Creates an item in this overlay.
      * 
@@ -791,63 +938,94 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
         Point checkItemPoint = new Point();
 
-        synchronized (this.visibleItems) {
-            // iterate over all visible items
-            for( int i = this.visibleItems.size() - 1; i >= 0; --i ) {
-                Integer itemIndex = this.visibleItems.get(i);
+        OverlayItemsIndex index = getItemsIndex();
+        byte zoomLevel = mapView.getMapPosition().getZoomLevel();
+        double scale = 1 << zoomLevel;
+        double eventX = MercatorProjection.longitudeToPixelX(geoPoint.getLongitude(), (byte) 0);
+        double eventY = MercatorProjection.latitudeToPixelY(geoPoint.getLatitude(), (byte) 0);
+        OverlayItemsIndex.Result hitItems = new OverlayItemsIndex.Result();
+
+        OverlayItemsClusters clusters = null;
+        if (zoomLevel <= CLUSTER_MAX_ZOOM) {
+            clusters = index.getClusters(zoomLevel);
+            if (eventType == EventType.TAP) {
+                // a tap on a cluster zooms in on its items, other events are left to the map
+                double radius = CLUSTER_RADIUS / scale;
+                clusters.query(eventX - radius, eventY - radius, eventX + radius, eventY + radius, hitItems);
+                for( int i = hitItems.size - 1; i >= 0; --i ) {
+                    int cluster = hitItems.items[i];
+                    if (clusters.getCount(cluster) < 2) {
+                        continue;
+                    }
+                    double lon = MercatorProjection.pixelXToLongitude(clusters.getX(cluster), (byte) 0);
+                    double lat = MercatorProjection.pixelYToLatitude(clusters.getY(cluster), (byte) 0);
+                    mapView.getController().setCenter(new GeoPoint(lat, lon));
+                    mapView.getController().zoomIn();
+                    return true;
+                }
+            }
+        }
+
+        // only the items whose marker can contain the event, topmost first
+        index.query(eventX - (index.getMarkerRight() + 1) / scale, eventY - (index.getMarkerBottom() + 1) / scale, eventX
+                - (index.getMarkerLeft() - 1) / scale, eventY - (index.getMarkerTop() - 1) / scale, hitItems);
+        for( int i = hitItems.size - 1; i >= 0; --i ) {
+            Integer itemIndex = Integer.valueOf(hitItems.items[i]);
+            if (clusters != null && clusters.isClustered(itemIndex.intValue())) {
+                continue;
+            }
+
+            // get the current item
+            OverlayItem checkOverlayItem = createItem(itemIndex.intValue());
+            if (checkOverlayItem == null) {
+                continue;
+            }
 
-                // get the current item
-                OverlayItem checkOverlayItem = createItem(itemIndex.intValue());
-                if (checkOverlayItem == null) {
+            synchronized (checkOverlayItem) {
+                // make sure that the current item has a position
+                if (checkOverlayItem.getPoint() == null) {
                     continue;
                 }
 
-                synchronized (checkOverlayItem) {
-                    // make sure that the current item has a position
-                    if (checkOverlayItem.getPoint() == null) {
-                        continue;
-                    }
+                checkItemPoint = projection.toPixels(checkOverlayItem.getPoint(), checkItemPoint);
+                // check if the translation to pixel coordinates has failed
+                if (checkItemPoint == null) {
+                    continue;
+                }
 
-                    checkItemPoint = projection.toPixels(checkOverlayItem.getPoint(), checkItemPoint);
-                    // check if the translation to pixel coordinates has failed
-                    if (checkItemPoint == null) {
+                // select the correct marker for the item and get the position
+                Rect checkMarkerBounds;
+                if (checkOverlayItem.getMarker() == null) {
+                    if (this.itemDefaultMarker == null) {
+                        // no marker to draw the item
                         continue;
                     }
+                    checkMarkerBounds = this.itemDefaultMarker.getBounds();
+                } else {
+                    checkMarkerBounds = checkOverlayItem.getMarker().getBounds();
+                }
 
-                    // select the correct marker for the item and get the position
-                    Rect checkMarkerBounds;
-                    if (checkOverlayItem.getMarker() == null) {
-                        if (this.itemDefaultMarker == null) {
-                            // no marker to draw the item
-                            continue;
+                // calculate the bounding box of the marker
+                int checkLeft = checkItemPoint.x + checkMarkerBounds.left;
+                int checkRight = checkItemPoint.x + checkMarkerBounds.right;
+                int checkTop = checkItemPoint.y + checkMarkerBounds.top;
+                int checkBottom = checkItemPoint.y + checkMarkerBounds.bottom;
+
+                // check if the event position is within the bounds of the marker
+                if (checkRight >= eventPosition.x && checkLeft <= eventPosition.x && checkBottom >= eventPosition.y
+                        && checkTop <= eventPosition.y) {
+                    switch( eventType ) {
+                    case LONG_PRESS:
+                        if (onLongPress(itemIndex.intValue())) {
+                            return true;
                         }
-                        checkMarkerBounds = this.itemDefaultMarker.getBounds();
-                    } else {
-                        checkMarkerBounds = checkOverlayItem.getMarker().getBounds();
-                    }
-
-                    // calculate the bounding box of the marker
-                    int checkLeft = checkItemPoint.x + checkMarkerBounds.left;
-                    int checkRight = checkItemPoint.x + checkMarkerBounds.right;
-                    int checkTop = checkItemPoint.y + checkMarkerBounds.top;
-                    int checkBottom = checkItemPoint.y + checkMarkerBounds.bottom;
-
-                    // check if the event position is within the bounds of the marker
-                    if (checkRight >= eventPosition.x && checkLeft <= eventPosition.x && checkBottom >= eventPosition.y
-                            && checkTop <= eventPosition.y) {
-                        switch( eventType ) {
-                        case LONG_PRESS:
-                            if (onLongPress(itemIndex.intValue())) {
-                                return true;
-                            }
-                            break;
+                        break;
 
-                        case TAP:
-                            if (onTap(context, itemIndex.intValue())) {
-                                return true;
-                            }
-                            break;
+                    case TAP:
+                        if (onTap(context, itemIndex.intValue())) {
+                            return true;
                         }
+                        break;
                     }
                 }
             }
@@ -965,6 +1143,13 @@ public abstract class GeopaparazziOverlay extends Overlay {
     }
     @Override
     public void dispose() {
+        synchronized (this) {
+            if (loadersExecutor != null) {
+                loadersExecutor.shutdownNow();
+                loadersExecutor = null;
+            }
+        }
+        vectorTileCache.clear();
         context = null;
         super.dispose();
     }
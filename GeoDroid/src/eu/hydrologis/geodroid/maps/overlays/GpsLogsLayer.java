@@ -0,0 +1,165 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.maps.overlays;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Point;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.hydrologis.geodroid.database.DaoGpsLog;
+
+/**
+ * The gps logs drawn on the map.
+ *
+ * <p>Only the bounds and the style of the logs are kept in memory. When drawing,
+ * each log that intersects the canvas is read from the database for the canvas
+ * area only, enlarged by a margin, and decimated in screen space. The resulting
+ * path is cached per log and reused as long as the zoom level doesn't change and
+ * the canvas stays within the area it was read for.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogsLayer {
+    /**
+     * The min distance in pixels between two drawn points of a log.
+     */
+    private static final int DECIMATION_PIXELS = 2;
+
+    /**
+     * A gps log with its bounds and style and the cache of its path.
+     */
+    public static class GpsLog {
+        private final long id;
+        private final Paint paint;
+        private final double n;
+        private final double s;
+        private final double w;
+        private final double e;
+
+        private final Path path = new Path();
+        private boolean hasPath = false;
+        private byte pathZoomLevel = -1;
+        private long pathMinX;
+        private long pathMinY;
+        private long pathMaxX;
+        private long pathMaxY;
+
+        /**
+         * @param id the id of the log.
+         * @param paint the paint to draw the log with.
+         * @param n the north bound of the log.
+         * @param s the south bound of the log.
+         * @param w the west bound of the log.
+         * @param e the east bound of the log.
+         */
+        public GpsLog( long id, Paint paint, double n, double s, double w, double e ) {
+            this.id = id;
+            this.paint = paint;
+            this.n = n;
+            this.s = s;
+            this.w = w;
+            this.e = e;
+        }
+
+        private void dropPath() {
+            if (hasPath) {
+                path.rewind();
+                hasPath = false;
+            }
+            pathZoomLevel = -1;
+        }
+    }
+
+    private List<GpsLog> gpsLogs = new ArrayList<GpsLog>();
+
+    /**
+     * Set the logs to draw, dropping the cached ones.
+     *
+     * @param gpsLogs the logs.
+     */
+    public synchronized void setGpsLogs( List<GpsLog> gpsLogs ) {
+        this.gpsLogs = new ArrayList<GpsLog>(gpsLogs);
+    }
+
+    /**
+     * Draw the logs that intersect the canvas.
+     *
+     * @param canvas the canvas to draw on.
+     * @param drawPosition the top left position of the canvas, in pixels at the zoom level.
+     * @param zoomLevel the zoom level.
+     */
+    public synchronized void draw( Canvas canvas, Point drawPosition, byte zoomLevel ) {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        long minX = drawPosition.x;
+        long minY = drawPosition.y;
+        long maxX = minX + width;
+        long maxY = minY + height;
+
+        for( GpsLog gpsLog : gpsLogs ) {
+            double halfStroke = gpsLog.paint.getStrokeWidth() / 2.0;
+            double logMinX = MercatorProjection.longitudeToPixelX(gpsLog.w, zoomLevel) - halfStroke;
+            double logMaxX = MercatorProjection.longitudeToPixelX(gpsLog.e, zoomLevel) + halfStroke;
+            double logMinY = MercatorProjection.latitudeToPixelY(gpsLog.n, zoomLevel) - halfStroke;
+            double logMaxY = MercatorProjection.latitudeToPixelY(gpsLog.s, zoomLevel) + halfStroke;
+            if (logMaxX < minX || logMinX > maxX || logMaxY < minY || logMinY > maxY) {
+                // out of sight, don't keep it in memory
+                gpsLog.dropPath();
+                continue;
+            }
+
+            if (gpsLog.pathZoomLevel != zoomLevel || minX < gpsLog.pathMinX || minY < gpsLog.pathMinY
+                    || maxX > gpsLog.pathMaxX || maxY > gpsLog.pathMaxY) {
+                // read the log for the canvas enlarged by half of it on each side
+                gpsLog.dropPath();
+                gpsLog.pathMinX = minX - width / 2;
+                gpsLog.pathMinY = minY - height / 2;
+                gpsLog.pathMaxX = maxX + width / 2;
+                gpsLog.pathMaxY = maxY + height / 2;
+                long mapSize = (long) Tile.TILE_SIZE << zoomLevel;
+                double n = MercatorProjection.pixelYToLatitude(Math.max(0, gpsLog.pathMinY), zoomLevel);
+                double s = MercatorProjection.pixelYToLatitude(Math.min(mapSize, gpsLog.pathMaxY), zoomLevel);
+                double w = MercatorProjection.pixelXToLongitude(Math.max(0, gpsLog.pathMinX), zoomLevel);
+                double e = MercatorProjection.pixelXToLongitude(Math.min(mapSize, gpsLog.pathMaxX), zoomLevel);
+                try {
+                    gpsLog.hasPath = DaoGpsLog.getPathInWorldBoundsByIdDecimated(n, s, w, e, gpsLog.path, zoomLevel,
+                            gpsLog.pathMinX, gpsLog.pathMinY, gpsLog.id, DECIMATION_PIXELS);
+                } catch (IOException ex) {
+                    GPLog.error(this, "Could not read the gps log: " + gpsLog.id, ex); //$NON-NLS-1$
+                    gpsLog.hasPath = false;
+                }
+                gpsLog.pathZoomLevel = zoomLevel;
+            }
+
+            if (gpsLog.hasPath) {
+                canvas.save();
+                canvas.translate(gpsLog.pathMinX - minX, gpsLog.pathMinY - minY);
+                canvas.drawPath(gpsLog.path, gpsLog.paint);
+                canvas.restore();
+            }
+        }
+    }
+}
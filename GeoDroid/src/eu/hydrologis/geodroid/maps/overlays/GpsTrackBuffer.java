@@ -0,0 +1,158 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.maps.overlays;
+
+import org.mapsforge.core.util.MercatorProjection;
+
+import eu.geopaparazzi.library.gps.GpsLogTrack;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Point;
+
+/**
+ * Append only buffer of the track being logged.
+ *
+ * <p>Fixes are taken from the {@link GpsLogTrack} of the logger and projected once,
+ * to mercator pixels at zoom level 0, when they are appended. The drawn {@link Path} is kept for the last zoom level and only
+ * extended with the fixes appended since the previous frame; it is rebuilt only
+ * when the zoom level changes.</p>
+ *
+ * <p>The path is relative to the first fix, to keep the float precision of the
+ * coordinates also at high zoom levels.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsTrackBuffer {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private double[] xs = new double[INITIAL_CAPACITY];
+    private double[] ys = new double[INITIAL_CAPACITY];
+    private int size = 0;
+    private GpsLogTrack track = null;
+
+    private final Path path = new Path();
+    private byte pathZoomLevel = -1;
+    /**
+     * The number of fixes already in the path.
+     */
+    private int pathSize = 0;
+    private long originX;
+    private long originY;
+    private long lastX;
+    private long lastY;
+
+    /**
+     * Append the fixes of the logged track that are not in the buffer yet.
+     *
+     * <p>If the snapshot is of a different track, the buffer is cleared first.</p>
+     *
+     * @param snapshot the snapshot of the logged track.
+     */
+    public synchronized void update( GpsLogTrack.Snapshot snapshot ) {
+        if (snapshot.getTrack() != track) {
+            clear();
+            track = snapshot.getTrack();
+        }
+        for( int i = size; i < snapshot.size(); i++ ) {
+            add(snapshot.getLon(i), snapshot.getLat(i));
+        }
+    }
+
+    private void add( double lon, double lat ) {
+        if (size == xs.length) {
+            double[] newXs = new double[size * 2];
+            double[] newYs = new double[size * 2];
+            System.arraycopy(xs, 0, newXs, 0, size);
+            System.arraycopy(ys, 0, newYs, 0, size);
+            xs = newXs;
+            ys = newYs;
+        }
+        xs[size] = MercatorProjection.longitudeToPixelX(lon, (byte) 0);
+        ys[size] = MercatorProjection.latitudeToPixelY(lat, (byte) 0);
+        size++;
+    }
+
+    /**
+     * Remove all the fixes.
+     */
+    public synchronized void clear() {
+        if (xs.length > INITIAL_CAPACITY) {
+            xs = new double[INITIAL_CAPACITY];
+            ys = new double[INITIAL_CAPACITY];
+        }
+        size = 0;
+        track = null;
+        path.reset();
+        pathSize = 0;
+        pathZoomLevel = -1;
+    }
+
+    /**
+     * @return the number of fixes in the track.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Draw the track.
+     *
+     * @param canvas the canvas to draw on.
+     * @param drawPosition the top left position of the canvas, in pixels at the zoom level.
+     * @param zoomLevel the zoom level.
+     * @param paints the paints to draw the track with, in order.
+     */
+    public synchronized void draw( Canvas canvas, Point drawPosition, byte zoomLevel, Paint... paints ) {
+        if (size < 2) {
+            return;
+        }
+        double scale = 1 << zoomLevel;
+        if (zoomLevel != pathZoomLevel) {
+            path.reset();
+            pathSize = 0;
+            pathZoomLevel = zoomLevel;
+            originX = Math.round(xs[0] * scale);
+            originY = Math.round(ys[0] * scale);
+        }
+        // only the fixes appended since the last frame are added
+        for( int i = pathSize; i < size; i++ ) {
+            long x = Math.round(xs[i] * scale);
+            long y = Math.round(ys[i] * scale);
+            if (i == 0) {
+                path.moveTo(x - originX, y - originY);
+            } else if (x != lastX || y != lastY) {
+                // fixes falling on the same pixel add nothing
+                path.lineTo(x - originX, y - originY);
+            } else {
+                continue;
+            }
+            lastX = x;
+            lastY = y;
+        }
+        pathSize = size;
+
+        canvas.save();
+        canvas.translate(originX - drawPosition.x, originY - drawPosition.y);
+        for( Paint paint : paints ) {
+            canvas.drawPath(path, paint);
+        }
+        canvas.restore();
+    }
+}
@@ -1,33 +1,53 @@
 package eu.hydrologis.geodroid.maps.overlays;
 
-import org.mapsforge.android.maps.Projection;
-import org.mapsforge.core.model.GeoPoint;
-
 import android.graphics.Point;
 import android.graphics.PointF;
 
-import com.vividsolutions.jts.android.PointTransformation;
+import com.vividsolutions.jts.android.BulkPointTransformation;
 import com.vividsolutions.jts.geom.Coordinate;
 
 /**
  * Transformation that handles mapsforge transforms.
  * 
+ * <p>The spherical mercator math of the mapsforge projection is
+ * inlined here with the zoom scale and the draw offset computed once
+ * at creation, so that no intermediate objects are created per point.
+ * As in the mapsforge projection, pixels are truncated to integers.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
-public class MapsforgePointTransformation implements PointTransformation {
-    private byte drawZoom;
-    private Projection projection;
-    private final Point tmpPoint = new Point();
-    private Point drawPosition;
-
-    public MapsforgePointTransformation( Projection projection, Point drawPosition, byte drawZoom ) {
-        this.projection = projection;
-        this.drawPosition = drawPosition;
-        this.drawZoom = drawZoom;
+public class MapsforgePointTransformation implements BulkPointTransformation {
+    private static final double DEG2RAD = Math.PI / 180.0;
+    private static final double FOUR_PI = 4.0 * Math.PI;
+    private static final long TILE_SIZE = 256;
+
+    private final double mapSize;
+    private final int drawX;
+    private final int drawY;
+
+    public MapsforgePointTransformation( Point drawPosition, byte drawZoom ) {
+        this.mapSize = TILE_SIZE << drawZoom;
+        this.drawX = drawPosition.x;
+        this.drawY = drawPosition.y;
     }
 
     public void transform( Coordinate model, PointF view ) {
-        projection.toPoint(new GeoPoint(model.y, model.x), tmpPoint, drawZoom);
-        view.set(tmpPoint.x - drawPosition.x, tmpPoint.y - drawPosition.y);
+        view.set(toPixelX(model.x) - drawX, toPixelY(model.y) - drawY);
+    }
+
+    public void transform( double[] src, float[] dest, int numPoints ) {
+        for( int i = 0; i < numPoints * 2; i += 2 ) {
+            dest[i] = toPixelX(src[i]) - drawX;
+            dest[i + 1] = toPixelY(src[i + 1]) - drawY;
+        }
+    }
+
+    private int toPixelX( double longitude ) {
+        return (int) ((longitude + 180.0) / 360.0 * mapSize);
+    }
+
+    private int toPixelY( double latitude ) {
+        double sinLatitude = Math.sin(latitude * DEG2RAD);
+        return (int) ((0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / FOUR_PI) * mapSize);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.maps.overlays;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The clusters of the overlay items at a zoom level.
+ *
+ * <p>Items are aggregated on a grid of {@link #CELL_SIZE} screen pixels, so that
+ * the number of clusters that can be visible is bounded by the screen area.
+ * Each cluster is placed at the centroid of its items.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class OverlayItemsClusters {
+    /**
+     * The size of the clustering cells, in screen pixels.
+     */
+    public static final int CELL_SIZE = 64;
+
+    private final OverlayItemsIndex index;
+    private final int[] counts;
+    private final double[] xs;
+    private final double[] ys;
+    private final int[] itemsCounts;
+
+    /**
+     * Cluster the items of an index.
+     *
+     * @param itemsIndex the index of the items.
+     * @param zoomLevel the zoom level to cluster for.
+     */
+    public OverlayItemsClusters( OverlayItemsIndex itemsIndex, byte zoomLevel ) {
+        double cellSize = CELL_SIZE / (double) (1 << zoomLevel);
+        int size = itemsIndex.size();
+
+        // assign the items to the cells
+        HashMap<Long, Integer> cells = new HashMap<Long, Integer>();
+        int[] clusterOf = new int[size];
+        int[] cellCounts = new int[size];
+        double[] sumX = new double[size];
+        double[] sumY = new double[size];
+        int[] cellFirstItems = new int[size];
+        int cellsCount = 0;
+        int itemsSize = 0;
+        for( int i = 0; i < size; i++ ) {
+            double x = itemsIndex.getX(i);
+            double y = itemsIndex.getY(i);
+            long cellKey = (((long) (x / cellSize)) << 32) | ((long) (y / cellSize) & 0xFFFFFFFFL);
+            Integer cell = cells.get(cellKey);
+            if (cell == null) {
+                cell = Integer.valueOf(cellsCount++);
+                cells.put(cellKey, cell);
+                cellFirstItems[cell] = Integer.MAX_VALUE;
+            }
+            int c = cell.intValue();
+            clusterOf[i] = c;
+            cellCounts[c]++;
+            sumX[c] += x;
+            sumY[c] += y;
+            cellFirstItems[c] = Math.min(cellFirstItems[c], itemsIndex.getItem(i));
+            itemsSize = Math.max(itemsSize, itemsIndex.getItem(i) + 1);
+        }
+
+        // number the clusters by their first item, to keep the drawing order of the overlay
+        long[] order = new long[cellsCount];
+        for( int c = 0; c < cellsCount; c++ ) {
+            order[c] = (((long) cellFirstItems[c]) << 32) | c;
+        }
+        Arrays.sort(order);
+        int[] idOfCell = new int[cellsCount];
+        counts = new int[cellsCount];
+        xs = new double[cellsCount];
+        ys = new double[cellsCount];
+        int[] ids = new int[cellsCount];
+        for( int id = 0; id < cellsCount; id++ ) {
+            int c = (int) (order[id] & 0xFFFFFFFFL);
+            idOfCell[c] = id;
+            counts[id] = cellCounts[c];
+            xs[id] = sumX[c] / cellCounts[c];
+            ys[id] = sumY[c] / cellCounts[c];
+            ids[id] = id;
+        }
+
+        // remember the size of the cluster each item belongs to
+        itemsCounts = new int[itemsSize];
+        for( int i = 0; i < size; i++ ) {
+            itemsCounts[itemsIndex.getItem(i)] = counts[idOfCell[clusterOf[i]]];
+        }
+
+        index = new OverlayItemsIndex(xs, ys, ids, cellsCount, 0, 0, 0, 0);
+    }
+
+    /**
+     * Find the clusters inside a box.
+     *
+     * @param minX the min x, in mercator pixels at zoom level 0.
+     * @param minY the min y, in mercator pixels at zoom level 0.
+     * @param maxX the max x, in mercator pixels at zoom level 0.
+     * @param maxY the max y, in mercator pixels at zoom level 0.
+     * @param result the result to fill with the cluster ids, sorted by their first item.
+     */
+    public void query( double minX, double minY, double maxX, double maxY, OverlayItemsIndex.Result result ) {
+        index.query(minX, minY, maxX, maxY, result);
+    }
+
+    /**
+     * @param cluster the cluster id.
+     * @return the number of items in the cluster.
+     */
+    public int getCount( int cluster ) {
+        return counts[cluster];
+    }
+
+    /**
+     * @param cluster the cluster id.
+     * @return the x of the cluster, in mercator pixels at zoom level 0.
+     */
+    public double getX( int cluster ) {
+        return xs[cluster];
+    }
+
+    /**
+     * @param cluster the cluster id.
+     * @return the y of the cluster, in mercator pixels at zoom level 0.
+     */
+    public double getY( int cluster ) {
+        return ys[cluster];
+    }
+
+    /**
+     * @param item the overlay index of an item.
+     * @return <code>true</code> if the item is drawn as part of a cluster of more items.
+     */
+    public boolean isClustered( int item ) {
+        return item < itemsCounts.length && itemsCounts[item] > 1;
+    }
+}
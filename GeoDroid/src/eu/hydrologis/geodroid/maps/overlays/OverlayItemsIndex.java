@@ -0,0 +1,318 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.maps.overlays;
+
+import java.util.Arrays;
+
+/**
+ * Immutable packed R-tree of overlay item positions.
+ *
+ * <p>Positions are mercator pixels at zoom level 0, so that the same index serves
+ * every zoom level by scaling the query. Items are sorted along a Morton curve and
+ * packed bottom up in nodes of {@link #NODE_SIZE} entries.</p>
+ *
+ * <p>Being immutable, the index can be queried from any thread while a new one
+ * is built.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class OverlayItemsIndex {
+    private static final int NODE_SIZE = 16;
+    private static final int MAX_ZOOM_LEVEL = 22;
+
+    /**
+     * The reusable result of a query.
+     */
+    public static class Result {
+        /**
+         * The found item indexes, in ascending order.
+         */
+        public int[] items = new int[64];
+        /**
+         * The number of valid entries in {@link #items}.
+         */
+        public int size = 0;
+
+        private void add( int item ) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+    }
+
+    /**
+     * An empty index.
+     */
+    public static final OverlayItemsIndex EMPTY = new OverlayItemsIndex(new double[0], new double[0], new int[0], 0, 0, 0, 0, 0);
+
+    private final int size;
+    private final double[] xs;
+    private final double[] ys;
+    private final int[] items;
+    /**
+     * Node boxes per level as minx, miny, maxx, maxy. Level 0 boxes group the points.
+     */
+    private final double[][] levels;
+    private final int markerLeft;
+    private final int markerTop;
+    private final int markerRight;
+    private final int markerBottom;
+    private final OverlayItemsClusters[] clusters = new OverlayItemsClusters[MAX_ZOOM_LEVEL + 1];
+
+    /**
+     * Build the index.
+     *
+     * @param x the x positions of the items, in mercator pixels at zoom level 0.
+     * @param y the y positions of the items, in mercator pixels at zoom level 0.
+     * @param itemIndexes the overlay indexes of the items.
+     * @param size the number of items.
+     * @param markerLeft the min left bound of the items markers.
+     * @param markerTop the min top bound of the items markers.
+     * @param markerRight the max right bound of the items markers.
+     * @param markerBottom the max bottom bound of the items markers.
+     */
+    public OverlayItemsIndex( double[] x, double[] y, int[] itemIndexes, int size, int markerLeft, int markerTop,
+            int markerRight, int markerBottom ) {
+        this.size = size;
+        this.markerLeft = markerLeft;
+        this.markerTop = markerTop;
+        this.markerRight = markerRight;
+        this.markerBottom = markerBottom;
+        xs = new double[size];
+        ys = new double[size];
+        items = new int[size];
+
+        // sort along the morton curve, packing the code and the position in a long
+        long[] keys = new long[size];
+        for( int i = 0; i < size; i++ ) {
+            long code = morton(x[i], y[i]);
+            keys[i] = (code << 32) | i;
+        }
+        Arrays.sort(keys);
+        for( int i = 0; i < size; i++ ) {
+            int from = (int) (keys[i] & 0xFFFFFFFFL);
+            xs[i] = x[from];
+            ys[i] = y[from];
+            items[i] = itemIndexes[from];
+        }
+
+        // pack the levels
+        int levelsCount = 1;
+        for( int n = nodesCount(size); n > 1; n = nodesCount(n) ) {
+            levelsCount++;
+        }
+        levels = new double[levelsCount][];
+        double[] boxes = new double[nodesCount(size) * 4];
+        for( int node = 0; node * NODE_SIZE < size; node++ ) {
+            int from = node * NODE_SIZE;
+            int to = Math.min(size, from + NODE_SIZE);
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for( int i = from; i < to; i++ ) {
+                minX = Math.min(minX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+                maxX = Math.max(maxX, xs[i]);
+                maxY = Math.max(maxY, ys[i]);
+            }
+            boxes[node * 4] = minX;
+            boxes[node * 4 + 1] = minY;
+            boxes[node * 4 + 2] = maxX;
+            boxes[node * 4 + 3] = maxY;
+        }
+        levels[0] = boxes;
+        for( int level = 1; level < levelsCount; level++ ) {
+            double[] children = levels[level - 1];
+            int childrenCount = children.length / 4;
+            boxes = new double[nodesCount(childrenCount) * 4];
+            for( int node = 0; node * NODE_SIZE < childrenCount; node++ ) {
+                int from = node * NODE_SIZE;
+                int to = Math.min(childrenCount, from + NODE_SIZE);
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for( int c = from; c < to; c++ ) {
+                    minX = Math.min(minX, children[c * 4]);
+                    minY = Math.min(minY, children[c * 4 + 1]);
+                    maxX = Math.max(maxX, children[c * 4 + 2]);
+                    maxY = Math.max(maxY, children[c * 4 + 3]);
+                }
+                boxes[node * 4] = minX;
+                boxes[node * 4 + 1] = minY;
+                boxes[node * 4 + 2] = maxX;
+                boxes[node * 4 + 3] = maxY;
+            }
+            levels[level] = boxes;
+        }
+    }
+
+    private static int nodesCount( int entries ) {
+        return Math.max(1, (entries + NODE_SIZE - 1) / NODE_SIZE);
+    }
+
+    /**
+     * Interleave the bits of the positions quantized to 16 bits.
+     */
+    private static long morton( double x, double y ) {
+        int qx = (int) Math.max(0, Math.min(0xFFFF, x / 256.0 * 0xFFFF));
+        int qy = (int) Math.max(0, Math.min(0xFFFF, y / 256.0 * 0xFFFF));
+        return spread(qx) | (spread(qy) << 1);
+    }
+
+    private static long spread( int v ) {
+        long x = v & 0xFFFFL;
+        x = (x | (x << 8)) & 0x00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0FL;
+        x = (x | (x << 2)) & 0x33333333L;
+        x = (x | (x << 1)) & 0x55555555L;
+        return x;
+    }
+
+    /**
+     * @return the number of indexed items.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param position the position in the index, from 0 to {@link #size()}.
+     * @return the x of the entry, in mercator pixels at zoom level 0.
+     */
+    double getX( int position ) {
+        return xs[position];
+    }
+
+    /**
+     * @param position the position in the index, from 0 to {@link #size()}.
+     * @return the y of the entry, in mercator pixels at zoom level 0.
+     */
+    double getY( int position ) {
+        return ys[position];
+    }
+
+    /**
+     * @param position the position in the index, from 0 to {@link #size()}.
+     * @return the overlay index of the entry.
+     */
+    int getItem( int position ) {
+        return items[position];
+    }
+
+    /**
+     * @return the min left bound of the markers, in screen pixels relative to the item position.
+     */
+    public int getMarkerLeft() {
+        return markerLeft;
+    }
+
+    /**
+     * @return the min top bound of the markers, in screen pixels relative to the item position.
+     */
+    public int getMarkerTop() {
+        return markerTop;
+    }
+
+    /**
+     * @return the max right bound of the markers, in screen pixels relative to the item position.
+     */
+    public int getMarkerRight() {
+        return markerRight;
+    }
+
+    /**
+     * @return the max bottom bound of the markers, in screen pixels relative to the item position.
+     */
+    public int getMarkerBottom() {
+        return markerBottom;
+    }
+
+    /**
+     * Get the clusters of the items at a zoom level.
+     *
+     * <p>The clusters are computed once per zoom level and live as long as the index,
+     * so they are dropped together with it when the items change.</p>
+     *
+     * @param zoomLevel the zoom level.
+     * @return the clusters.
+     */
+    public OverlayItemsClusters getClusters( byte zoomLevel ) {
+        if (zoomLevel < 0 || zoomLevel > MAX_ZOOM_LEVEL) {
+            return new OverlayItemsClusters(this, zoomLevel);
+        }
+        synchronized (clusters) {
+            if (clusters[zoomLevel] == null) {
+                clusters[zoomLevel] = new OverlayItemsClusters(this, zoomLevel);
+            }
+            return clusters[zoomLevel];
+        }
+    }
+
+    /**
+     * Find the items inside a box.
+     *
+     * @param minX the min x, in mercator pixels at zoom level 0.
+     * @param minY the min y, in mercator pixels at zoom level 0.
+     * @param maxX the max x, in mercator pixels at zoom level 0.
+     * @param maxY the max y, in mercator pixels at zoom level 0.
+     * @param result the result to fill, sorted by ascending item index.
+     */
+    public void query( double minX, double minY, double maxX, double maxY, Result result ) {
+        result.size = 0;
+        if (size == 0) {
+            return;
+        }
+        int top = levels.length - 1;
+        // explicit stack of (level, node) pairs
+        int[] stack = new int[2 * NODE_SIZE * levels.length + 2];
+        int stackSize = 0;
+        for( int node = 0; node < levels[top].length / 4; node++ ) {
+            stack[stackSize++] = top;
+            stack[stackSize++] = node;
+        }
+        while( stackSize > 0 ) {
+            int node = stack[--stackSize];
+            int level = stack[--stackSize];
+            double[] boxes = levels[level];
+            if (boxes[node * 4] > maxX || boxes[node * 4 + 2] < minX || boxes[node * 4 + 1] > maxY
+                    || boxes[node * 4 + 3] < minY) {
+                continue;
+            }
+            int from = node * NODE_SIZE;
+            if (level == 0) {
+                int to = Math.min(size, from + NODE_SIZE);
+                for( int i = from; i < to; i++ ) {
+                    if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY) {
+                        result.add(items[i]);
+                    }
+                }
+            } else {
+                int to = Math.min(levels[level - 1].length / 4, from + NODE_SIZE);
+                for( int c = from; c < to; c++ ) {
+                    stack[stackSize++] = level - 1;
+                    stack[stackSize++] = c;
+                }
+            }
+        }
+        // keep the drawing order of the overlay
+        Arrays.sort(result.items, 0, result.size);
+    }
+}
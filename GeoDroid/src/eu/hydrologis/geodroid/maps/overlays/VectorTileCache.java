@@ -0,0 +1,247 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.maps.overlays;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+import com.vividsolutions.jts.android.WKBShapeWriter;
+
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialVectorTable;
+
+/**
+ * LRU cache of projected spatialite vector data, split in map tiles.
+ *
+ * <p>Every tile holds the already decimated and projected geometries of one
+ * {@link SpatialVectorTable} at one zoom level, in pixels relative to the tile's
+ * upper left corner, clipped to the tile and a buffer around it. Every feature keeps
+ * its own paths, so that overlapping features are drawn one over the other. The cache is bounded by an estimate of the memory used by the tiles.</p>
+ *
+ * <p>Not thread safe, it is meant to be used by the overlay drawing thread only.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class VectorTileCache {
+    /**
+     * The size of the cached tiles in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    private static final int PATH_OVERHEAD_BYTES = 64;
+    private static final int VERTEX_BYTES = 12;
+    private static final int TILE_OVERHEAD_BYTES = 128;
+
+    /**
+     * A cached tile.
+     */
+    public static class VectorTile {
+        private static final Path EMPTY_PATH = new Path();
+
+        private final List<Path> polygonPaths = new ArrayList<Path>();
+        private final List<Path> linePaths = new ArrayList<Path>();
+        /**
+         * Point positions as x1, y1, x2, y2, ...
+         */
+        public float[] points = new float[0];
+        /**
+         * The number of points in {@link #points}.
+         */
+        public int pointsCount = 0;
+        /**
+         * The decimation the tile has been built with.
+         */
+        public final float decimationFactor;
+
+        private long vertexCount = 0;
+        private int pathsCount = 0;
+
+        public VectorTile( float decimationFactor ) {
+            this.decimationFactor = decimationFactor;
+        }
+
+        /**
+         * Add a projected feature to the tile.
+         *
+         * <p>The tile keeps the paths, empty ones are not kept.</p>
+         *
+         * @param polygons the polygonal part of the feature.
+         * @param lines the linear part of the feature.
+         * @param vertices the number of vertices in the paths.
+         */
+        public void addFeature( Path polygons, Path lines, int vertices ) {
+            polygonPaths.add(keepPath(polygons));
+            linePaths.add(keepPath(lines));
+            vertexCount += vertices;
+        }
+
+        private Path keepPath( Path path ) {
+            if (path.isEmpty()) {
+                return EMPTY_PATH;
+            }
+            pathsCount++;
+            return path;
+        }
+
+        /**
+         * Draw the polygons and lines of the tile, one feature at a time.
+         *
+         * @param canvas the canvas to draw on.
+         * @param fill the fill paint, can be <code>null</code>.
+         * @param stroke the stroke paint, can be <code>null</code>.
+         */
+        public void drawPaths( Canvas canvas, Paint fill, Paint stroke ) {
+            for( int i = 0; i < polygonPaths.size(); i++ ) {
+                WKBShapeWriter.drawPaths(canvas, polygonPaths.get(i), linePaths.get(i), fill, stroke);
+            }
+        }
+
+        /**
+         * Add a point to the tile.
+         *
+         * @param x the x position relative to the tile's origin.
+         * @param y the y position relative to the tile's origin.
+         */
+        public void addPoint( float x, float y ) {
+            int index = pointsCount * 2;
+            if (index + 2 > points.length) {
+                float[] newPoints = new float[Math.max(16, points.length * 2)];
+                System.arraycopy(points, 0, newPoints, 0, index);
+                points = newPoints;
+            }
+            points[index] = x;
+            points[index + 1] = y;
+            pointsCount++;
+        }
+
+        /**
+         * @return an estimate of the memory used by the tile in bytes.
+         */
+        public long getSizeInBytes() {
+            return TILE_OVERHEAD_BYTES + pathsCount * PATH_OVERHEAD_BYTES + vertexCount * VERTEX_BYTES + points.length * 4;
+        }
+    }
+
+    private static class TileKey {
+        SpatialVectorTable table;
+        byte zoom;
+        int x;
+        int y;
+
+        TileKey( SpatialVectorTable table, byte zoom, int x, int y ) {
+            this.table = table;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = table.hashCode();
+            result = 31 * result + zoom;
+            result = 31 * result + x;
+            result = 31 * result + y;
+            return result;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) obj;
+            return table == other.table && zoom == other.zoom && x == other.x && y == other.y;
+        }
+    }
+
+    private final LinkedHashMap<TileKey, VectorTile> tiles = new LinkedHashMap<TileKey, VectorTile>(64, 0.75f, true);
+    private final TileKey probeKey = new TileKey(null, (byte) 0, 0, 0);
+    private final long maxSizeInBytes;
+    private long sizeInBytes = 0;
+
+    /**
+     * @param maxSizeInBytes the memory budget of the cache.
+     */
+    public VectorTileCache( long maxSizeInBytes ) {
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * Get a cached tile.
+     *
+     * @param table the table.
+     * @param zoom the zoom level.
+     * @param x the tile x.
+     * @param y the tile y.
+     * @return the tile or <code>null</code>, if not cached or cached with a different decimation.
+     */
+    public VectorTile get( SpatialVectorTable table, byte zoom, int x, int y ) {
+        probeKey.table = table;
+        probeKey.zoom = zoom;
+        probeKey.x = x;
+        probeKey.y = y;
+        VectorTile tile = tiles.get(probeKey);
+        probeKey.table = null;
+        if (tile != null && tile.decimationFactor != table.getStyle().decimationFactor) {
+            return null;
+        }
+        return tile;
+    }
+
+    /**
+     * Add a tile to the cache, evicting the least recently used ones if over budget.
+     *
+     * @param table the table.
+     * @param zoom the zoom level.
+     * @param x the tile x.
+     * @param y the tile y.
+     * @param tile the tile to add.
+     */
+    public void put( SpatialVectorTable table, byte zoom, int x, int y, VectorTile tile ) {
+        VectorTile old = tiles.put(new TileKey(table, zoom, x, y), tile);
+        if (old != null) {
+            sizeInBytes -= old.getSizeInBytes();
+        }
+        sizeInBytes += tile.getSizeInBytes();
+
+        Iterator<Entry<TileKey, VectorTile>> iterator = tiles.entrySet().iterator();
+        while( sizeInBytes > maxSizeInBytes && iterator.hasNext() ) {
+            Entry<TileKey, VectorTile> eldest = iterator.next();
+            if (eldest.getValue() == tile) {
+                // never evict what was just added
+                continue;
+            }
+            sizeInBytes -= eldest.getValue().getSizeInBytes();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Remove all tiles.
+     */
+    public void clear() {
+        tiles.clear();
+        sizeInBytes = 0;
+    }
+}
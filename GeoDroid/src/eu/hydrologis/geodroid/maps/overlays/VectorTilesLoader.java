@@ -0,0 +1,242 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.maps.overlays;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mapsforge.core.util.MercatorProjection;
+
+import android.graphics.Path;
+import android.graphics.Point;
+import android.graphics.RectF;
+
+import com.vividsolutions.jts.android.WKBShapeWriter;
+
+import eu.geopaparazzi.spatialite.database.spatial.core.GeometryIterator;
+import eu.geopaparazzi.spatialite.database.spatial.core.ISpatialDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialVectorTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.Style;
+import eu.hydrologis.geodroid.maps.overlays.VectorTileCache.VectorTile;
+
+/**
+ * Loads a range of not yet cached tiles of a spatialite vector table.
+ *
+ * <p>The loader is created on the drawing thread, which also puts the result in the
+ * {@link VectorTileCache} through {@link #putInCache(VectorTileCache)}, so that the
+ * query and the projection of the geometries can run on a worker thread, on a
+ * connection borrowed from the database's pool.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class VectorTilesLoader implements Callable<Boolean> {
+    /**
+     * The distance in pixels within which vertices are simplified away.
+     */
+    private static final float SIMPLIFICATION_TOLERANCE = 0.5f;
+
+    private final ISpatialDatabaseHandler spatialDatabaseHandler;
+    private final SpatialVectorTable spatialTable;
+    private final byte zoom;
+    private final int minTileX;
+    private final int minTileY;
+    private final int cols;
+    private final int rows;
+    private final VectorTile[] newTiles;
+    private final AtomicBoolean cancelled;
+
+    private final RectF featureBounds = new RectF();
+    private final RectF tileClip = new RectF();
+
+    /**
+     * Create the loader for the tiles of a range that are not in the cache yet.
+     *
+     * @param cache the tiles cache, only read here.
+     * @param spatialDatabaseHandler the handler of the table.
+     * @param spatialTable the table to load.
+     * @param zoom the zoom level.
+     * @param minTileX the first tile x of the range.
+     * @param minTileY the first tile y of the range.
+     * @param maxTileX the last tile x of the range.
+     * @param maxTileY the last tile y of the range.
+     * @param cancelled the flag with which the drawing thread cancels the load.
+     */
+    public VectorTilesLoader( VectorTileCache cache, ISpatialDatabaseHandler spatialDatabaseHandler,
+            SpatialVectorTable spatialTable, byte zoom, int minTileX, int minTileY, int maxTileX, int maxTileY,
+            AtomicBoolean cancelled ) {
+        this.spatialDatabaseHandler = spatialDatabaseHandler;
+        this.spatialTable = spatialTable;
+        this.zoom = zoom;
+        this.minTileX = minTileX;
+        this.minTileY = minTileY;
+        this.cancelled = cancelled;
+        cols = maxTileX - minTileX + 1;
+        rows = maxTileY - minTileY + 1;
+
+        float decimationFactor = spatialTable.getStyle().decimationFactor;
+        newTiles = new VectorTile[cols * rows];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                if (cache.get(spatialTable, zoom, minTileX + c, minTileY + r) == null) {
+                    newTiles[r * cols + c] = new VectorTile(decimationFactor);
+                }
+            }
+        }
+    }
+
+    public ISpatialDatabaseHandler getSpatialDatabaseHandler() {
+        return spatialDatabaseHandler;
+    }
+
+    /**
+     * Query the range and put the projected geometries in the new tiles.
+     *
+     * @return <code>false</code> if the load has been cancelled.
+     */
+    public Boolean call() throws Exception {
+        int tileSize = VectorTileCache.TILE_SIZE;
+        Style style4Table = spatialTable.getStyle();
+        // features just outside of a tile can still paint into it with strokes and markers
+        int buffer = (int) Math.ceil(style4Table.size + style4Table.width);
+
+        Point origin = new Point(minTileX * tileSize, minTileY * tileSize);
+        long mapSize = (long) tileSize << zoom;
+        double w = MercatorProjection.pixelXToLongitude(Math.max(0, origin.x - buffer), zoom);
+        double e = MercatorProjection.pixelXToLongitude(Math.min(mapSize, origin.x + cols * tileSize + buffer), zoom);
+        double n = MercatorProjection.pixelYToLatitude(Math.max(0, origin.y - buffer), zoom);
+        double s = MercatorProjection.pixelYToLatitude(Math.min(mapSize, origin.y + rows * tileSize + buffer), zoom);
+
+        MapsforgePointTransformation pointTransformer = new MapsforgePointTransformation(origin, zoom);
+        WKBShapeWriter wr;
+        if (spatialTable.isPoint()) {
+            wr = new WKBShapeWriter(pointTransformer, style4Table.shape, style4Table.size);
+        } else {
+            wr = new WKBShapeWriter(pointTransformer);
+        }
+        wr.setRemoveDuplicatePoints(true);
+        wr.setDecimation(Math.min(style4Table.decimationFactor, getDecimation(mapSize, n, s)));
+        wr.setSimplificationTolerance(SIMPLIFICATION_TOLERANCE);
+
+        Path polygonPath = newPolygonPath();
+        Path linePath = new Path();
+        GeometryIterator geometryIterator = null;
+        try {
+            geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds("4326", spatialTable, n, s, e, w);
+            while( geometryIterator.hasNext() ) {
+                if (cancelled.get()) {
+                    return false;
+                }
+                byte[] geomBytes = geometryIterator.nextWKB();
+                if (geomBytes == null || !wr.read(geomBytes)) {
+                    continue;
+                }
+
+                if (wr.getBounds(featureBounds)) {
+                    int fromC = Math.max(0, (int) Math.floor((featureBounds.left - buffer) / tileSize));
+                    int toC = Math.min(cols - 1, (int) Math.floor((featureBounds.right + buffer) / tileSize));
+                    int fromR = Math.max(0, (int) Math.floor((featureBounds.top - buffer) / tileSize));
+                    int toR = Math.min(rows - 1, (int) Math.floor((featureBounds.bottom + buffer) / tileSize));
+                    for( int r = fromR; r <= toR; r++ ) {
+                        for( int c = fromC; c <= toC; c++ ) {
+                            VectorTile tile = newTiles[r * cols + c];
+                            if (tile == null) {
+                                continue;
+                            }
+                            // only what can paint into the tile is kept, large features are not copied whole
+                            tileClip.set(c * tileSize - buffer, r * tileSize - buffer, (c + 1) * tileSize + buffer, (r + 1)
+                                    * tileSize + buffer);
+                            int vertices = wr.appendClipped(polygonPath, linePath, tileClip, -c * tileSize, -r * tileSize);
+                            if (vertices > 0) {
+                                tile.addFeature(polygonPath, linePath, vertices);
+                                // the tile keeps the non empty paths
+                                if (!polygonPath.isEmpty())
+                                    polygonPath = newPolygonPath();
+                                if (!linePath.isEmpty())
+                                    linePath = new Path();
+                            }
+                        }
+                    }
+                }
+
+                float[] points = wr.getPoints();
+                for( int p = 0; p < wr.getPointsCount() * 2; p += 2 ) {
+                    float px = points[p];
+                    float py = points[p + 1];
+                    int fromC = Math.max(0, (int) Math.floor((px - buffer) / tileSize));
+                    int toC = Math.min(cols - 1, (int) Math.floor((px + buffer) / tileSize));
+                    int fromR = Math.max(0, (int) Math.floor((py - buffer) / tileSize));
+                    int toR = Math.min(rows - 1, (int) Math.floor((py + buffer) / tileSize));
+                    for( int r = fromR; r <= toR; r++ ) {
+                        for( int c = fromC; c <= toC; c++ ) {
+                            VectorTile tile = newTiles[r * cols + c];
+                            if (tile != null)
+                                tile.addPoint(px - c * tileSize, py - r * tileSize);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (geometryIterator != null)
+                geometryIterator.close();
+        }
+        return true;
+    }
+
+    /**
+     * @return a new path for the polygons of a feature, in which inner rings are holes.
+     */
+    private static Path newPolygonPath() {
+        Path path = new Path();
+        path.setFillType(Path.FillType.EVEN_ODD);
+        return path;
+    }
+
+    /**
+     * Get the model decimation that is safe for the level of detail of the zoom level.
+     *
+     * <p>The mercator y scale grows with the latitude, so the degrees per pixel
+     * are taken at the latitude of the range closest to the poles.</p>
+     *
+     * @param mapSize the size of the world in pixels.
+     * @param n the north bound.
+     * @param s the south bound.
+     * @return the decimation distance in degrees.
+     */
+    private static double getDecimation( long mapSize, double n, double s ) {
+        double maxLatitude = Math.min(Math.max(Math.abs(n), Math.abs(s)), MercatorProjection.LATITUDE_MAX);
+        double degreesPerPixel = 360.0 / mapSize * Math.cos(Math.toRadians(maxLatitude));
+        return degreesPerPixel * SIMPLIFICATION_TOLERANCE;
+    }
+
+    /**
+     * Put the loaded tiles in the cache.
+     *
+     * <p>To be called from the drawing thread once {@link #call()} returned <code>true</code>.</p>
+     *
+     * @param cache the cache to fill.
+     */
+    public void putInCache( VectorTileCache cache ) {
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                VectorTile tile = newTiles[r * cols + c];
+                if (tile != null)
+                    cache.put(spatialTable, zoom, minTileX + c, minTileY + r, tile);
+            }
+        }
+    }
+}
@@ -27,8 +27,6 @@ import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.Tile;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geodroid.library.util.FileUtilities;
 import eu.geodroid.library.util.Utilities;
@@ -55,6 +53,7 @@ public class CustomTileDownloader extends TileDownloader {
     private String tilePart;
     private boolean isFile = false;
     private TILESCHEMA type = TILESCHEMA.google;
+    private final TileBitmapDecoder bitmapDecoder = new TileBitmapDecoder();
 
     @SuppressWarnings("nls")
     public CustomTileDownloader( List<String> fileLines, String parentPath ) {
@@ -189,29 +188,15 @@ public class CustomTileDownloader extends TileDownloader {
 
             URL url = new URL(sb.toString());
             InputStream inputStream = url.openStream();
-            Bitmap decodedBitmap = null;
             try {
-                decodedBitmap = BitmapFactory.decodeStream(inputStream);
-            } catch (Exception e) {
-                // ignore and set the image as empty
-                if (GPLog.LOG_HEAVY)
-                    GPLog.addLogEntry(this, "Could not find image: " + sb.toString()); //$NON-NLS-1$
+                if (!bitmapDecoder.decode(inputStream, bitmap)) {
+                    // the image is set as empty
+                    if (GPLog.LOG_HEAVY)
+                        GPLog.addLogEntry(this, "Could not find image: " + sb.toString()); //$NON-NLS-1$
+                }
             } finally {
                 inputStream.close();
             }
-            // check if the input stream could be decoded into a bitmap
-            if (decodedBitmap != null) {
-                // copy all pixels from the decoded bitmap to the color array
-                decodedBitmap.getPixels(this.pixels, 0, Tile.TILE_SIZE, 0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
-                decodedBitmap.recycle();
-            } else {
-                for( int i = 0; i < pixels.length; i++ ) {
-                    pixels[i] = Color.WHITE;
-                }
-            }
-
-            // copy all pixels from the color array to the tile bitmap
-            bitmap.setPixels(this.pixels, 0, Tile.TILE_SIZE, 0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
             return true;
         } catch (UnknownHostException e) {
             e.printStackTrace();
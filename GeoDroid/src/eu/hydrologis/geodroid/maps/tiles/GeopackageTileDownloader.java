@@ -23,11 +23,10 @@ import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.Tile;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.spatialite.database.spatial.SpatialDatabasesManager;
 import eu.geopaparazzi.spatialite.database.spatial.core.ISpatialDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.MbtilesDatabaseHandler;
 import eu.geopaparazzi.spatialite.database.spatial.core.SpatialRasterTable;
 
 /**
@@ -42,6 +41,7 @@ public class GeopackageTileDownloader extends TileDownloader {
 
     private String tilePart;
     private ISpatialDatabaseHandler spatialDatabaseHandler;
+    private final TileBitmapDecoder bitmapDecoder = new TileBitmapDecoder();
 
     @SuppressWarnings("nls")
     public GeopackageTileDownloader( SpatialRasterTable table ) throws jsqlite.Exception {
@@ -90,30 +90,21 @@ public class GeopackageTileDownloader extends TileDownloader {
         try {
             Tile tile = mapGeneratorJob.tile;
 
-            String tileQuery = getTilePath(tile);
-
-            byte[] rasterBytes = spatialDatabaseHandler.getRasterTile(tileQuery);
-            Bitmap decodedBitmap = null;
-            try {
-                decodedBitmap = BitmapFactory.decodeByteArray(rasterBytes, 0, rasterBytes.length);
-            } catch (Exception e) {
-                // ignore and set the image as empty
-                if (GPLog.LOG_HEAVY)
-                    GPLog.addLogEntry(this, "Could not find image: " + tileQuery); //$NON-NLS-1$
-            }
-            // check if the input stream could be decoded into a bitmap
-            if (decodedBitmap != null) {
-                // copy all pixels from the decoded bitmap to the color array
-                decodedBitmap.getPixels(this.pixels, 0, Tile.TILE_SIZE, 0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
-                decodedBitmap.recycle();
+            String tileQuery;
+            byte[] rasterBytes;
+            if (spatialDatabaseHandler instanceof MbtilesDatabaseHandler) {
+                tileQuery = null;
+                rasterBytes = ((MbtilesDatabaseHandler) spatialDatabaseHandler).getTile(tile.zoomLevel, (int) tile.tileX,
+                        (int) tile.tileY);
             } else {
-                for( int i = 0; i < pixels.length; i++ ) {
-                    pixels[i] = Color.WHITE;
-                }
+                tileQuery = getTilePath(tile);
+                rasterBytes = spatialDatabaseHandler.getRasterTile(tileQuery);
+            }
+            if (!bitmapDecoder.decode(rasterBytes, rasterBytes != null ? rasterBytes.length : 0, bitmap)) {
+                // the image is set as empty
+                if (GPLog.LOG_HEAVY)
+                    GPLog.addLogEntry(this, "Could not find image: " + (tileQuery != null ? tileQuery : tile)); //$NON-NLS-1$
             }
-
-            // copy all pixels from the color array to the tile bitmap
-            bitmap.setPixels(this.pixels, 0, Tile.TILE_SIZE, 0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,153 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.maps.tiles;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+/**
+ * Decodes encoded tile images into the tile bitmaps of the map generators.
+ *
+ * <p>Where the platform supports it (API 11+), the image is decoded straight into
+ * the target bitmap through <code>BitmapFactory.Options.inBitmap</code>, without
+ * allocating anything. Else it is decoded into a new bitmap and drawn onto the target
+ * with a single copy.</p>
+ *
+ * <p>An instance reuses its buffers, so it must be used by one thread only.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TileBitmapDecoder {
+    /**
+     * The <code>inBitmap</code> option, looked up by reflection since the project builds against API 10.
+     */
+    private static final Field IN_BITMAP_FIELD = findInBitmapField();
+
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+    private final Canvas canvas = new Canvas();
+    private boolean canDecodeInPlace = IN_BITMAP_FIELD != null;
+    private byte[] readBuffer = new byte[32 * 1024];
+
+    public TileBitmapDecoder() {
+        options.inTempStorage = new byte[16 * 1024];
+    }
+
+    private static Field findInBitmapField() {
+        // the field exists only from API 11 on
+        try {
+            return BitmapFactory.Options.class.getField("inBitmap"); //$NON-NLS-1$
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode an image into a tile bitmap.
+     *
+     * <p>If the image can't be decoded, the tile is set to white.</p>
+     *
+     * @param data the encoded image, can be <code>null</code>.
+     * @param length the number of bytes of the image in <code>data</code>.
+     * @param target the tile bitmap to fill.
+     * @return <code>true</code> if the image could be decoded.
+     */
+    public boolean decode( byte[] data, int length, Bitmap target ) {
+        if (data == null || length == 0) {
+            target.eraseColor(Color.WHITE);
+            return false;
+        }
+        options.inPreferredConfig = target.getConfig();
+
+        if (canDecodeInPlace) {
+            try {
+                IN_BITMAP_FIELD.set(options, target);
+                Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, length, options);
+                if (decoded == target) {
+                    return true;
+                }
+                if (decoded != null) {
+                    // decoded elsewhere, still better than nothing
+                    drawInto(decoded, target);
+                    return true;
+                }
+            } catch (IllegalArgumentException e) {
+                // the image doesn't fit the tile bitmap, don't try again
+                canDecodeInPlace = false;
+            } catch (IllegalAccessException e) {
+                canDecodeInPlace = false;
+            } finally {
+                try {
+                    IN_BITMAP_FIELD.set(options, null);
+                } catch (IllegalAccessException e) {
+                    // ignore
+                }
+            }
+        }
+
+        Bitmap decoded = null;
+        try {
+            decoded = BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (Exception e) {
+            // treated as missing
+        }
+        if (decoded == null) {
+            target.eraseColor(Color.WHITE);
+            return false;
+        }
+        drawInto(decoded, target);
+        return true;
+    }
+
+    /**
+     * Read a stream fully and decode it into a tile bitmap.
+     *
+     * @param inputStream the stream of the encoded image, closed by the caller.
+     * @param target the tile bitmap to fill.
+     * @return <code>true</code> if the image could be decoded.
+     * @throws IOException
+     */
+    public boolean decode( InputStream inputStream, Bitmap target ) throws IOException {
+        int length = 0;
+        int read;
+        while( (read = inputStream.read(readBuffer, length, readBuffer.length - length)) != -1 ) {
+            length += read;
+            if (length == readBuffer.length) {
+                byte[] newBuffer = new byte[readBuffer.length * 2];
+                System.arraycopy(readBuffer, 0, newBuffer, 0, length);
+                readBuffer = newBuffer;
+            }
+        }
+        return decode(readBuffer, length, target);
+    }
+
+    private void drawInto( Bitmap decoded, Bitmap target ) {
+        if (decoded.hasAlpha()) {
+            // don't let the previous tile show through
+            target.eraseColor(Color.TRANSPARENT);
+        }
+        canvas.setBitmap(target);
+        canvas.drawBitmap(decoded, 0, 0, null);
+        decoded.recycle();
+    }
+}
@@ -76,6 +76,7 @@ public interface Constants {
     public static final String PREFS_KEY_MAP4PROPERTIES = "PREFS_KEY_MAP4PROPERTIES";
 
     public static final String PREFS_KEY_AUTOMATIC_CENTER_GPS = "enable_automatic_center_on_gps";
+    public static final String PREFS_KEY_GPSLOG_COMPACT_STORAGE = "PREFS_KEY_GPSLOG_COMPACT_STORAGE";
 
     public static final String PREFS_KEY_ZOOM1 = "labels_zoom1";
     public static final String PREFS_KEY_ZOOM1_LABELLENGTH = "labels_length_zoom1";
@@ -24,11 +24,8 @@ import static eu.hydrologis.geodroid.util.Constants.PREF_KEY_USER;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.TreeSet;
 
 import android.app.Activity;
@@ -57,10 +54,8 @@ import eu.geodroid.library.util.Utilities;
 import eu.geopaparazzi.library.webproject.ReturnCodes;
 import eu.geopaparazzi.library.webproject.WebProjectManager;
 import eu.hydrologis.geodroid.database.DaoBookmarks;
-import eu.hydrologis.geodroid.database.DaoGpsLog;
 import eu.hydrologis.geodroid.database.DaoImages;
 import eu.hydrologis.geodroid.database.DaoNotes;
-import eu.hydrologis.geodroid.maps.LogMapItem;
 import eu.hydrologis.geodroid.R;
 
 /**
@@ -197,24 +192,7 @@ public class ExportActivity extends Activity {
                     /*
                      * add gps logs
                      */
-                    List<LogMapItem> gpslogs = DaoGpsLog.getGpslogs();
-                    HashMap<Long, LogMapItem> mapitemsMap = new HashMap<Long, LogMapItem>();
-                    for( LogMapItem log : gpslogs ) {
-                        mapitemsMap.put(log.getId(), log);
-                    }
-
-                    HashMap<Long, Line> linesMap = DaoGpsLog.getLinesMap();
-                    Collection<Entry<Long, Line>> linesSet = linesMap.entrySet();
-                    for( Entry<Long, Line> lineEntry : linesSet ) {
-                        Long id = lineEntry.getKey();
-                        Line line = lineEntry.getValue();
-                        LogMapItem mapItem = mapitemsMap.get(id);
-                        float width = mapItem.getWidth();
-                        String color = mapItem.getColor();
-                        line.setStyle(width, color);
-                        line.setName(mapItem.getName());
-                        kmlRepresenterList.add(line);
-                    }
+                    kmlRepresenterList.add(new GpsLogsStreamRepresenter());
                     /*
                      * get notes
                      */
@@ -283,11 +261,7 @@ public class ExportActivity extends Activity {
                     /*
                      * add gps logs
                      */
-                    HashMap<Long, Line> linesMap = DaoGpsLog.getLinesMap();
-                    Collection<Line> linesCollection = linesMap.values();
-                    for( Line line : linesCollection ) {
-                        gpxRepresenterList.add(line);
-                    }
+                    gpxRepresenterList.add(new GpsLogsStreamRepresenter());
                     /*
                      * get notes
                      */
@@ -0,0 +1,166 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geodroid.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+
+import android.database.sqlite.SQLiteDatabase;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.gpx.GpxStreamRepresenter;
+import eu.geopaparazzi.library.gpx.GpxUtilities;
+import eu.geopaparazzi.library.kml.KmlStreamRepresenter;
+import eu.hydrologis.geodroid.database.DaoGpsLog;
+import eu.hydrologis.geodroid.database.DatabaseManager;
+import eu.hydrologis.geodroid.database.GpsLogPointsReader;
+import eu.hydrologis.geodroid.maps.LogMapItem;
+
+/**
+ * Represents all the gps logs for the export, one line each.
+ *
+ * <p>The points are never kept in memory: each log is read through a {@link GpsLogPointsReader}
+ * while it is written, so the memory used doesn't depend on the number of points. Logs
+ * without points are left out, as are points in 0,0 (see {@link Line}).</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsLogsStreamRepresenter implements KmlStreamRepresenter, GpxStreamRepresenter {
+
+    private final List<LogMapItem> logs;
+    private double[] bounds;
+
+    /**
+     * Constructor, reads the list of logs.
+     *
+     * @throws IOException
+     */
+    public GpsLogsStreamRepresenter() throws IOException {
+        logs = DaoGpsLog.getGpslogs();
+    }
+
+    public String toKmlString() throws Exception {
+        StringWriter writer = new StringWriter();
+        writeKml(writer);
+        return writer.toString();
+    }
+
+    public void writeKml( Writer writer ) throws IOException {
+        SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
+        StringBuilder sB = new StringBuilder();
+        for( LogMapItem log : logs ) {
+            GpsLogPointsReader reader = new GpsLogPointsReader(sqliteDatabase, log.getId());
+            try {
+                boolean started = false;
+                while( reader.next() ) {
+                    double lon = reader.getLon();
+                    double lat = reader.getLat();
+                    if (!Line.isValidPoint(lon, lat)) {
+                        continue;
+                    }
+                    if (!started) {
+                        Line.writeKmlStart(writer, log.getName());
+                        started = true;
+                    }
+                    Line.writeKmlPoint(writer, sB, lon, lat);
+                }
+                if (started) {
+                    float width = log.getWidth() > 0 ? log.getWidth() : Line.DEFAULT_WIDTH;
+                    String color = log.getColor() != null ? log.getColor() : Line.DEFAULT_COLOR;
+                    Line.writeKmlEnd(writer, color, width);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    public boolean hasImages() {
+        return false;
+    }
+
+    public List<String> getImagePaths() {
+        return null;
+    }
+
+    public String toGpxString() throws Exception {
+        StringWriter writer = new StringWriter();
+        writeGpx(writer);
+        return writer.toString();
+    }
+
+    public void writeGpx( Writer writer ) throws IOException {
+        SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
+        for( LogMapItem log : logs ) {
+            GpsLogPointsReader reader = new GpsLogPointsReader(sqliteDatabase, log.getId());
+            try {
+                boolean started = false;
+                while( reader.next() ) {
+                    double lon = reader.getLon();
+                    double lat = reader.getLat();
+                    if (!Line.isValidPoint(lon, lat)) {
+                        continue;
+                    }
+                    if (!started) {
+                        Line.writeGpxStart(writer, "log_" + log.getId());
+                        started = true;
+                    }
+                    writer.write(GpxUtilities.getTrackPointString(lat, lon, reader.getAltim(), reader.getTimestamp()));
+                }
+                if (started) {
+                    Line.writeGpxEnd(writer);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private double getBound( int index ) {
+        if (bounds == null) {
+            try {
+                bounds = DaoGpsLog.getGpslogsBounds();
+            } catch (IOException e) {
+                GPLog.error(this, e.getLocalizedMessage(), e);
+                e.printStackTrace();
+            }
+            if (bounds == null) {
+                bounds = new double[4];
+            }
+        }
+        return bounds[index];
+    }
+
+    public double getMinLat() {
+        return getBound(1);
+    }
+
+    public double getMinLon() {
+        return getBound(2);
+    }
+
+    public double getMaxLat() {
+        return getBound(0);
+    }
+
+    public double getMaxLon() {
+        return getBound(3);
+    }
+}
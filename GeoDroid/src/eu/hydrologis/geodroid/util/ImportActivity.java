@@ -161,7 +161,9 @@ public class ImportActivity extends Activity {
         browseIntent.putExtra(DirectoryBrowserActivity.STARTFOLDERPATH, ResourcesManager.getInstance(ImportActivity.this)
                 .getApplicationDir().getAbsolutePath());
         browseIntent.putExtra(DirectoryBrowserActivity.INTENT_ID, Constants.GPXIMPORT);
-        browseIntent.putExtra(DirectoryBrowserActivity.EXTENTION, ".gpx"); //$NON-NLS-1$
+        browseIntent.putExtra(DirectoryBrowserActivity.EXTENTION, ".gpx;.kml"); //$NON-NLS-1$
+        // a folder imports all its files
+        browseIntent.putExtra(DirectoryBrowserActivity.ALLOWFOLDER, true);
         startActivity(browseIntent);
         finish();
     }
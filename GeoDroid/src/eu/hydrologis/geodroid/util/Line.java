@@ -21,14 +21,17 @@ import static java.lang.Math.abs;
 import static java.lang.Math.pow;
 import static java.lang.Math.sqrt;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
 import android.graphics.Color;
 import android.location.Location;
-import eu.geopaparazzi.library.gpx.GpxRepresenter;
+import eu.geopaparazzi.library.gpx.GpxStreamRepresenter;
 import eu.geopaparazzi.library.gpx.GpxUtilities;
-import eu.geopaparazzi.library.kml.KmlRepresenter;
+import eu.geopaparazzi.library.kml.KmlStreamRepresenter;
 import eu.geodroid.library.util.DynamicDoubleArray;
 import eu.geodroid.library.util.Utilities;
 import eu.geodroid.library.util.ColorUtilities;
@@ -37,7 +40,8 @@ import eu.geodroid.library.util.ColorUtilities;
  * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
-public class Line implements KmlRepresenter, GpxRepresenter {
+@SuppressWarnings("nls")
+public class Line implements KmlStreamRepresenter, GpxStreamRepresenter {
 
     private String name;
     private final DynamicDoubleArray latList;
@@ -50,8 +54,11 @@ public class Line implements KmlRepresenter, GpxRepresenter {
     private double maxLat = 0.0;
     private double maxLon = 0.0;
 
-    private float width = 1f;
-    private String color = "#ff0000ff"; //$NON-NLS-1$
+    static final float DEFAULT_WIDTH = 1f;
+    static final String DEFAULT_COLOR = "#ff0000ff";
+
+    private float width = DEFAULT_WIDTH;
+    private String color = DEFAULT_COLOR;
 
     public Line( String name, DynamicDoubleArray lonList, DynamicDoubleArray latList, DynamicDoubleArray altimList,
             List<String> dateList ) {
@@ -71,8 +78,7 @@ public class Line implements KmlRepresenter, GpxRepresenter {
     }
 
     public void addPoint( double lon, double lat, double altim, String date ) {
-        if (lat < 0.0001 && lon < 0.0001) {
-            // don't add points in 0,0
+        if (!isValidPoint(lon, lat)) {
             return;
         }
         boundsAreDirty = true;
@@ -138,35 +144,84 @@ public class Line implements KmlRepresenter, GpxRepresenter {
         return length;
     }
 
-    @SuppressWarnings("nls")
-    public String toKmlString() {
-        String name = Utilities.makeXmlSafe(this.name);
+    public String toKmlString() throws Exception {
+        StringWriter writer = new StringWriter();
+        writeKml(writer);
+        return writer.toString();
+    }
+
+    public void writeKml( Writer writer ) throws IOException {
+        writeKmlStart(writer, name);
         StringBuilder sB = new StringBuilder();
-        sB.append("<Placemark>\n");
-        sB.append("<name>" + name + "</name>\n");
-        sB.append("<visibility>1</visibility>\n");
-        sB.append("<LineString>\n");
-        sB.append("<tessellate>1</tessellate>\n");
-        sB.append("<coordinates>\n");
         for( int i = 0; i < lonList.size(); i++ ) {
-            double lon = lonList.get(i);
-            double lat = latList.get(i);
-            sB.append(lon).append(",").append(lat).append(",1 \n");
+            writeKmlPoint(writer, sB, lonList.get(i), latList.get(i));
         }
-        sB.append("</coordinates>\n");
-        sB.append("</LineString>\n");
-        sB.append("<Style>\n");
-        sB.append("<LineStyle>\n");
+        writeKmlEnd(writer, color, width);
+    }
+
+    /**
+     * Checks if a point can be exported, points in 0,0 are left out.
+     * 
+     * @param lon the longitude.
+     * @param lat the latitude.
+     * @return <code>true</code> if the point is valid.
+     */
+    static boolean isValidPoint( double lon, double lat ) {
+        return !(lat < 0.0001 && lon < 0.0001);
+    }
+
+    /**
+     * Writes the start of a kml line placemark, up to its coordinates.
+     * 
+     * @param writer the writer.
+     * @param name the name of the line.
+     * @throws IOException
+     */
+    static void writeKmlStart( Writer writer, String name ) throws IOException {
+        writer.write("<Placemark>\n");
+        writer.write("<name>" + Utilities.makeXmlSafe(name) + "</name>\n");
+        writer.write("<visibility>1</visibility>\n");
+        writer.write("<LineString>\n");
+        writer.write("<tessellate>1</tessellate>\n");
+        writer.write("<coordinates>\n");
+    }
+
+    /**
+     * Writes a kml coordinate.
+     * 
+     * @param writer the writer.
+     * @param sB a reusable builder.
+     * @param lon the longitude.
+     * @param lat the latitude.
+     * @throws IOException
+     */
+    static void writeKmlPoint( Writer writer, StringBuilder sB, double lon, double lat ) throws IOException {
+        sB.setLength(0);
+        sB.append(lon).append(",").append(lat).append(",1 \n");
+        writer.append(sB);
+    }
+
+    /**
+     * Writes the end of a kml line placemark, with its style.
+     * 
+     * @param writer the writer.
+     * @param color the color of the line.
+     * @param width the width of the line.
+     * @throws IOException
+     */
+    static void writeKmlEnd( Writer writer, String color, float width ) throws IOException {
+        writer.write("</coordinates>\n");
+        writer.write("</LineString>\n");
+        writer.write("<Style>\n");
+        writer.write("<LineStyle>\n");
 //        int parsedColor = Color.parseColor(color);
         int parsedColor = ColorUtilities.toColor(color);
         String hexColor = "#" + Integer.toHexString(parsedColor);
-        sB.append("<color>").append(hexColor).append("</color>\n");
-        sB.append("<width>").append(width).append("</width>\n");
-        sB.append("</LineStyle>\n");
-        sB.append("</Style>\n");
-        sB.append("</Placemark>\n");
-
-        return sB.toString();
+        writer.write("<color>" + hexColor + "</color>\n");
+        writer.write("<width>" + width + "</width>\n");
+        writer.write("</LineStyle>\n");
+        writer.write("</Style>\n");
+        writer.write("</Placemark>\n");
     }
 
     public boolean hasImages() {
@@ -220,24 +275,46 @@ public class Line implements KmlRepresenter, GpxRepresenter {
         return maxLon;
     }
 
-    @SuppressWarnings("nls")
     public String toGpxString() throws Exception {
-        String name = Utilities.makeXmlSafe(this.name);
-        StringBuilder sb = new StringBuilder();
-        sb.append(GpxUtilities.GPX_TRACK_START).append("\n");
-        sb.append(GpxUtilities.getTrackNameString(name)).append("\n");
-        sb.append(GpxUtilities.GPX_TRACKSEGMENT_START).append("\n");
+        StringWriter writer = new StringWriter();
+        writeGpx(writer);
+        return writer.toString();
+    }
+
+    public void writeGpx( Writer writer ) throws IOException {
+        writeGpxStart(writer, name);
         int size = latList.size();
         double[] latArray = latList.getInternalArray();
         double[] lonArray = lonList.getInternalArray();
         double[] altimArray = altimList.getInternalArray();
         for( int i = 0; i < size; i++ ) {
             String dateString = dateList.get(i);
-            String trackPointString = GpxUtilities.getTrackPointString(latArray[i], lonArray[i], altimArray[i], dateString);
-            sb.append(trackPointString);
+            writer.write(GpxUtilities.getTrackPointString(latArray[i], lonArray[i], altimArray[i], dateString));
         }
-        sb.append(GpxUtilities.GPX_TRACKSEGMENT_END).append("\n");
-        sb.append(GpxUtilities.GPX_TRACK_END).append("\n");
-        return sb.toString();
+        writeGpxEnd(writer);
+    }
+
+    /**
+     * Writes the start of a gpx track, up to its points.
+     * 
+     * @param writer the writer.
+     * @param name the name of the track.
+     * @throws IOException
+     */
+    static void writeGpxStart( Writer writer, String name ) throws IOException {
+        writer.write(GpxUtilities.GPX_TRACK_START + "\n");
+        writer.write(GpxUtilities.getTrackNameString(Utilities.makeXmlSafe(name)) + "\n");
+        writer.write(GpxUtilities.GPX_TRACKSEGMENT_START + "\n");
+    }
+
+    /**
+     * Writes the end of a gpx track.
+     * 
+     * @param writer the writer.
+     * @throws IOException
+     */
+    static void writeGpxEnd( Writer writer ) throws IOException {
+        writer.write(GpxUtilities.GPX_TRACKSEGMENT_END + "\n");
+        writer.write(GpxUtilities.GPX_TRACK_END + "\n");
     }
 }
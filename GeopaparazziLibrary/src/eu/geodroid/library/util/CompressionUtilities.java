@@ -17,19 +17,28 @@
  */
 package eu.geodroid.library.util;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.webproject.ReturnCodes;
@@ -37,10 +46,26 @@ import eu.geopaparazzi.library.webproject.ReturnCodes;
 /**
  * Utilities class to zip and unzip folders.
  * 
+ * <p>Zip files are written through a {@link ZipWriter}, reading each file once. Already
+ * compressed media are stored, small files are deflated in parallel on all the cores
+ * and big files are deflated while they are copied.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class CompressionUtilities {
 
+    /**
+     * Files up to this size are deflated in memory by the parallel workers, bigger ones are streamed.
+     */
+    private static final int PARALLEL_MAX_SIZE = 512 * 1024;
+
+    /**
+     * Extensions of the files that are stored without deflating them again.
+     */
+    @SuppressWarnings("nls")
+    private static final String[] COMPRESSED_EXTENSIONS = {".jpg", ".jpeg", ".png", ".gif", ".webp", ".mbtiles", ".zip",
+            ".kmz", ".gz", ".3gp", ".mp4", ".mp3", ".ogg", ".amr"};
+
     /**
      * Compress a folder and its contents.
      * 
@@ -52,20 +77,10 @@ public class CompressionUtilities {
     static public void zipFolder( String srcFolder, String destZipFile, boolean addBaseFolder, String... excludeNames )
             throws IOException {
         if (new File(srcFolder).isDirectory()) {
-            ZipOutputStream zip = null;
-            FileOutputStream fileWriter = null;
-            try {
-                fileWriter = new FileOutputStream(destZipFile);
-                zip = new ZipOutputStream(fileWriter);
-                addFolderToZip("", srcFolder, zip, addBaseFolder, excludeNames); //$NON-NLS-1$
-            } finally {
-                if (zip != null) {
-                    zip.flush();
-                    zip.close();
-                }
-                if (fileWriter != null)
-                    fileWriter.close();
-            }
+            List<String> entryNames = new ArrayList<String>();
+            List<File> files = new ArrayList<File>();
+            addFolderToZip("", srcFolder, entryNames, files, addBaseFolder, excludeNames); //$NON-NLS-1$
+            writeZip(new File(destZipFile), entryNames, files);
         } else {
             throw new IOException("The base file is supposed to be a directory."); //$NON-NLS-1$
         }
@@ -124,7 +139,7 @@ public class CompressionUtilities {
                 }
                 InputStream is = zf.getInputStream(item);
                 FileOutputStream fos = new FileOutputStream(newfilePath);
-                byte[] buffer = new byte[512];
+                byte[] buffer = new byte[ZipWriter.BUFFER_SIZE];
                 int readchars = 0;
                 while( (readchars = is.read(buffer)) != -1 ) {
                     fos.write(buffer, 0, readchars);
@@ -138,33 +153,23 @@ public class CompressionUtilities {
         return newFirstName;
     }
 
-    static private void addToZip( String path, String srcFile, ZipOutputStream zip, String... excludeNames ) throws IOException {
+    static private void addToZip( String path, String srcFile, List<String> entryNames, List<File> files,
+            String... excludeNames ) {
         File file = new File(srcFile);
         if (file.isDirectory()) {
-            addFolderToZip(path, srcFile, zip, true, excludeNames);
+            addFolderToZip(path, srcFile, entryNames, files, true, excludeNames);
         } else {
             if (isInArray(file.getName(), excludeNames)) {
                 // jump if excluded
                 return;
             }
-            byte[] buf = new byte[1024];
-            int len;
-            FileInputStream in = null;
-            try {
-                in = new FileInputStream(srcFile);
-                zip.putNextEntry(new ZipEntry(path + File.separator + file.getName()));
-                while( (len = in.read(buf)) > 0 ) {
-                    zip.write(buf, 0, len);
-                }
-            } finally {
-                if (in != null)
-                    in.close();
-            }
+            entryNames.add(path + File.separator + file.getName());
+            files.add(file);
         }
     }
 
-    static private void addFolderToZip( String path, String srcFolder, ZipOutputStream zip, boolean addFolder,
-            String... excludeNames ) throws IOException {
+    static private void addFolderToZip( String path, String srcFolder, List<String> entryNames, List<File> files,
+            boolean addFolder, String... excludeNames ) {
         if (isInArray(srcFolder, excludeNames)) {
             // jump folder if excluded
             return;
@@ -184,7 +189,7 @@ public class CompressionUtilities {
                 folderPath = path + File.separator + folder.getName();
             }
             String srcFile = srcFolder + File.separator + listOfFiles[i];
-            addToZip(folderPath, srcFile, zip, excludeNames);
+            addToZip(folderPath, srcFile, entryNames, files, excludeNames);
         }
     }
     private static boolean isInArray( String checkString, String[] array ) {
@@ -196,41 +201,189 @@ public class CompressionUtilities {
         return false;
     }
 
+    /**
+     * Create a zip containing the given files, without folders.
+     * 
+     * @param destinationZip the zip file to create.
+     * @param files the files to add, missing ones are skipped.
+     * @throws IOException
+     */
     @SuppressWarnings("nls")
     public static void createZipFromFiles( File destinationZip, File... files ) throws IOException {
-        FileOutputStream fos = new FileOutputStream(destinationZip);
-        ZipOutputStream zos = new ZipOutputStream(fos);
-        int bytesRead;
-        byte[] buffer = new byte[1024];
-        CRC32 crc = new CRC32();
-        for( int i = 0, n = files.length; i < n; i++ ) {
-            String name = files[i].getName();
-            File file = files[i];
+        List<String> entryNames = new ArrayList<String>();
+        List<File> existingFiles = new ArrayList<File>();
+        for( File file : files ) {
+            String name = file.getName();
             if (!file.exists()) {
                 if (GPLog.LOG)
                     GPLog.addLogEntry("COMPRESSIONUTILITIES", "Skipping: " + name);
                 continue;
             }
-            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-            crc.reset();
-            while( (bytesRead = bis.read(buffer)) != -1 ) {
-                crc.update(buffer, 0, bytesRead);
-            }
-            bis.close();
-            // Reset to beginning of input stream
-            bis = new BufferedInputStream(new FileInputStream(file));
-            ZipEntry entry = new ZipEntry(name);
-            entry.setMethod(ZipEntry.STORED);
-            entry.setCompressedSize(file.length());
-            entry.setSize(file.length());
-            entry.setCrc(crc.getValue());
-            zos.putNextEntry(entry);
-            while( (bytesRead = bis.read(buffer)) != -1 ) {
-                zos.write(buffer, 0, bytesRead);
-            }
-            bis.close();
+            entryNames.add(name);
+            existingFiles.add(file);
+        }
+        writeZip(destinationZip, entryNames, existingFiles);
+    }
+
+    /**
+     * Checks if a file is compressed already, by its extension.
+     * 
+     * @param name the name of the file.
+     * @return <code>true</code> if the file should be stored without deflating it.
+     */
+    public static boolean isCompressed( String name ) {
+        String lowerCaseName = name.toLowerCase(Locale.US);
+        for( String extension : COMPRESSED_EXTENSIONS ) {
+            if (lowerCaseName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the files into a zip.
+     * 
+     * <p>Small files to deflate are handed to a pool of workers, while the calling thread
+     * streams the others and writes the entries the workers prepared. To limit the memory
+     * used, only two entries per worker are prepared in advance. The order of the entries
+     * in the zip may differ from the order of the files.</p>
+     * 
+     * @param zipFile the zip file to create.
+     * @param entryNames the names of the entries.
+     * @param files the files, in the same order of the names.
+     * @throws IOException
+     */
+    private static void writeZip( File zipFile, List<String> entryNames, List<File> files ) throws IOException {
+        int workersNum = Runtime.getRuntime().availableProcessors();
+        ExecutorService workers = null;
+        if (workersNum > 1) {
+            workers = Executors.newFixedThreadPool(workersNum);
+        }
+        LinkedList<Future<DeflatedFile>> pending = new LinkedList<Future<DeflatedFile>>();
+        ZipWriter zipWriter = new ZipWriter(zipFile);
+        boolean success = false;
+        try {
+            for( int i = 0; i < files.size(); i++ ) {
+                String name = entryNames.get(i);
+                File file = files.get(i);
+                boolean deflate = !isCompressed(name);
+                if (workers != null && deflate && file.length() <= PARALLEL_MAX_SIZE) {
+                    if (pending.size() >= 2 * workersNum) {
+                        addDeflatedFile(zipWriter, pending.removeFirst());
+                    }
+                    pending.add(workers.submit(new DeflateTask(name, file)));
+                } else {
+                    zipWriter.addFile(name, file, deflate);
+                }
+                while( !pending.isEmpty() && pending.getFirst().isDone() ) {
+                    addDeflatedFile(zipWriter, pending.removeFirst());
+                }
+            }
+            while( !pending.isEmpty() ) {
+                addDeflatedFile(zipWriter, pending.removeFirst());
+            }
+            success = true;
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            try {
+                zipWriter.close();
+            } finally {
+                if (!success) {
+                    zipFile.delete();
+                }
+            }
         }
-        zos.close();
+    }
 
+    private static void addDeflatedFile( ZipWriter zipWriter, Future<DeflatedFile> future ) throws IOException {
+        DeflatedFile deflatedFile;
+        try {
+            deflatedFile = future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        }
+        zipWriter.addEntry(deflatedFile.name, deflatedFile.time, deflatedFile.deflated, deflatedFile.data,
+                deflatedFile.length, deflatedFile.crc, deflatedFile.size);
+    }
+
+    /**
+     * A file ready to be added to the zip.
+     */
+    private static class DeflatedFile {
+        String name;
+        long time;
+        boolean deflated;
+        byte[] data;
+        int length;
+        long crc;
+        long size;
+    }
+
+    /**
+     * Reads a small file and deflates it in memory. If deflating doesn't make it
+     * smaller, the file is stored.
+     */
+    private static class DeflateTask implements Callable<DeflatedFile> {
+        private final String name;
+        private final File file;
+
+        DeflateTask( String name, File file ) {
+            this.name = name;
+            this.file = file;
+        }
+
+        public DeflatedFile call() throws IOException {
+            byte[] content = new byte[(int) file.length()];
+            int length = 0;
+            InputStream in = new FileInputStream(file);
+            try {
+                int bytesRead;
+                while( length < content.length && (bytesRead = in.read(content, length, content.length - length)) != -1 ) {
+                    length += bytesRead;
+                }
+            } finally {
+                in.close();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, length);
+
+            DeflatedFile deflatedFile = new DeflatedFile();
+            deflatedFile.name = name;
+            deflatedFile.time = file.lastModified();
+            deflatedFile.crc = crc.getValue();
+            deflatedFile.size = length;
+
+            byte[] deflatedContent = new byte[length];
+            int deflatedLength = 0;
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(content, 0, length);
+                deflater.finish();
+                while( !deflater.finished() && deflatedLength < deflatedContent.length ) {
+                    deflatedLength += deflater.deflate(deflatedContent, deflatedLength, deflatedContent.length - deflatedLength);
+                }
+                deflatedFile.deflated = deflater.finished();
+            } finally {
+                deflater.end();
+            }
+            if (deflatedFile.deflated) {
+                deflatedFile.data = deflatedContent;
+                deflatedFile.length = deflatedLength;
+            } else {
+                deflatedFile.data = content;
+                deflatedFile.length = length;
+            }
+            return deflatedFile;
+        }
     }
 }
@@ -175,6 +175,11 @@ public interface LibraryConstants {
      */
     public static final String PREFS_KEY_GPSLOGGINGDISTANCE = "PREFS_KEY_GPS_LOGGING_DISTANCE"; //$NON-NLS-1$
 
+    /**
+     * Key used to store and retrieve the tolerance in meters of the gps log compression (0 disables it). 
+     */
+    public static final String PREFS_KEY_GPSLOGGINGTOLERANCE = "PREFS_KEY_GPS_LOGGING_TOLERANCE"; //$NON-NLS-1$
+
     /**
      * Key used to store and retrieve the gps mode to use (apply on android listener or just on application base). 
      */
@@ -274,4 +279,9 @@ public interface LibraryConstants {
      */
     public static final float GPS_LOGGING_DISTANCE = 1f;
 
+    /**
+     * Default gps logging compression tolerance, disabled.
+     */
+    public static final float GPS_LOGGING_TOLERANCE = 0f;
+
 }
@@ -0,0 +1,411 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geodroid.library.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A writer of zip files, that can be fed with entries already deflated.
+ *
+ * <p>Differently from {@link java.util.zip.ZipOutputStream}, entries can be stored
+ * without knowing their crc in advance: the crc and sizes are computed while the data
+ * are copied and then written back into the entry header, so every file is read once.
+ * Entries deflated elsewhere, for example by parallel workers, are added as they are
+ * with {@link #addEntry(String, long, boolean, byte[], int, long, long)}.</p>
+ *
+ * <p>Zip64 is not supported, the zip file and its entries must be smaller than 4GB.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ZipWriter {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int CRC_OFFSET = 14;
+    private static final long MAX_SIZE = 0xffffffffL;
+    private static final int MAX_ENTRIES = 0xffff;
+
+    /**
+     * The size of the buffers used to write and copy.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static class Entry {
+        byte[] name;
+        int method;
+        int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long headerOffset;
+    }
+
+    private final FileOutputStream fileOutputStream;
+    private final FileChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+    private long offset = 0;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Calendar calendar = Calendar.getInstance();
+    private EntryOutputStream currentEntry;
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param zipFile the zip file to create.
+     * @throws IOException
+     */
+    public ZipWriter( File zipFile ) throws IOException {
+        fileOutputStream = new FileOutputStream(zipFile);
+        channel = fileOutputStream.getChannel();
+    }
+
+    /**
+     * Start a new entry, the data are written to the returned stream.
+     *
+     * <p>The entry is done when the stream is closed.</p>
+     *
+     * @param name the name of the entry.
+     * @param time the modification time of the entry.
+     * @param deflate if <code>true</code>, the data are deflated, else they are stored.
+     * @return the stream to write the data of the entry to.
+     * @throws IOException
+     */
+    public OutputStream putEntry( String name, long time, boolean deflate ) throws IOException {
+        checkWritable();
+        Entry entry = newEntry(name, time, deflate ? METHOD_DEFLATED : METHOD_STORED);
+        writeLocalHeader(entry);
+        currentEntry = new EntryOutputStream(entry);
+        return currentEntry;
+    }
+
+    /**
+     * Add a file as an entry.
+     *
+     * @param name the name of the entry.
+     * @param file the file to add.
+     * @param deflate if <code>true</code>, the data are deflated, else they are stored.
+     * @throws IOException
+     */
+    public void addFile( String name, File file, boolean deflate ) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = putEntry(name, file.lastModified(), deflate);
+            byte[] copyBuffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while( (bytesRead = in.read(copyBuffer)) != -1 ) {
+                out.write(copyBuffer, 0, bytesRead);
+            }
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Add an entry whose data are ready.
+     *
+     * @param name the name of the entry.
+     * @param time the modification time of the entry.
+     * @param deflated <code>true</code> if the data are raw deflated, <code>false</code> if they are stored.
+     * @param data the data of the entry.
+     * @param length the number of bytes of data to use.
+     * @param crc the crc of the uncompressed data.
+     * @param size the size of the uncompressed data.
+     * @throws IOException
+     */
+    public void addEntry( String name, long time, boolean deflated, byte[] data, int length, long crc, long size )
+            throws IOException {
+        checkWritable();
+        if (size > MAX_SIZE) {
+            throw new IOException("Entry too big for a zip file: " + name);
+        }
+        Entry entry = newEntry(name, time, deflated ? METHOD_DEFLATED : METHOD_STORED);
+        entry.crc = crc;
+        entry.compressedSize = length;
+        entry.size = size;
+        writeLocalHeader(entry);
+        write(data, 0, length);
+    }
+
+    /**
+     * Write the zip directory and close the file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (currentEntry != null) {
+                currentEntry.close();
+            }
+            long directoryOffset = offset;
+            for( Entry entry : entries ) {
+                writeInt(CENTRAL_HEADER_SIGNATURE);
+                writeShort(VERSION);
+                writeShort(VERSION);
+                writeShort(FLAG_UTF8);
+                writeShort(entry.method);
+                writeInt(entry.dosTime);
+                writeInt(entry.crc);
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+                writeShort(entry.name.length);
+                // extra, comment, disk, internal and external attributes
+                writeShort(0);
+                writeShort(0);
+                writeShort(0);
+                writeShort(0);
+                writeInt(0);
+                writeInt(entry.headerOffset);
+                write(entry.name, 0, entry.name.length);
+            }
+            long directorySize = offset - directoryOffset;
+            if (offset > MAX_SIZE) {
+                throw new IOException("The zip file is too big.");
+            }
+            writeInt(END_SIGNATURE);
+            writeShort(0);
+            writeShort(0);
+            writeShort(entries.size());
+            writeShort(entries.size());
+            writeInt(directorySize);
+            writeInt(directoryOffset);
+            writeShort(0);
+            flushBuffer();
+        } finally {
+            closed = true;
+            fileOutputStream.close();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed) {
+            throw new IOException("The zip file is closed.");
+        }
+        if (currentEntry != null) {
+            throw new IOException("The previous entry has not been closed.");
+        }
+        if (entries.size() == MAX_ENTRIES) {
+            throw new IOException("Too many entries for a zip file.");
+        }
+    }
+
+    private Entry newEntry( String name, long time, int method ) throws IOException {
+        if (offset > MAX_SIZE) {
+            throw new IOException("The zip file is too big.");
+        }
+        Entry entry = new Entry();
+        entry.name = name.getBytes("UTF-8");
+        entry.method = method;
+        entry.dosTime = toDosTime(time);
+        entry.headerOffset = offset;
+        entries.add(entry);
+        return entry;
+    }
+
+    private void writeLocalHeader( Entry entry ) throws IOException {
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(VERSION);
+        writeShort(FLAG_UTF8);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize);
+        writeInt(entry.size);
+        writeShort(entry.name.length);
+        writeShort(0);
+        write(entry.name, 0, entry.name.length);
+    }
+
+    /**
+     * Write the crc and the sizes into the header of an entry already written.
+     */
+    private void patchLocalHeader( Entry entry ) throws IOException {
+        byte[] patch = new byte[12];
+        putInt(patch, 0, entry.crc);
+        putInt(patch, 4, entry.compressedSize);
+        putInt(patch, 8, entry.size);
+        long position = entry.headerOffset + CRC_OFFSET;
+        long bufferStart = offset - count;
+        if (position >= bufferStart) {
+            // still in the buffer
+            System.arraycopy(patch, 0, buffer, (int) (position - bufferStart), patch.length);
+        } else {
+            flushBuffer();
+            ByteBuffer byteBuffer = ByteBuffer.wrap(patch);
+            while( byteBuffer.hasRemaining() ) {
+                position += channel.write(byteBuffer, position);
+            }
+        }
+    }
+
+    private int toDosTime( long time ) {
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // 1980-01-01 00:00
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void putInt( byte[] bytes, int index, long value ) {
+        bytes[index] = (byte) value;
+        bytes[index + 1] = (byte) (value >>> 8);
+        bytes[index + 2] = (byte) (value >>> 16);
+        bytes[index + 3] = (byte) (value >>> 24);
+    }
+
+    private void writeShort( int value ) throws IOException {
+        if (count + 2 > buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) value;
+        buffer[count++] = (byte) (value >>> 8);
+        offset += 2;
+    }
+
+    private void writeInt( long value ) throws IOException {
+        if (count + 4 > buffer.length) {
+            flushBuffer();
+        }
+        putInt(buffer, count, value);
+        count += 4;
+        offset += 4;
+    }
+
+    private void write( byte[] bytes, int off, int len ) throws IOException {
+        if (len >= buffer.length) {
+            flushBuffer();
+            fileOutputStream.write(bytes, off, len);
+        } else {
+            if (count + len > buffer.length) {
+                flushBuffer();
+            }
+            System.arraycopy(bytes, off, buffer, count, len);
+            count += len;
+        }
+        offset += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            fileOutputStream.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * The stream of the current entry, computes crc and sizes while writing.
+     */
+    private class EntryOutputStream extends OutputStream {
+        private final Entry entry;
+        private final CRC32 crc = new CRC32();
+        private Deflater deflater;
+        private byte[] deflateBuffer;
+        private final byte[] singleByte = new byte[1];
+        private boolean entryClosed = false;
+
+        EntryOutputStream( Entry entry ) {
+            this.entry = entry;
+            if (entry.method == METHOD_DEFLATED) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                deflateBuffer = new byte[BUFFER_SIZE];
+            }
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            singleByte[0] = (byte) b;
+            write(singleByte, 0, 1);
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            if (entryClosed) {
+                throw new IOException("The entry is closed.");
+            }
+            crc.update(b, off, len);
+            entry.size += len;
+            if (deflater == null) {
+                ZipWriter.this.write(b, off, len);
+                entry.compressedSize += len;
+            } else {
+                deflater.setInput(b, off, len);
+                while( !deflater.needsInput() ) {
+                    deflate();
+                }
+            }
+        }
+
+        private void deflate() throws IOException {
+            int deflated = deflater.deflate(deflateBuffer);
+            ZipWriter.this.write(deflateBuffer, 0, deflated);
+            entry.compressedSize += deflated;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (entryClosed) {
+                return;
+            }
+            entryClosed = true;
+            currentEntry = null;
+            try {
+                if (deflater != null) {
+                    deflater.finish();
+                    while( !deflater.finished() ) {
+                        deflate();
+                    }
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            if (entry.size > MAX_SIZE || entry.compressedSize > MAX_SIZE) {
+                throw new IOException("Entry too big for a zip file: " + new String(entry.name, "UTF-8"));
+            }
+            entry.crc = crc.getValue();
+            patchLocalHeader(entry);
+        }
+    }
+}
@@ -40,7 +40,14 @@ public class DirectoryBrowserActivity extends ListActivity {
      * Key for a new intent to launch on the resulting path.
      */
     public static final String INTENT_ID = "INTENT_ID"; //$NON-NLS-1$
+    /**
+     * Key for the extention of the files to show. Several extentions can be separated by <code>;</code>.
+     */
     public static final String EXTENTION = "EXTENTION"; //$NON-NLS-1$
+    /**
+     * Key to let the ok button pick the current folder also when browsing for files.
+     */
+    public static final String ALLOWFOLDER = "ALLOWFOLDER"; //$NON-NLS-1$
     public static final String SHOWHIDDEN = "SHOWHIDDEN"; //$NON-NLS-1$
     public static final String FOLDER = "folder"; //$NON-NLS-1$
 
@@ -49,10 +56,12 @@ public class DirectoryBrowserActivity extends ListActivity {
     private File startFolderFile;
     private String intentId;
     private String extention;
+    private String[] extentions;
     private FileFilter fileFilter;
 
     private File currentDir;
     private boolean doFolder;
+    private boolean allowFolder;
     private boolean doHidden;
     private String startFolder;
 
@@ -67,9 +76,12 @@ public class DirectoryBrowserActivity extends ListActivity {
             extention = extras.getString(EXTENTION);
             startFolder = extras.getString(STARTFOLDERPATH);
             doHidden = extras.getBoolean(SHOWHIDDEN, false);
+            allowFolder = extras.getBoolean(ALLOWFOLDER, false);
 
             if (extention != null && extention.equals(FOLDER)) {
                 doFolder = true;
+            } else if (extention != null) {
+                extentions = extention.toLowerCase().split(";"); //$NON-NLS-1$
             }
 
             fileFilter = new FileFilter(){
@@ -78,7 +90,12 @@ public class DirectoryBrowserActivity extends ListActivity {
                         return true;
                     }
                     if (!doFolder) {
-                        return pathname.getAbsolutePath().toLowerCase().endsWith(extention.toLowerCase());
+                        String path = pathname.getAbsolutePath().toLowerCase();
+                        for( String ext : extentions ) {
+                            if (path.endsWith(ext)) {
+                                return true;
+                            }
+                        }
                     }
                     return false;
                 }
@@ -86,7 +103,7 @@ public class DirectoryBrowserActivity extends ListActivity {
         }
 
         Button okButton = (Button) findViewById(R.id.okbutton);
-        if (doFolder) {
+        if (doFolder || allowFolder) {
             okButton.setOnClickListener(new OnClickListener(){
                 public void onClick( View v ) {
                     String absolutePath = currentDir.getAbsolutePath();
@@ -19,12 +19,9 @@ package eu.geopaparazzi.library.database;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.Map.Entry;
-import java.util.Set;
 
 import eu.geodroid.library.util.LibraryConstants;
 
-import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -42,18 +39,24 @@ public class GPLog {
     public final static boolean LOG_ANDROID = true;
     /**
      * If <code>true</code>, normal logging is activated.
+     * 
+     * <p>Check it before building a log message.</p>
      */
-    public static boolean LOG = true;
+    public static volatile boolean LOG = true;
 
     /**
      * If <code>true</code> heavy logging is activated.
+     * 
+     * <p>Check it before building a log message.</p>
      */
-    public static boolean LOG_HEAVY = true;
+    public static volatile boolean LOG_HEAVY = true;
 
     /**
      * If <code>true</code>, all logging is activated.
+     * 
+     * <p>Check it before building a log message.</p>
      */
-    public static boolean LOG_ABSURD = false;
+    public static volatile boolean LOG_ABSURD = false;
 
     public static final String ERROR_TAG = "ERROR";
 
@@ -62,6 +65,8 @@ public class GPLog {
     public static final String COLUMN_DATAORA = "dataora";
     public static final String COLUMN_LOGMSG = "logmsg";
 
+    private static final GPLogAppender appender = new GPLogAppender();
+
     /**
      * Create the default log table.
      * 
@@ -114,21 +119,34 @@ public class GPLog {
     /**
      * Add a new log entry.
      * 
+     * <p>The entry is queued and written to the database in background.</p>
+     * 
      * @param logMessage the message to insert in the log.
      * @throws IOException
      */
     public static void addLogEntry( String logMessage ) throws IOException {
-        SQLiteDatabase sqliteDatabase = ADbHelper.getInstance().getDatabase();
-        ContentValues values = new ContentValues();
-        Date date = new Date();
-        long time = date.getTime();
-        values.put(COLUMN_DATAORA, time);
-        values.put(COLUMN_LOGMSG, logMessage);
-        insertOrThrow(sqliteDatabase, TABLE_LOG, values);
+        appender.append(System.currentTimeMillis(), null, null, null, logMessage);
+    }
+
+    /**
+     * Write the queued log entries on the caller's thread.
+     * 
+     * <p>To be called before closing the database.</p>
+     */
+    public static void flush() {
+        appender.flush();
+    }
 
+    /**
+     * Log an entry already written to the database also to the android log.
+     * 
+     * @param time the time of the entry.
+     * @param logMessage the message.
+     */
+    static void logAndroid( long time, String logMessage ) {
         if (LOG_ANDROID) {
             StringBuilder sb = new StringBuilder();
-            sb.append(LibraryConstants.iso8601Format.format(date));
+            sb.append(LibraryConstants.iso8601Format.format(new Date(time)));
             sb.append(": ");
             sb.append(logMessage);
             String string = sb.toString();
@@ -154,15 +172,28 @@ public class GPLog {
             String user, //
             String tag,//
             String logMessage ) {
-
-        StringBuilder sb = new StringBuilder();
         if (user == null || user.length() == 0) {
             user = "UU";
         }
-        sb.append(user).append(";");
         if (tag == null || tag.length() == 0) {
             tag = "INFO";
         }
+        // the message is composed by the appender, off the caller's thread
+        appender.append(System.currentTimeMillis(), caller, user, tag, logMessage);
+    }
+
+    /**
+     * Compose the message of a log entry.
+     * 
+     * @param caller the calling class or tag name, or <code>null</code>.
+     * @param user the user name or id.
+     * @param tag the tag of the message.
+     * @param logMessage the message itself.
+     * @return the message to insert in the log.
+     */
+    static String composeMessage( Object caller, String user, String tag, String logMessage ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(user).append(";");
         sb.append(tag).append(";");
 
         if (caller != null) {
@@ -171,12 +202,7 @@ public class GPLog {
                 sb.append(name).append(": ");
         }
         sb.append(logMessage);
-        try {
-            addLogEntry(sb.toString());
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(ERROR_TAG, "Error inserting in log.", e);
-        }
+        return sb.toString();
     }
 
     /**
@@ -209,33 +235,6 @@ public class GPLog {
             log("GPLOG_ERROR", stackTrace);
         }
     }
-    /**
-     * Do an insert or throw with the proper error handling.
-     * @param table
-     * @param values
-     * 
-     * @return
-     * @throws IOException
-     */
-    private static long insertOrThrow( SQLiteDatabase sqliteDatabase, String table, ContentValues values ) throws IOException {
-        if (sqliteDatabase == null) {
-            throw new IOException("Database not ready!");
-        }
-        long id = sqliteDatabase.insertOrThrow(table, null, values);
-        if (id == -1) {
-            Set<Entry<String, Object>> valueSet = values.valueSet();
-            StringBuilder sb = new StringBuilder();
-            sb.append("Insert failed with: \n");
-            for( Entry<String, Object> entry : valueSet ) {
-                sb.append("(").append(entry.getKey()).append(",");
-                sb.append(entry.getValue()).append(")\n");
-            }
-            String message = sb.toString();
-            throw new IOException(message);
-        }
-        return id;
-    }
-
     /**
      * Clear the log table.
      * 
@@ -243,6 +242,8 @@ public class GPLog {
      * @throws Exception
      */
     public static void clearLogTable( SQLiteDatabase db ) throws Exception {
+        // the queued entries go too
+        flush();
         String deleteLogQuery = "delete from " + TABLE_LOG;
         db.beginTransaction();
         try {
@@ -0,0 +1,236 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2013  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.database;
+
+import java.io.IOException;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Asynchronous appender of the log entries.
+ *
+ * <p>Callers only put the parts of the entry in a bounded ring buffer, the message
+ * is composed and written by a background thread, which takes the entries in batches
+ * and inserts each batch in a single transaction.</p>
+ *
+ * <p>When the buffer is full, new entries are dropped and counted. The number of
+ * dropped entries is logged with the next batch.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+class GPLogAppender implements Runnable {
+    /**
+     * The max number of entries waiting to be written.
+     */
+    static final int CAPACITY = 1024;
+
+    /**
+     * The max number of entries written in a transaction.
+     */
+    static final int MAX_BATCH = 128;
+
+    /**
+     * The time the writer waits for more entries before writing a batch that is not full.
+     */
+    static final long FLUSH_DELAY_MILLIS = 1000;
+
+    private static final String INSERT = "insert into " + GPLog.TABLE_LOG + " (" + GPLog.COLUMN_DATAORA + ", "
+            + GPLog.COLUMN_LOGMSG + ") values (?, ?)";
+
+    private final long[] times = new long[CAPACITY];
+    private final Object[] callers = new Object[CAPACITY];
+    private final String[] users = new String[CAPACITY];
+    private final String[] tags = new String[CAPACITY];
+    private final String[] messages = new String[CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private int dropped = 0;
+    private Thread writerThread;
+
+    /**
+     * Serializes the writes of the writer thread and of {@link #flush()}, to keep the entries in order.
+     */
+    private final Object writeLock = new Object();
+
+    private final long[] batchTimes = new long[MAX_BATCH];
+    private final Object[] batchCallers = new Object[MAX_BATCH];
+    private final String[] batchUsers = new String[MAX_BATCH];
+    private final String[] batchTags = new String[MAX_BATCH];
+    private final String[] batchMessages = new String[MAX_BATCH];
+
+    /**
+     * Add an entry to the buffer.
+     *
+     * @param time the time of the entry.
+     * @param caller the caller, or <code>null</code>.
+     * @param user the user, or <code>null</code> for an entry that has no user, tag and caller.
+     * @param tag the tag, or <code>null</code> for an entry that has no user, tag and caller.
+     * @param message the message.
+     * @return <code>false</code> if the buffer is full and the entry was dropped.
+     */
+    synchronized boolean append( long time, Object caller, String user, String tag, String message ) {
+        if (size == CAPACITY) {
+            dropped++;
+            return false;
+        }
+        int index = (head + size) % CAPACITY;
+        times[index] = time;
+        callers[index] = caller;
+        users[index] = user;
+        tags[index] = tag;
+        messages[index] = message;
+        size++;
+
+        if (writerThread == null) {
+            writerThread = new Thread(this, "GPLogAppender");
+            writerThread.setDaemon(true);
+            writerThread.setPriority(Thread.MIN_PRIORITY);
+            writerThread.start();
+        }
+        if (size == 1 || size == MAX_BATCH) {
+            // wake the writer waiting for entries, or cut its delay short for a full batch
+            notify();
+        }
+        return true;
+    }
+
+    public void run() {
+        while( true ) {
+            try {
+                synchronized (this) {
+                    while( size == 0 ) {
+                        wait();
+                    }
+                    if (size < MAX_BATCH) {
+                        // give the entries the time to pile up
+                        wait(FLUSH_DELAY_MILLIS);
+                    }
+                }
+                boolean written;
+                synchronized (writeLock) {
+                    written = writeBatch();
+                }
+                if (!written) {
+                    // database not ready, try again later
+                    synchronized (this) {
+                        wait(FLUSH_DELAY_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.e(GPLog.ERROR_TAG, "Error writing the log.", e);
+            }
+        }
+    }
+
+    /**
+     * Write all the waiting entries on the caller's thread.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            try {
+                while( writeBatch() ) {
+                    // go on until the buffer is empty
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.e(GPLog.ERROR_TAG, "Error writing the log.", e);
+            }
+        }
+    }
+
+    /**
+     * Take a batch out of the buffer and write it.
+     *
+     * <p>If the database is not ready, the entries are left in the buffer.</p>
+     *
+     * @return <code>true</code> if a batch was written.
+     */
+    private boolean writeBatch() throws IOException {
+        SQLiteDatabase sqliteDatabase = ADbHelper.getInstance().getDatabase();
+        if (sqliteDatabase == null || !sqliteDatabase.isOpen()) {
+            return false;
+        }
+
+        int count;
+        int droppedCount;
+        synchronized (this) {
+            count = Math.min(size, MAX_BATCH);
+            for( int i = 0; i < count; i++ ) {
+                int index = (head + i) % CAPACITY;
+                batchTimes[i] = times[index];
+                batchCallers[i] = callers[index];
+                batchUsers[i] = users[index];
+                batchTags[i] = tags[index];
+                batchMessages[i] = messages[index];
+                callers[index] = null;
+                messages[index] = null;
+            }
+            head = (head + count) % CAPACITY;
+            size -= count;
+            droppedCount = dropped;
+            dropped = 0;
+        }
+        if (count == 0 && droppedCount == 0) {
+            return false;
+        }
+
+        SQLiteStatement insertStatement = sqliteDatabase.compileStatement(INSERT);
+        sqliteDatabase.beginTransaction();
+        try {
+            if (droppedCount > 0) {
+                String message = GPLog.composeMessage("GPLOGAPPENDER", "UU", GPLog.ERROR_TAG, "Log buffer full, dropped entries: "
+                        + droppedCount);
+                insert(insertStatement, System.currentTimeMillis(), message);
+            }
+            for( int i = 0; i < count; i++ ) {
+                String message;
+                if (batchTags[i] == null) {
+                    message = batchMessages[i];
+                } else {
+                    message = GPLog.composeMessage(batchCallers[i], batchUsers[i], batchTags[i], batchMessages[i]);
+                }
+                insert(insertStatement, batchTimes[i], message);
+                batchCallers[i] = null;
+                batchMessages[i] = null;
+            }
+            sqliteDatabase.setTransactionSuccessful();
+        } finally {
+            sqliteDatabase.endTransaction();
+            insertStatement.close();
+        }
+        return true;
+    }
+
+    private void insert( SQLiteStatement insertStatement, long time, String message ) {
+        insertStatement.clearBindings();
+        insertStatement.bindLong(1, time);
+        if (message == null) {
+            insertStatement.bindNull(2);
+        } else {
+            insertStatement.bindString(2, message);
+        }
+        insertStatement.executeInsert();
+        GPLog.logAndroid(time, message);
+    }
+}
@@ -19,14 +19,18 @@ package eu.geopaparazzi.library.gps;
 
 import static eu.geodroid.library.util.LibraryConstants.GPS_LOGGING_DISTANCE;
 import static eu.geodroid.library.util.LibraryConstants.GPS_LOGGING_INTERVAL;
+import static eu.geodroid.library.util.LibraryConstants.GPS_LOGGING_TOLERANCE;
 import static eu.geodroid.library.util.LibraryConstants.PREFS_KEY_GPSLOGGINGDISTANCE;
 import static eu.geodroid.library.util.LibraryConstants.PREFS_KEY_GPSLOGGINGINTERVAL;
+import static eu.geodroid.library.util.LibraryConstants.PREFS_KEY_GPSLOGGINGTOLERANCE;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteFullException;
@@ -47,10 +51,25 @@ import eu.geopaparazzi.library.database.GPLog;
  * That is why it is not listening directly to the gps, but instead to the gps manager.
  * It is the manager that updates the position.
  * 
+ * <p>The positions are queued as they come and consumed by the logging thread, which
+ * keeps the ones that are far enough in time and space from the last logged one.
+ * If a tolerance is set, the track is further compressed by a {@link GpsTrackCompressor}
+ * and only the positions needed to draw it within the tolerance are stored.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 @SuppressWarnings("nls")
 public class GpsDatabaseLogger implements GpsManagerListener {
+    /**
+     * The max number of positions waiting to be logged.
+     */
+    private static final int FIXES_QUEUE_CAPACITY = 1000;
+
+    /**
+     * The max time the logging thread waits for a position, before checking if it has to stop.
+     */
+    private static final long FIXES_POLL_MILLIS = 1000;
+
     private final Context context;
 
     /**
@@ -61,20 +80,49 @@ public class GpsDatabaseLogger implements GpsManagerListener {
     /**
      * The previous gpslog location.
      * 
-     * <p>This changes with every gps log waiting time.</p>
+     * <p>This changes with every logged point.</p>
      */
     private Location previousLogLoc = null;
 
-    private boolean isDatabaseLogging = false;
-    private boolean isShutdown = false;
+    private volatile boolean isDatabaseLogging = false;
+    private volatile boolean isShutdown = false;
 
-    private List<double[]> currentXY = new ArrayList<double[]>();
+    /**
+     * The positions waiting to be logged.
+     */
+    private final LinkedBlockingQueue<GpsLocation> fixesQueue = new LinkedBlockingQueue<GpsLocation>(FIXES_QUEUE_CAPACITY);
+
+    /**
+     * The points of the running log.
+     */
+    private volatile GpsLogTrack currentTrack = null;
+
+    /**
+     * The points of the running log not yet written to the database.
+     */
+    private volatile GpsPointsBuffer pointsBuffer = null;
+
+    /**
+     * Set to have the logging thread write the pending points at its next wakeup.
+     */
+    private volatile boolean isFlushRequested = false;
+
+    /**
+     * Writes the pending points when the battery runs low.
+     */
+    private final BroadcastReceiver batteryLowReceiver = new BroadcastReceiver(){
+        @Override
+        public void onReceive( Context context, Intent intent ) {
+            requestFlush();
+        }
+    };
 
     // private MediaPlayer mMediaPlayer;
     // private boolean doPlayAlarm = false;
 
-    private int currentPointsNum;
-    private float currentDistance;
+    private volatile int currentPointsNum;
+    private volatile int currentReceivedPointsNum;
+    private volatile float currentDistance;
 
     public GpsDatabaseLogger( Context context ) {
         this.context = context;
@@ -116,7 +164,8 @@ public class GpsDatabaseLogger implements GpsManagerListener {
             return;
         }
         isDatabaseLogging = true;
-        currentXY.clear();
+        fixesQueue.clear();
+        currentTrack = new GpsLogTrack();
 
         Thread t = new Thread(){
 
@@ -125,10 +174,16 @@ public class GpsDatabaseLogger implements GpsManagerListener {
                     isShutdown = false;
 
                     SQLiteDatabase sqliteDatabase = dbHelper.getDatabase(context);
+                    // points of a log interrupted by a crash
+                    GpsPointsBuffer.recover(context, dbHelper, sqliteDatabase);
+
                     java.sql.Date now = new java.sql.Date(System.currentTimeMillis());
                     long gpsLogId = dbHelper.addGpsLog(context, now, now, logName, 2f, "red", true);
                     currentRecordedLogId = gpsLogId;
                     logH("Starting gps logging. Logid: " + gpsLogId);
+                    pointsBuffer = new GpsPointsBuffer(context, dbHelper, sqliteDatabase);
+                    context.getApplicationContext().registerReceiver(batteryLowReceiver,
+                            new IntentFilter(Intent.ACTION_BATTERY_LOW));
 
                     // get preferences
                     SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
@@ -149,51 +204,84 @@ public class GpsDatabaseLogger implements GpsManagerListener {
                         // ignore and use default
                     }
                     logH("Waiting interval: " + waitForSecs);
+                    long intervalMillis = waitForSecs * 1000L;
+                    String toleranceStr = preferences.getString(PREFS_KEY_GPSLOGGINGTOLERANCE,
+                            String.valueOf(GPS_LOGGING_TOLERANCE));
+                    float tolerance = 0f;
+                    try {
+                        tolerance = Float.parseFloat(toleranceStr);
+                    } catch (Exception e) {
+                        // ignore and use default
+                    }
+                    logH("Compression tolerance: " + tolerance);
+                    GpsTrackCompressor compressor = null;
+                    if (tolerance > 0) {
+                        compressor = new GpsTrackCompressor(tolerance);
+                    }
 
                     currentPointsNum = 0;
+                    currentReceivedPointsNum = 0;
                     currentDistance = 0;
                     previousLogLoc = null;
+                    GpsLogTrack track = currentTrack;
                     while( isDatabaseLogging ) {
-                        if (gotFix) {
-                            if (gpsLoc == null) {
-                                waitGpsInterval(waitForSecs);
-                                continue;
-                            }
-                            if (previousLogLoc == null) {
-                                previousLogLoc = gpsLoc;
+                        GpsLocation fix = fixesQueue.poll(FIXES_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        if (fix != null && isDatabaseLogging) {
+                            float lastDistance = 0f;
+                            boolean keep = true;
+                            if (previousLogLoc != null) {
+                                long elapsedMillis = fix.getTime() - previousLogLoc.getTime();
+                                lastDistance = previousLogLoc.distanceTo(fix);
+                                logABS("gpsloc: " + fix.getLatitude() + "/" + fix.getLongitude());
+                                logABS("previousLoc: " + previousLogLoc.getLatitude() + "/" + previousLogLoc.getLongitude());
+                                logABS("distance: " + lastDistance + " - mindistance: " + minDistance);
+                                // ignore points too near in time or space
+                                keep = (elapsedMillis < 0 || elapsedMillis >= intervalMillis) && lastDistance >= minDistance;
                             }
-                            double recLon = gpsLoc.getLongitude();
-                            double recLat = gpsLoc.getLatitude();
-                            double recAlt = gpsLoc.getAltitude();
-                            float lastDistance = previousLogLoc.distanceTo(gpsLoc);
-                            logABS("gpsloc: " + gpsLoc.getLatitude() + "/" + gpsLoc.getLongitude());
-                            logABS("previousLoc: " + previousLogLoc.getLatitude() + "/" + previousLogLoc.getLongitude());
-                            logABS("distance: " + lastDistance + " - mindistance: " + minDistance);
-                            // ignore near points
-                            if (lastDistance < minDistance) {
-                                waitGpsInterval(waitForSecs);
-                                continue;
-                            }
-                            try {
-                                if (isDatabaseLogging) {
-                                    dbHelper.addGpsLogDataPoint(sqliteDatabase, gpsLogId, recLon, recLat, recAlt,
-                                            gpsLoc.getSqlDate());
-                                    currentXY.add(new double[]{recLon, recLat});
+                            if (keep) {
+                                track.add(fix.getLongitude(), fix.getLatitude());
+                                currentReceivedPointsNum++;
+                                currentDistance = currentDistance + lastDistance;
+                                previousLogLoc = fix;
+
+                                Location toStore = compressor == null ? fix : compressor.add(fix);
+                                if (toStore != null) {
+                                    try {
+                                        pointsBuffer.add(gpsLogId, toStore.getLongitude(), toStore.getLatitude(),
+                                                toStore.getAltitude(), toStore.getTime());
+                                        currentPointsNum++;
+                                    } catch (Exception e) {
+                                        // a failed write doesn't stop the log
+                                        e.printStackTrace();
+                                        GPLog.error(this, "Could not log the gps point.", e);
+                                    }
                                 }
-                            } catch (Exception e) {
-                                GPLog.error(this, e.getLocalizedMessage(), e);
-                                throw new IOException(e.getLocalizedMessage());
                             }
-                            currentPointsNum++;
-                            currentDistance = currentDistance + lastDistance;
-                            previousLogLoc = gpsLoc;
                         }
-                        if (!isDatabaseLogging) {
-                            break;
+                        try {
+                            if (isFlushRequested) {
+                                isFlushRequested = false;
+                                pointsBuffer.flush();
+                            } else {
+                                // write the points that waited long enough, also if no new one came
+                                pointsBuffer.flushIfDue();
+                            }
+                        } catch (Exception e) {
+                            // the points stay in the buffer and are written at the next try
+                            e.printStackTrace();
+                            GPLog.error(this, "Could not write the gps log points.", e);
+                        }
+                    }
+                    if (compressor != null) {
+                        // the last position is always part of the track
+                        Location last = compressor.finish();
+                        if (last != null) {
+                            pointsBuffer.add(gpsLogId, last.getLongitude(), last.getLatitude(), last.getAltitude(),
+                                    last.getTime());
+                            currentPointsNum++;
                         }
-                        // and wait
-                        waitGpsInterval(waitForSecs);
                     }
+                    pointsBuffer.flush();
 
                     if (currentPointsNum < 2) {
                         logABS("Removing gpslog, since too few points were added. Logid: " + gpsLogId);
@@ -205,6 +293,7 @@ public class GpsDatabaseLogger implements GpsManagerListener {
                     }
 
                     currentPointsNum = 0;
+                    currentReceivedPointsNum = 0;
                     currentDistance = 0f;
                     currentRecordedLogId = -1;
 
@@ -219,24 +308,23 @@ public class GpsDatabaseLogger implements GpsManagerListener {
                     GPLog.error(this, msg, e);
                     Utilities.toast(context, msg, Toast.LENGTH_LONG);
                 } finally {
+                    if (pointsBuffer != null) {
+                        try {
+                            context.getApplicationContext().unregisterReceiver(batteryLowReceiver);
+                        } catch (IllegalArgumentException e) {
+                            // not registered
+                        }
+                        pointsBuffer.close();
+                        pointsBuffer = null;
+                    }
                     isDatabaseLogging = false;
-                    currentXY.clear();
+                    fixesQueue.clear();
+                    currentTrack = null;
                     isShutdown = true;
                 }
                 logABS("Exit logging...");
 
             }
-
-            private void waitGpsInterval( long waitForSecs ) {
-                try {
-                    // get interval and wait
-                    Thread.sleep(waitForSecs * 1000L);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    String msg = context.getResources().getString(R.string.cantwrite_gpslog);
-                    GPLog.error(this, msg, e);
-                }
-            }
         };
         t.start();
 
@@ -248,23 +336,45 @@ public class GpsDatabaseLogger implements GpsManagerListener {
         Utilities.toast(context, R.string.gpsloggingoff, Toast.LENGTH_SHORT);
     }
 
+    /**
+     * Have the logging thread write the points of the running log that are still in memory.
+     * 
+     * <p>The write is left to the logging thread, which owns the buffer, so that the
+     * callers, usually on the main thread, don't wait for the database.</p>
+     */
+    private void requestFlush() {
+        if (pointsBuffer != null) {
+            isFlushRequested = true;
+        }
+    }
+
     /**
      * Get the current recorded log.
      * 
-     * @return the list of lon,lat.
+     * @return the points of the log or <code>null</code> if no log is being recorded.
      */
-    public List<double[]> getCurrentRecordedLog() {
+    public GpsLogTrack getCurrentRecordedLog() {
         if (isDatabaseLogging) {
-            return currentXY;
+            return currentTrack;
         } else {
             return null;
         }
     }
 
+    /**
+     * @return the number of points stored for the running log.
+     */
     public int getCurrentPointsNum() {
         return currentPointsNum;
     }
 
+    /**
+     * @return the number of positions received for the running log, before the compression.
+     */
+    public int getCurrentReceivedPointsNum() {
+        return currentReceivedPointsNum;
+    }
+
     public int getCurrentDistance() {
         return (int) currentDistance;
     }
@@ -276,6 +386,11 @@ public class GpsDatabaseLogger implements GpsManagerListener {
         lastLocationupdateMillis = SystemClock.elapsedRealtime();
 
         gpsLoc = new GpsLocation(location);
+        if (isDatabaseLogging && gotFix) {
+            if (!fixesQueue.offer(gpsLoc)) {
+                logH("Gps logging queue full, position dropped.");
+            }
+        }
     }
 
     public void onStatusChanged( String provider, int status, Bundle extras ) {
@@ -295,6 +410,7 @@ public class GpsDatabaseLogger implements GpsManagerListener {
     public void gpsStop() {
         lastLocationupdateMillis = 0;
         gotFix = false;
+        requestFlush();
         logH("gpsStop called");
     }
 
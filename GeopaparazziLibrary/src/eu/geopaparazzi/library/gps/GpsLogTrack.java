@@ -0,0 +1,124 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+/**
+ * The points of the gps log being recorded.
+ *
+ * <p>Points are only appended, by the logging thread. Readers take a {@link Snapshot}
+ * without locking: the arrays are published before the size, so the points up to
+ * the size of a snapshot are always complete, while the logger goes on appending.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogTrack {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * An immutable view of the first points of the track.
+     */
+    public static class Snapshot {
+        private final GpsLogTrack track;
+        private final double[] lons;
+        private final double[] lats;
+        private final int size;
+
+        private Snapshot( GpsLogTrack track, double[] lons, double[] lats, int size ) {
+            this.track = track;
+            this.lons = lons;
+            this.lats = lats;
+            this.size = size;
+        }
+
+        /**
+         * @return the track the snapshot was taken from.
+         */
+        public GpsLogTrack getTrack() {
+            return track;
+        }
+
+        /**
+         * @return the number of points.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param index the index of the point.
+         * @return the longitude of the point.
+         */
+        public double getLon( int index ) {
+            return lons[index];
+        }
+
+        /**
+         * @param index the index of the point.
+         * @return the latitude of the point.
+         */
+        public double getLat( int index ) {
+            return lats[index];
+        }
+    }
+
+    private volatile double[] lons = new double[INITIAL_CAPACITY];
+    private volatile double[] lats = new double[INITIAL_CAPACITY];
+    private volatile int size = 0;
+
+    /**
+     * Append a point. Only the logging thread calls this.
+     *
+     * @param lon the longitude.
+     * @param lat the latitude.
+     */
+    void add( double lon, double lat ) {
+        int currentSize = size;
+        double[] currentLons = lons;
+        double[] currentLats = lats;
+        if (currentSize == currentLons.length) {
+            double[] newLons = new double[currentSize * 2];
+            double[] newLats = new double[currentSize * 2];
+            System.arraycopy(currentLons, 0, newLons, 0, currentSize);
+            System.arraycopy(currentLats, 0, newLats, 0, currentSize);
+            currentLons = newLons;
+            currentLats = newLats;
+        }
+        currentLons[currentSize] = lon;
+        currentLats[currentSize] = lat;
+        lons = currentLons;
+        lats = currentLats;
+        // publish the point
+        size = currentSize + 1;
+    }
+
+    /**
+     * @return the number of points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the points added so far.
+     */
+    public Snapshot getSnapshot() {
+        // the size first, the arrays read after it hold at least its points
+        int currentSize = size;
+        return new Snapshot(this, lons, lats, currentSize);
+    }
+}
@@ -312,6 +312,14 @@ public class GpsManager implements LocationListener, Listener {
         return gpsLogger.getCurrentPointsNum();
     }
 
+    /**
+     * @return the number of positions received for the gps log being recorded, of which
+     *          {@link #getCurrentRunningGpsLogPointsNum()} were stored.
+     */
+    public int getCurrentRunningGpsLogReceivedPointsNum() {
+        return gpsLogger.getCurrentReceivedPointsNum();
+    }
+
     public long getCurrentRecordedLogId() {
         if (gpsLogger == null) {
             return -1l;
@@ -328,7 +336,10 @@ public class GpsManager implements LocationListener, Listener {
      * 
      * @return the gps log or <code>null</code>.
      */
-    public List<double[]> getCurrentRecordedGpsLog() {
+    public GpsLogTrack getCurrentRecordedGpsLog() {
+        if (gpsLogger == null) {
+            return null;
+        }
         return gpsLogger.getCurrentRecordedLog();
     }
 
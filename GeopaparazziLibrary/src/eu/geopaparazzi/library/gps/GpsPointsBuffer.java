@@ -0,0 +1,302 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import eu.geopaparazzi.library.database.GPLog;
+
+/**
+ * Write behind buffer of the gps log points.
+ *
+ * <p>Points are collected in memory and written to the database in a single
+ * transaction every {@link #MAX_POINTS} points or {@link #MAX_DELAY_MILLIS}
+ * milliseconds, instead of one transaction per point.</p>
+ *
+ * <p>Until they are committed, the points are also appended to a journal file,
+ * which is a cheap sequential write. If the process dies with points still in
+ * memory, they are recovered from the journal with {@link #recover(Context, IGpsLogDbHelper, SQLiteDatabase)}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsPointsBuffer {
+    /**
+     * The max number of points kept in memory before writing them.
+     */
+    public static final int MAX_POINTS = 50;
+
+    /**
+     * The max time a point is kept in memory before writing it.
+     */
+    public static final long MAX_DELAY_MILLIS = 5000;
+
+    private static final String JOURNAL_NAME = "gpslog_journal.txt";
+    private static final String SEPARATOR = ";";
+
+    private final IGpsLogDbHelper dbHelper;
+    private final SQLiteDatabase sqliteDatabase;
+    private final File journalFile;
+    private Writer journal;
+
+    private final long[] logIds = new long[MAX_POINTS];
+    private final double[] lons = new double[MAX_POINTS];
+    private final double[] lats = new double[MAX_POINTS];
+    private final double[] altims = new double[MAX_POINTS];
+    private final long[] times = new long[MAX_POINTS];
+    private int size = 0;
+    private long firstPointMillis;
+
+    private final double[] runLons = new double[MAX_POINTS];
+    private final double[] runLats = new double[MAX_POINTS];
+    private final double[] runAltims = new double[MAX_POINTS];
+    private final long[] runTimes = new long[MAX_POINTS];
+
+    /**
+     * @param context the context to use.
+     * @param dbHelper the helper that writes the points.
+     * @param sqliteDatabase the database to write to.
+     */
+    public GpsPointsBuffer( Context context, IGpsLogDbHelper dbHelper, SQLiteDatabase sqliteDatabase ) {
+        this.dbHelper = dbHelper;
+        this.sqliteDatabase = sqliteDatabase;
+        journalFile = getJournalFile(context);
+    }
+
+    private static File getJournalFile( Context context ) {
+        return new File(context.getFilesDir(), JOURNAL_NAME);
+    }
+
+    /**
+     * Add a point, writing the buffer if it is full or old enough.
+     *
+     * @param logId the id of the log.
+     * @param lon the longitude.
+     * @param lat the latitude.
+     * @param altim the elevation.
+     * @param time the time of the point in milliseconds.
+     * @throws IOException if the points could not be written.
+     */
+    public synchronized void add( long logId, double lon, double lat, double altim, long time ) throws IOException {
+        if (size == MAX_POINTS) {
+            // a previous write failed, try again before taking more
+            flush();
+        }
+        if (journal == null) {
+            journal = new OutputStreamWriter(new FileOutputStream(journalFile, true));
+        }
+        journal.write(logId + SEPARATOR + lon + SEPARATOR + lat + SEPARATOR + altim + SEPARATOR + time + "\n");
+        journal.flush();
+
+        if (size == 0) {
+            firstPointMillis = SystemClock.elapsedRealtime();
+        }
+        logIds[size] = logId;
+        lons[size] = lon;
+        lats[size] = lat;
+        altims[size] = altim;
+        times[size] = time;
+        size++;
+
+        flushIfDue();
+    }
+
+    /**
+     * Write the points if the buffer is full or the oldest point waited long enough.
+     *
+     * @throws IOException if the points could not be written.
+     */
+    public synchronized void flushIfDue() throws IOException {
+        if (size == MAX_POINTS || (size > 0 && SystemClock.elapsedRealtime() - firstPointMillis >= MAX_DELAY_MILLIS)) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all the points in a single transaction.
+     *
+     * <p>The points of each log are written at once, which in compact storage writes each
+     * chunk once. If the write fails, the points stay in the buffer and in the journal.</p>
+     *
+     * @throws IOException if the points could not be written.
+     */
+    public synchronized void flush() throws IOException {
+        if (size == 0) {
+            return;
+        }
+        boolean committed = false;
+        sqliteDatabase.beginTransaction();
+        try {
+            int start = 0;
+            while( start < size ) {
+                long logId = logIds[start];
+                int end = start + 1;
+                while( end < size && logIds[end] == logId ) {
+                    end++;
+                }
+                if (start == 0) {
+                    dbHelper.addGpsLogDataPoints(sqliteDatabase, logId, lons, lats, altims, times, end);
+                } else {
+                    // the points of a following log, move them to the start of the arrays
+                    int count = end - start;
+                    System.arraycopy(lons, start, runLons, 0, count);
+                    System.arraycopy(lats, start, runLats, 0, count);
+                    System.arraycopy(altims, start, runAltims, 0, count);
+                    System.arraycopy(times, start, runTimes, 0, count);
+                    dbHelper.addGpsLogDataPoints(sqliteDatabase, logId, runLons, runLats, runAltims, runTimes, count);
+                }
+                start = end;
+            }
+            sqliteDatabase.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            sqliteDatabase.endTransaction();
+            if (!committed) {
+                long[] rolledBackIds = new long[size];
+                System.arraycopy(logIds, 0, rolledBackIds, 0, size);
+                dbHelper.onGpsLogDataPointsRolledBack(rolledBackIds);
+            }
+        }
+        size = 0;
+
+        // the points are safe, start a new journal
+        if (journal != null) {
+            journal.close();
+        }
+        journal = new OutputStreamWriter(new FileOutputStream(journalFile, false));
+    }
+
+    /**
+     * Write the remaining points and remove the journal.
+     *
+     * <p>If the points can't be written, the journal is kept for a later recovery.</p>
+     */
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (Exception e) {
+            GPLog.error(this, "Could not write the last gps log points, they are kept for recovery.", e);
+        }
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        } catch (IOException e) {
+            GPLog.error(this, null, e);
+        }
+        if (size == 0 && !journalFile.delete() && journalFile.exists()) {
+            GPLog.addLogEntry(this, "Could not delete the gps log journal: " + journalFile);
+        }
+    }
+
+    /**
+     * Write the points left in the journal by a previous run that didn't end properly.
+     *
+     * <p>A point committed right before the process died, while its journal was not
+     * yet reset, can be written twice.</p>
+     *
+     * @param context the context to use.
+     * @param dbHelper the helper that writes the points.
+     * @param sqliteDatabase the database to write to.
+     * @return the number of recovered points.
+     * @throws IOException if the points could not be written.
+     */
+    public static int recover( Context context, IGpsLogDbHelper dbHelper, SQLiteDatabase sqliteDatabase ) throws IOException {
+        File journalFile = getJournalFile(context);
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        int count = 0;
+        double[] lons = new double[MAX_POINTS];
+        double[] lats = new double[MAX_POINTS];
+        double[] altims = new double[MAX_POINTS];
+        long[] times = new long[MAX_POINTS];
+        int runCount = 0;
+        long runLogId = -1;
+        List<Long> recoveredIds = new ArrayList<Long>();
+        boolean committed = false;
+        BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        sqliteDatabase.beginTransaction();
+        try {
+            String line;
+            while( (line = reader.readLine()) != null ) {
+                String[] split = line.split(SEPARATOR);
+                if (split.length != 5) {
+                    // last line of a crash while writing
+                    continue;
+                }
+                try {
+                    long logId = Long.parseLong(split[0]);
+                    double lon = Double.parseDouble(split[1]);
+                    double lat = Double.parseDouble(split[2]);
+                    double altim = Double.parseDouble(split[3]);
+                    long time = Long.parseLong(split[4]);
+                    if (runCount > 0 && (logId != runLogId || runCount == MAX_POINTS)) {
+                        dbHelper.addGpsLogDataPoints(sqliteDatabase, runLogId, lons, lats, altims, times, runCount);
+                        runCount = 0;
+                    }
+                    if (!recoveredIds.contains(logId)) {
+                        recoveredIds.add(logId);
+                    }
+                    runLogId = logId;
+                    lons[runCount] = lon;
+                    lats[runCount] = lat;
+                    altims[runCount] = altim;
+                    times[runCount] = time;
+                    runCount++;
+                    count++;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+            if (runCount > 0) {
+                dbHelper.addGpsLogDataPoints(sqliteDatabase, runLogId, lons, lats, altims, times, runCount);
+            }
+            sqliteDatabase.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            sqliteDatabase.endTransaction();
+            reader.close();
+            if (!committed) {
+                long[] rolledBackIds = new long[recoveredIds.size()];
+                for( int i = 0; i < rolledBackIds.length; i++ ) {
+                    rolledBackIds[i] = recoveredIds.get(i);
+                }
+                dbHelper.onGpsLogDataPointsRolledBack(rolledBackIds);
+            }
+        }
+        if (!journalFile.delete()) {
+            throw new IOException("Could not delete the gps log journal: " + journalFile);
+        }
+        if (count > 0)
+            GPLog.addLogEntry("GPSPOINTSBUFFER", "Recovered gps log points: " + count);
+        return count;
+    }
+}
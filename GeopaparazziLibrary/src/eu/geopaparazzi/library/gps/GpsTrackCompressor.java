@@ -0,0 +1,125 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.location.Location;
+
+/**
+ * Streaming compression of a gps track, with the opening window algorithm.
+ *
+ * <p>The last kept point is the anchor. A new position is accepted in the window
+ * if all the positions received since the anchor lie within the tolerance from the
+ * segment that joins the anchor to the new position. When that fails, the previous
+ * position is kept and becomes the new anchor. The track drawn through the kept
+ * points is then never further than the tolerance from the received positions.</p>
+ *
+ * <p>Since a position is kept only when the next one arrives, {@link #finish()} has
+ * to be called at the end of the track to get the last one.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsTrackCompressor {
+    /**
+     * The max number of positions in the window, to bound the work per position.
+     */
+    private static final int MAX_WINDOW_SIZE = 200;
+
+    private static final double METERS_PER_DEGREE = 111319.49;
+
+    private final double tolerance;
+    private Location anchor = null;
+    private final List<Location> window = new ArrayList<Location>();
+
+    /**
+     * @param tolerance the max distance in meters between the received positions
+     *          and the compressed track.
+     */
+    public GpsTrackCompressor( double tolerance ) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Add a received position.
+     *
+     * @param location the position.
+     * @return the position to keep because of this one, or <code>null</code>.
+     */
+    public Location add( Location location ) {
+        if (anchor == null) {
+            // the first position is always kept
+            anchor = location;
+            return location;
+        }
+        if (window.size() < MAX_WINDOW_SIZE && fitsWindow(location)) {
+            window.add(location);
+            return null;
+        }
+        Location kept = window.get(window.size() - 1);
+        anchor = kept;
+        window.clear();
+        window.add(location);
+        return kept;
+    }
+
+    /**
+     * End the track.
+     *
+     * @return the last received position, if it was not kept yet, or <code>null</code>.
+     */
+    public Location finish() {
+        Location last = null;
+        if (window.size() > 0) {
+            last = window.get(window.size() - 1);
+        }
+        anchor = null;
+        window.clear();
+        return last;
+    }
+
+    /**
+     * Checks that all the positions of the window are near the segment from the anchor to a position.
+     */
+    private boolean fitsWindow( Location location ) {
+        if (window.size() == 0) {
+            return true;
+        }
+        // local equirectangular projection in meters around the anchor
+        double lon0 = anchor.getLongitude();
+        double lat0 = anchor.getLatitude();
+        double xScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat0));
+        double ex = (location.getLongitude() - lon0) * xScale;
+        double ey = (location.getLatitude() - lat0) * METERS_PER_DEGREE;
+        double lengthSquared = ex * ex + ey * ey;
+        double toleranceSquared = tolerance * tolerance;
+        for( Location point : window ) {
+            double px = (point.getLongitude() - lon0) * xScale;
+            double py = (point.getLatitude() - lat0) * METERS_PER_DEGREE;
+            double t = lengthSquared == 0 ? 0 : (px * ex + py * ey) / lengthSquared;
+            t = Math.max(0, Math.min(1, t));
+            double dx = px - t * ex;
+            double dy = py - t * ey;
+            if (dx * dx + dy * dy > toleranceSquared) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -70,6 +70,35 @@ public interface IGpsLogDbHelper {
     public void addGpsLogDataPoint( SQLiteDatabase sqliteDatabase, long gpslogId, double lon, double lat, double altim,
             Date timestamp ) throws IOException;
 
+    /**
+     * Adds many gps log points to a log.
+     * 
+     * <p>Same as calling {@link #addGpsLogDataPoint(SQLiteDatabase, long, double, double, double, Date)}
+     * for each point, but the helper can write them at once.</p>
+     * 
+     * <p>Transactions have to be opened and closed.</p>
+     * 
+     * @param sqliteDatabase the db to use.
+     * @param gpslogId the log id to which to add to.
+     * @param lons the lon coordinates.
+     * @param lats the lat coordinates.
+     * @param altims the elevations of the points.
+     * @param times the timestamps of the points, in milliseconds.
+     * @param count the number of points to add, from the start of the arrays.
+     * @throws IOException
+     */
+    public void addGpsLogDataPoints( SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+            double[] altims, long[] times, int count ) throws IOException;
+
+    /**
+     * Tells that a transaction in which points were added to some logs has been rolled back.
+     * 
+     * <p>Helpers that keep in memory the state of the logs they write, have to forget it.</p>
+     * 
+     * @param gpslogIds the ids of the logs to which points were added.
+     */
+    public void onGpsLogDataPointsRolledBack( long... gpslogIds );
+
     /**
      * Deletes a gps log from the database. 
      * 
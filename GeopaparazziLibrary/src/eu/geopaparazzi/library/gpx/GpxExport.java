@@ -19,8 +19,9 @@ package eu.geopaparazzi.library.gpx;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.util.Date;
 import java.util.List;
 
@@ -29,13 +30,18 @@ import eu.geodroid.library.util.LibraryConstants;
 import eu.geopaparazzi.library.database.GPLog;
 
 /**
- * A kmz exporter for notes, logs and pics.
+ * A gpx exporter for notes and logs.
+ * 
+ * <p>{@link GpxStreamRepresenter}s write their gpx as they produce it, without
+ * building it in memory.</p>
  * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 @SuppressWarnings("nls")
 public class GpxExport {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final File outputFile;
     private String name;
 
@@ -57,7 +63,7 @@ public class GpxExport {
 
         BufferedWriter bW = null;
         try {
-            bW = new BufferedWriter(new FileWriter(outputFile));
+            bW = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"), BUFFER_SIZE);
             bW.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
             bW.write("<gpx\n");
             bW.write("  version=\"1.0\"\n");
@@ -84,7 +90,14 @@ public class GpxExport {
                     + "\"/>\n");
             for( GpxRepresenter gpxRepresenter : gpxRepresenters ) {
                 try {
-                    bW.write(gpxRepresenter.toGpxString());
+                    if (gpxRepresenter instanceof GpxStreamRepresenter) {
+                        ((GpxStreamRepresenter) gpxRepresenter).writeGpx(bW);
+                    } else {
+                        bW.write(gpxRepresenter.toGpxString());
+                    }
+                } catch (IOException e) {
+                    // the gpx can't be written
+                    throw e;
                 } catch (Exception e) {
                     GPLog.error(this, e.getLocalizedMessage(), e);
                     e.printStackTrace();
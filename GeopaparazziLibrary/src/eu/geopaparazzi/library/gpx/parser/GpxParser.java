@@ -16,14 +16,17 @@
 
 package eu.geopaparazzi.library.gpx.parser;
 
-import java.io.FileReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.List;
 import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
@@ -39,6 +42,8 @@ import org.xml.sax.helpers.DefaultHandler;
  * It parses basic waypoint information, and tracks (merging segments).
  * 
  * <p>Modified to also handle routes and multiple segments by Andrea Antonello (www.hydrologis.com)
+ * 
+ * <p>Large files can be streamed with {@link #parse(IGpxStreamHandler)}, which keeps nothing in memory.
  */
 public class GpxParser {
     private final static String NODE_WAYPOINT = "wpt"; //$NON-NLS-1$
@@ -65,11 +70,6 @@ public class GpxParser {
 
     private GpxHandler mHandler;
 
-    /** Pattern to parse time with optional sub-second precision, and optional
-     * Z indicating the time is in UTC. */
-    private final static Pattern ISO8601_TIME = Pattern
-            .compile("(\\d{4})-(\\d\\d)-(\\d\\d)T(\\d\\d):(\\d\\d):(\\d\\d)(?:(\\.\\d+))?(Z)?"); //$NON-NLS-1$
-
     /**
      * Handler for the SAX parser.
      */
@@ -184,47 +184,7 @@ public class GpxParser {
          * @return date in milliseconds.
          */
         private long computeTime( String timeString ) {
-            // Time looks like: 2008-04-05T19:24:50Z
-            Matcher m = ISO8601_TIME.matcher(timeString);
-            if (m.matches()) {
-                // get the various elements and reconstruct time as a long.
-                try {
-                    int year = Integer.parseInt(m.group(1));
-                    int month = Integer.parseInt(m.group(2));
-                    int date = Integer.parseInt(m.group(3));
-                    int hourOfDay = Integer.parseInt(m.group(4));
-                    int minute = Integer.parseInt(m.group(5));
-                    int second = Integer.parseInt(m.group(6));
-
-                    // handle the optional parameters.
-                    int milliseconds = 0;
-
-                    String subSecondGroup = m.group(7);
-                    if (subSecondGroup != null) {
-                        milliseconds = (int) (1000 * Double.parseDouble(subSecondGroup));
-                    }
-
-                    boolean utcTime = m.group(8) != null;
-
-                    // now we convert into milliseconds since epoch.
-                    Calendar c;
-                    if (utcTime) {
-                        c = Calendar.getInstance(TimeZone.getTimeZone("GMT")); //$NON-NLS-1$
-                    } else {
-                        c = Calendar.getInstance();
-                    }
-
-                    c.set(year, month, date, hourOfDay, minute, second);
-
-                    return c.getTimeInMillis() + milliseconds;
-                } catch (NumberFormatException e) {
-                    // format is invalid, we'll return -1 below.
-                }
-
-            }
-
-            // invalid time!
-            return -1;
+            return parseTime(timeString);
         }
 
         /**
@@ -260,6 +220,218 @@ public class GpxParser {
         }
     }
 
+    /**
+     * Handler for the SAX parser that pushes the content to a {@link IGpxStreamHandler}
+     * instead of collecting it.
+     */
+    private static class GpxStreamHandler extends DefaultHandler {
+        private final IGpxStreamHandler mStreamHandler;
+        private final CountingInputStream mInputStream;
+        private final long mTotalBytes;
+        private long mReportedBytes = -1;
+
+        // --------- state for parsing ---------
+        boolean mInWayPoint;
+        boolean mInTrack;
+        boolean mInTrackSegment;
+        boolean mInRoute;
+        boolean mInLinePoint;
+        boolean mLineStarted;
+        String mLineName;
+        boolean mHasLocation;
+        double mLongitude;
+        double mLatitude;
+        double mElevation;
+        long mTime;
+        String mName;
+        String mDescription;
+        final StringBuilder mStringAccumulator = new StringBuilder();
+
+        GpxStreamHandler( IGpxStreamHandler streamHandler, CountingInputStream inputStream, long totalBytes ) {
+            mStreamHandler = streamHandler;
+            mInputStream = inputStream;
+            mTotalBytes = totalBytes;
+        }
+
+        @Override
+        public void startElement( String uri, String localName, String name, Attributes attributes ) throws SAXException {
+            if (NODE_WAYPOINT.equals(localName)) {
+                mInWayPoint = true;
+                mName = null;
+                mDescription = null;
+                startPoint(attributes);
+            } else if (NODE_TRACK.equals(localName)) {
+                mInTrack = true;
+                mLineName = null;
+            } else if (NODE_TRACK_SEGMENT.equals(localName)) {
+                if (mInTrack) {
+                    mInTrackSegment = true;
+                    mLineStarted = false;
+                }
+            } else if (NODE_TRACK_POINT.equals(localName)) {
+                if (mInTrackSegment) {
+                    mInLinePoint = true;
+                    startPoint(attributes);
+                }
+            } else if (NODE_ROUTE.equals(localName)) {
+                mInRoute = true;
+                mLineName = null;
+                mLineStarted = false;
+            } else if (NODE_ROUTE_POINT.equals(localName)) {
+                if (mInRoute) {
+                    mInLinePoint = true;
+                    startPoint(attributes);
+                }
+            }
+            // no matter the node, we empty the StringBuilder accumulator when we start
+            // a new node.
+            mStringAccumulator.setLength(0);
+        }
+
+        @Override
+        public void characters( char[] ch, int start, int length ) throws SAXException {
+            mStringAccumulator.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement( String uri, String localName, String name ) throws SAXException {
+            try {
+                if (NODE_WAYPOINT.equals(localName)) {
+                    if (mInWayPoint && mHasLocation) {
+                        mStreamHandler.wayPoint(mLongitude, mLatitude, mElevation, mTime, mName, mDescription);
+                        reportProgress();
+                    }
+                    mInWayPoint = false;
+                } else if (NODE_TRACK.equals(localName)) {
+                    mInTrack = false;
+                } else if (NODE_TRACK_SEGMENT.equals(localName)) {
+                    if (mInTrackSegment && mLineStarted) {
+                        mStreamHandler.lineEnd();
+                    }
+                    mInTrackSegment = false;
+                } else if (NODE_ROUTE.equals(localName)) {
+                    if (mInRoute && mLineStarted) {
+                        mStreamHandler.lineEnd();
+                    }
+                    mInRoute = false;
+                } else if (NODE_TRACK_POINT.equals(localName) || NODE_ROUTE_POINT.equals(localName)) {
+                    if (mInLinePoint && mHasLocation) {
+                        if (!mLineStarted) {
+                            mStreamHandler.lineStart(mLineName, mInRoute);
+                            mLineStarted = true;
+                        }
+                        mStreamHandler.linePoint(mLongitude, mLatitude, mElevation, mTime);
+                        reportProgress();
+                    }
+                    mInLinePoint = false;
+                } else if (NODE_NAME.equals(localName)) {
+                    if (mInWayPoint) {
+                        mName = mStringAccumulator.toString();
+                    } else if (!mInLinePoint && (mInRoute || (mInTrack && !mInTrackSegment))) {
+                        mLineName = mStringAccumulator.toString();
+                    }
+                } else if (NODE_TIME.equals(localName)) {
+                    if (mInWayPoint || mInLinePoint) {
+                        mTime = parseTime(mStringAccumulator);
+                    }
+                } else if (NODE_ELEVATION.equals(localName)) {
+                    if (mInWayPoint || mInLinePoint) {
+                        try {
+                            mElevation = Double.parseDouble(mStringAccumulator.toString().trim());
+                        } catch (NumberFormatException e) {
+                            mElevation = Double.NaN;
+                        }
+                    }
+                } else if (NODE_DESCRIPTION.equals(localName)) {
+                    if (mInWayPoint) {
+                        mDescription = mStringAccumulator.toString();
+                    }
+                }
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void error( SAXParseException e ) throws SAXException {
+            throw e;
+        }
+
+        @Override
+        public void fatalError( SAXParseException e ) throws SAXException {
+            throw e;
+        }
+
+        private void startPoint( Attributes attributes ) {
+            mElevation = Double.NaN;
+            mTime = -1;
+            try {
+                mLongitude = Double.parseDouble(attributes.getValue(ATTR_LONGITUDE));
+                mLatitude = Double.parseDouble(attributes.getValue(ATTR_LATITUDE));
+                mHasLocation = true;
+            } catch (Exception e) {
+                // wrong data, the point is skipped.
+                mHasLocation = false;
+            }
+        }
+
+        /**
+         * Reports the progress, only if more bytes were read since the last time.
+         */
+        private void reportProgress() {
+            long readBytes = mInputStream.getCount();
+            if (readBytes != mReportedBytes) {
+                mReportedBytes = readBytes;
+                mStreamHandler.progress(readBytes, mTotalBytes);
+            }
+        }
+    }
+
+    /**
+     * An input stream that counts the bytes read.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+
+        CountingInputStream( InputStream in ) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                mCount++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip( long n ) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
     /**
      * A GPS track.
      * <p/>A track is composed of a list of {@link TrackPoint} and optional name and comment.
@@ -386,7 +558,12 @@ public class GpxParser {
 
             mHandler = new GpxHandler();
 
-            parser.parse(new InputSource(new FileReader(mFileName)), mHandler);
+            InputStream inputStream = new BufferedInputStream(new FileInputStream(mFileName));
+            try {
+                parser.parse(new InputSource(inputStream), mHandler);
+            } finally {
+                inputStream.close();
+            }
 
             return mHandler.getSuccess();
         } catch (Exception e) {
@@ -396,6 +573,34 @@ public class GpxParser {
         return false;
     }
 
+    /**
+     * Parses the GPX file, pushing its content to a handler while reading it.
+     * 
+     * <p>Nothing is collected, {@link #getWayPoints()}, {@link #getTracks()} and 
+     * {@link #getRoutes()} return <code>null</code> after this.</p>
+     * 
+     * @param streamHandler the handler that receives the content.
+     * @throws IOException if the file can't be read or parsed, or if the handler fails.
+     */
+    public void parse( IGpxStreamHandler streamHandler ) throws IOException {
+        mHandler = null;
+        File file = new File(mFileName);
+        CountingInputStream inputStream = new CountingInputStream(new FileInputStream(file));
+        try {
+            SAXParser parser = sParserFactory.newSAXParser();
+            parser.parse(new InputSource(new BufferedInputStream(inputStream)), new GpxStreamHandler(streamHandler,
+                    inputStream, file.length()));
+        } catch (SAXException e) {
+            throw toIOException(e);
+        } catch (ParserConfigurationException e) {
+            IOException ioException = new IOException(e.getLocalizedMessage());
+            ioException.initCause(e);
+            throw ioException;
+        } finally {
+            inputStream.close();
+        }
+    }
+
     /**
      * Returns the parsed {@link WayPoint} objects, or <code>null</code> if none were found (or
      * if the parsing failed.
@@ -424,4 +629,135 @@ public class GpxParser {
         return null;
     }
 
+    /**
+     * Unwraps the exception thrown by a stream handler from a {@link SAXException}.
+     * 
+     * @param e the exception thrown by the parser.
+     * @return the exception of the handler or an {@link IOException} wrapping the parser's one.
+     */
+    static IOException toIOException( SAXException e ) {
+        Exception cause = e.getException();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        IOException ioException = new IOException(e.getLocalizedMessage());
+        ioException.initCause(e);
+        return ioException;
+    }
+
+    /**
+     * Converts an ISO 8601 time, as used in gpx, into milliseconds since epoch.
+     * 
+     * <p>Time looks like: 2008-04-05T19:24:50Z, with optional sub-second precision
+     * and an optional Z or offset. Without Z or offset, the time is local.</p>
+     * 
+     * @param timeString the string data.
+     * @return date in milliseconds or <code>-1</code>, if the time is invalid.
+     */
+    public static long parseTime( CharSequence timeString ) {
+        int p = 0;
+        int end = timeString.length();
+        while( p < end && timeString.charAt(p) <= ' ' ) {
+            p++;
+        }
+        while( end > p && timeString.charAt(end - 1) <= ' ' ) {
+            end--;
+        }
+        if (end - p < 19) {
+            return -1;
+        }
+        int year = parseDigits(timeString, p, 4);
+        int month = parseDigits(timeString, p + 5, 2);
+        int day = parseDigits(timeString, p + 8, 2);
+        int hour = parseDigits(timeString, p + 11, 2);
+        int minute = parseDigits(timeString, p + 14, 2);
+        int second = parseDigits(timeString, p + 17, 2);
+        char separator = timeString.charAt(p + 10);
+        if (timeString.charAt(p + 4) != '-' || timeString.charAt(p + 7) != '-'
+                || (separator != 'T' && separator != 't' && separator != ' ') || timeString.charAt(p + 13) != ':'
+                || timeString.charAt(p + 16) != ':') {
+            return -1;
+        }
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0
+                || minute > 59 || second < 0 || second > 60) {
+            return -1;
+        }
+        p += 19;
+
+        int milliseconds = 0;
+        if (p < end && timeString.charAt(p) == '.') {
+            p++;
+            int start = p;
+            int scale = 100;
+            while( p < end && timeString.charAt(p) >= '0' && timeString.charAt(p) <= '9' ) {
+                milliseconds += (timeString.charAt(p) - '0') * scale;
+                scale /= 10;
+                p++;
+            }
+            if (p == start) {
+                return -1;
+            }
+        }
+
+        boolean localTime = false;
+        int offsetMinutes = 0;
+        if (p == end) {
+            localTime = true;
+        } else if (timeString.charAt(p) == 'Z' || timeString.charAt(p) == 'z') {
+            p++;
+        } else if (timeString.charAt(p) == '+' || timeString.charAt(p) == '-') {
+            int sign = timeString.charAt(p) == '-' ? -1 : 1;
+            p++;
+            if (end - p < 2) {
+                return -1;
+            }
+            int offsetHours = parseDigits(timeString, p, 2);
+            p += 2;
+            int offsetMins = 0;
+            if (p < end && timeString.charAt(p) == ':') {
+                p++;
+            }
+            if (p < end) {
+                if (end - p < 2) {
+                    return -1;
+                }
+                offsetMins = parseDigits(timeString, p, 2);
+                p += 2;
+            }
+            if (offsetHours < 0 || offsetMins < 0) {
+                return -1;
+            }
+            offsetMinutes = sign * (offsetHours * 60 + offsetMins);
+        }
+        if (p != end) {
+            return -1;
+        }
+
+        // days since epoch of the date in the proleptic gregorian calendar
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        long time = (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000 + milliseconds - offsetMinutes * 60000L;
+        if (localTime) {
+            time -= TimeZone.getDefault().getOffset(time);
+        }
+        return time;
+    }
+
+    private static int parseDigits( CharSequence string, int start, int count ) {
+        int value = 0;
+        for( int i = start; i < start + count; i++ ) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
 }
@@ -0,0 +1,83 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gpx.parser;
+
+import java.io.IOException;
+
+/**
+ * Receiver of the content of a gpx file, while it is parsed by {@link GpxParser#parse(IGpxStreamHandler)}.
+ *
+ * <p>Points are pushed one at a time and nothing is kept by the parser, so the
+ * memory used doesn't depend on the size of the file.</p>
+ *
+ * <p>Tracks segments and routes are both reported as lines, between {@link #lineStart(String, boolean)}
+ * and {@link #lineEnd()}. Lines without points are not reported.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface IGpxStreamHandler {
+
+    /**
+     * A waypoint.
+     *
+     * @param lon the longitude.
+     * @param lat the latitude.
+     * @param elevation the elevation or {@link Double#NaN}, if missing.
+     * @param time the time in milliseconds or <code>-1</code>, if missing.
+     * @param name the name or <code>null</code>.
+     * @param description the description or <code>null</code>.
+     * @throws IOException to stop the parsing.
+     */
+    public void wayPoint( double lon, double lat, double elevation, long time, String name, String description )
+            throws IOException;
+
+    /**
+     * The start of a track segment or of a route.
+     *
+     * @param name the name of the track or route, or <code>null</code>.
+     * @param isRoute <code>true</code> for a route.
+     * @throws IOException to stop the parsing.
+     */
+    public void lineStart( String name, boolean isRoute ) throws IOException;
+
+    /**
+     * A point of the current line.
+     *
+     * @param lon the longitude.
+     * @param lat the latitude.
+     * @param elevation the elevation or {@link Double#NaN}, if missing.
+     * @param time the time in milliseconds or <code>-1</code>, if missing.
+     * @throws IOException to stop the parsing.
+     */
+    public void linePoint( double lon, double lat, double elevation, long time ) throws IOException;
+
+    /**
+     * The end of the current line.
+     *
+     * @throws IOException to stop the parsing.
+     */
+    public void lineEnd() throws IOException;
+
+    /**
+     * The progress of the parsing, reported each time more of the file is read.
+     *
+     * @param readBytes the bytes read so far.
+     * @param totalBytes the size of the file.
+     */
+    public void progress( long readBytes, long totalBytes );
+}
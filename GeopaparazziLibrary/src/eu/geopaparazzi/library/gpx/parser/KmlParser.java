@@ -16,6 +16,9 @@
 
 package eu.geopaparazzi.library.gpx.parser;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -37,6 +40,8 @@ import org.xml.sax.helpers.DefaultHandler;
  * A very basic KML parser to meet the need of the emulator control panel.
  * <p/>
  * It parses basic Placemark information.
+ * 
+ * <p>Points and lines of placemarks can be streamed with {@link #parse(IGpxStreamHandler)}.
  */
 public class KmlParser {
     
@@ -45,6 +50,10 @@ public class KmlParser {
     private final static String NODE_PLACEMARK = "Placemark"; //$NON-NLS-1$
     private final static String NODE_NAME = "name"; //$NON-NLS-1$
     private final static String NODE_COORDINATES = "coordinates"; //$NON-NLS-1$
+    private final static String NODE_DESCRIPTION = "description"; //$NON-NLS-1$
+    private final static String NODE_POINT = "Point"; //$NON-NLS-1$
+    private final static String NODE_LINESTRING = "LineString"; //$NON-NLS-1$
+    private final static String NS_KML = "kml"; //$NON-NLS-1$
     
     private final static Pattern sLocationPattern = Pattern.compile("([^,]+),([^,]+)(?:,([^,]+))?"); //$NON-NLS-1$
     
@@ -166,6 +175,206 @@ public class KmlParser {
         }
     }
 
+    /**
+     * Handler for the SAX parser that pushes the points and lines of the placemarks
+     * to a {@link IGpxStreamHandler}.
+     * 
+     * <p>The coordinates are parsed while they are read, so long lines are not kept in memory.</p>
+     */
+    private static class KmlStreamHandler extends DefaultHandler {
+        private final IGpxStreamHandler mStreamHandler;
+        private final GpxParser.CountingInputStream mInputStream;
+        private final long mTotalBytes;
+        private long mReportedBytes = -1;
+
+        // --------- state for parsing ---------
+        boolean mInPlacemark;
+        boolean mInPoint;
+        boolean mInLine;
+        boolean mInCoordinates;
+        boolean mLineStarted;
+        boolean mHasPoint;
+        double mPointLongitude;
+        double mPointLatitude;
+        double mPointElevation;
+        String mName;
+        String mDescription;
+        final StringBuilder mStringAccumulator = new StringBuilder();
+        final double[] mTuple = new double[3];
+
+        KmlStreamHandler( IGpxStreamHandler streamHandler, GpxParser.CountingInputStream inputStream, long totalBytes ) {
+            mStreamHandler = streamHandler;
+            mInputStream = inputStream;
+            mTotalBytes = totalBytes;
+        }
+
+        @Override
+        public void startElement( String uri, String localName, String name, Attributes attributes ) throws SAXException {
+            if (uri.indexOf(NS_KML) != -1) {
+                if (NODE_PLACEMARK.equals(localName)) {
+                    mInPlacemark = true;
+                    mHasPoint = false;
+                    mName = null;
+                    mDescription = null;
+                } else if (NODE_POINT.equals(localName)) {
+                    mInPoint = mInPlacemark;
+                } else if (NODE_LINESTRING.equals(localName)) {
+                    mInLine = mInPlacemark;
+                    mLineStarted = false;
+                } else if (NODE_COORDINATES.equals(localName)) {
+                    mInCoordinates = mInPoint || mInLine;
+                }
+            }
+            // no matter the node, we empty the StringBuilder accumulator when we start
+            // a new node.
+            mStringAccumulator.setLength(0);
+        }
+
+        @Override
+        public void characters( char[] ch, int start, int length ) throws SAXException {
+            mStringAccumulator.append(ch, start, length);
+            if (mInCoordinates) {
+                // consume the complete tuples, the last one could go on in the next characters
+                int last = mStringAccumulator.length() - 1;
+                while( last >= 0 && !Character.isWhitespace(mStringAccumulator.charAt(last)) ) {
+                    last--;
+                }
+                if (last > 0) {
+                    handleCoordinates(mStringAccumulator.substring(0, last));
+                    mStringAccumulator.delete(0, last);
+                }
+            }
+        }
+
+        @Override
+        public void endElement( String uri, String localName, String name ) throws SAXException {
+            if (uri.indexOf(NS_KML) == -1) {
+                return;
+            }
+            try {
+                if (NODE_PLACEMARK.equals(localName)) {
+                    if (mHasPoint) {
+                        mStreamHandler.wayPoint(mPointLongitude, mPointLatitude, mPointElevation, -1, mName, mDescription);
+                        reportProgress();
+                    }
+                    mInPlacemark = false;
+                } else if (NODE_POINT.equals(localName)) {
+                    mInPoint = false;
+                } else if (NODE_LINESTRING.equals(localName)) {
+                    if (mLineStarted) {
+                        mStreamHandler.lineEnd();
+                    }
+                    mInLine = false;
+                } else if (NODE_COORDINATES.equals(localName)) {
+                    if (mInCoordinates) {
+                        handleCoordinates(mStringAccumulator.toString());
+                        mInCoordinates = false;
+                    }
+                } else if (NODE_NAME.equals(localName)) {
+                    if (mInPlacemark) {
+                        mName = mStringAccumulator.toString();
+                    }
+                } else if (NODE_DESCRIPTION.equals(localName)) {
+                    if (mInPlacemark) {
+                        mDescription = mStringAccumulator.toString();
+                    }
+                }
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void error( SAXParseException e ) throws SAXException {
+            throw e;
+        }
+
+        @Override
+        public void fatalError( SAXParseException e ) throws SAXException {
+            throw e;
+        }
+
+        /**
+         * Handles a piece of the coordinates, made of complete lon,lat[,elev] tuples.
+         */
+        private void handleCoordinates( String coordinates ) throws SAXException {
+            try {
+                int length = coordinates.length();
+                int p = 0;
+                while( p < length ) {
+                    while( p < length && Character.isWhitespace(coordinates.charAt(p)) ) {
+                        p++;
+                    }
+                    int start = p;
+                    while( p < length && !Character.isWhitespace(coordinates.charAt(p)) ) {
+                        p++;
+                    }
+                    if (p > start && parseTuple(coordinates.substring(start, p))) {
+                        handleTuple();
+                    }
+                }
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        /**
+         * Parses a lon,lat[,elev] tuple into {@link #mTuple}.
+         * 
+         * @return <code>false</code> if the tuple is invalid.
+         */
+        private boolean parseTuple( String tuple ) {
+            int firstComma = tuple.indexOf(',');
+            if (firstComma == -1) {
+                return false;
+            }
+            int secondComma = tuple.indexOf(',', firstComma + 1);
+            try {
+                mTuple[0] = Double.parseDouble(tuple.substring(0, firstComma));
+                if (secondComma == -1) {
+                    mTuple[1] = Double.parseDouble(tuple.substring(firstComma + 1));
+                    mTuple[2] = Double.NaN;
+                } else {
+                    mTuple[1] = Double.parseDouble(tuple.substring(firstComma + 1, secondComma));
+                    mTuple[2] = Double.parseDouble(tuple.substring(secondComma + 1));
+                }
+                return true;
+            } catch (NumberFormatException e) {
+                // wrong data, the tuple is skipped.
+                return false;
+            }
+        }
+
+        private void handleTuple() throws IOException {
+            if (mInPoint) {
+                if (!mHasPoint) {
+                    mPointLongitude = mTuple[0];
+                    mPointLatitude = mTuple[1];
+                    mPointElevation = mTuple[2];
+                    mHasPoint = true;
+                }
+            } else if (mInLine) {
+                if (!mLineStarted) {
+                    mStreamHandler.lineStart(mName, false);
+                    mLineStarted = true;
+                }
+                mStreamHandler.linePoint(mTuple[0], mTuple[1], mTuple[2], -1);
+                reportProgress();
+            }
+        }
+
+        /**
+         * Reports the progress, only if more bytes were read since the last time.
+         */
+        private void reportProgress() {
+            long readBytes = mInputStream.getCount();
+            if (readBytes != mReportedBytes) {
+                mReportedBytes = readBytes;
+                mStreamHandler.progress(readBytes, mTotalBytes);
+            }
+        }
+    }
+
     /**
      * Creates a new GPX parser for a file specified by its full path.
      * @param fileName The full path of the GPX file to parse.
@@ -196,6 +405,33 @@ public class KmlParser {
         return false;
     }
     
+    /**
+     * Parses the KML file, pushing the points and lines of the placemarks to a handler while reading it.
+     * 
+     * <p>Nothing is collected, {@link #getWayPoints()} returns <code>null</code> after this.</p>
+     * 
+     * @param streamHandler the handler that receives the content.
+     * @throws IOException if the file can't be read or parsed, or if the handler fails.
+     */
+    public void parse( IGpxStreamHandler streamHandler ) throws IOException {
+        mHandler = null;
+        File file = new File(mFileName);
+        GpxParser.CountingInputStream inputStream = new GpxParser.CountingInputStream(new FileInputStream(file));
+        try {
+            SAXParser parser = sParserFactory.newSAXParser();
+            parser.parse(new InputSource(new BufferedInputStream(inputStream)), new KmlStreamHandler(streamHandler,
+                    inputStream, file.length()));
+        } catch (SAXException e) {
+            throw GpxParser.toIOException(e);
+        } catch (ParserConfigurationException e) {
+            IOException ioException = new IOException(e.getLocalizedMessage());
+            ioException.initCause(e);
+            throw ioException;
+        } finally {
+            inputStream.close();
+        }
+    }
+
     /**
      * Returns the parsed {@link WayPoint} objects, or <code>null</code> if none were found (or
      * if the parsing failed.
@@ -19,19 +19,28 @@ package eu.geopaparazzi.library.kml;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import android.content.Context;
 import eu.geodroid.library.util.CompressionUtilities;
 import eu.geodroid.library.util.ResourcesManager;
+import eu.geodroid.library.util.ZipWriter;
 import eu.geopaparazzi.library.database.GPLog;
 
 /**
  * A kmz exporter for notes, logs and pics.
  * 
+ * <p>The kml is written directly into a deflated entry of the kmz, without temporary
+ * files. {@link KmlStreamRepresenter}s write their kml as they produce it. The images
+ * are then copied in a single pass, without compressing them again
+ * (see {@link CompressionUtilities#isCompressed(String)}).</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 @SuppressWarnings("nls")
@@ -60,13 +69,14 @@ public class KmzExport {
 
         List<File> existingImages = new ArrayList<File>();
 
-        /*
-         * write the internal kml file
-         */
-        File kmlFile = new File(outputFile.getParentFile(), "kml.kml");
-        BufferedWriter bW = null;
+        ZipWriter zipWriter = new ZipWriter(outputFile);
+        boolean success = false;
         try {
-            bW = new BufferedWriter(new FileWriter(kmlFile));
+            /*
+             * write the internal kml file
+             */
+            Writer bW = new BufferedWriter(new OutputStreamWriter(zipWriter.putEntry("kml.kml", System.currentTimeMillis(), true),
+                    "UTF-8"), ZipWriter.BUFFER_SIZE);
             bW.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
             bW.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\" xmlns:gx=\"http://www.google.com/kml/ext/2.2\"\n");
             bW.write("xmlns:kml=\"http://www.opengis.net/kml/2.2\" xmlns:atom=\"http://www.w3.org/2005/Atom\">\n");
@@ -82,7 +92,11 @@ public class KmzExport {
 
             for( KmlRepresenter kmlRepresenter : kmlRepresenters ) {
                 try {
-                    bW.write(kmlRepresenter.toKmlString());
+                    if (kmlRepresenter instanceof KmlStreamRepresenter) {
+                        ((KmlStreamRepresenter) kmlRepresenter).writeKml(bW);
+                    } else {
+                        bW.write(kmlRepresenter.toKmlString());
+                    }
 
                     if (kmlRepresenter.hasImages()) {
                         List<String> imagePaths = kmlRepresenter.getImagePaths();
@@ -99,6 +113,9 @@ public class KmzExport {
                             }
                         }
                     }
+                } catch (IOException e) {
+                    // the kmz can't be written
+                    throw e;
                 } catch (Exception e) {
                     GPLog.error(this, e.getLocalizedMessage(), e);
                     e.printStackTrace();
@@ -107,26 +124,35 @@ public class KmzExport {
 
             bW.write("</Document>\n");
             bW.write("</kml>\n");
-
+            // closes the entry
+            bW.close();
+
+            /*
+             * add the pictures
+             */
+            Set<String> entryNames = new HashSet<String>();
+            entryNames.add("kml.kml");
+            for( File imageFile : existingImages ) {
+                String entryName = imageFile.getName();
+                if (!entryNames.add(entryName)) {
+                    GPLog.addLogEntry(this, null, null, "Skipping image with duplicated name: " + imageFile.getAbsolutePath());
+                    continue;
+                }
+                zipWriter.addFile(entryName, imageFile, !CompressionUtilities.isCompressed(entryName));
+            }
+            success = true;
         } finally {
-            if (bW != null)
-                bW.close();
-        }
-        /*
-         * create the kmz file with the base kml and all the pictures
-         */
-
-        File[] files = new File[1 + existingImages.size()];
-        files[0] = kmlFile;
-        for( int i = 0; i < files.length - 1; i++ ) {
-            files[i + 1] = existingImages.get(i);
+            try {
+                zipWriter.close();
+            } finally {
+                if (!success) {
+                    outputFile.delete();
+                }
+            }
         }
-        CompressionUtilities.createZipFromFiles(outputFile, files);
-
-        kmlFile.delete();
     }
 
-    private void addMarker( BufferedWriter bW, String alias, String url, int x, int y ) throws IOException {
+    private void addMarker( Writer bW, String alias, String url, int x, int y ) throws IOException {
         bW.write("<Style id=\"" + alias + "\">\n");
         bW.write("<IconStyle>\n");
         bW.write("<scale>1.1</scale>\n");
@@ -0,0 +1,35 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vividsolutions.jts.android;
+
+/**
+ * A {@link PointTransformation} that is also able to transform
+ * whole packed coordinate arrays at once.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface BulkPointTransformation extends PointTransformation {
+    /**
+     * Transforms packed model coordinates into packed view coordinates.
+     * 
+     * @param src the model coordinates as x1, y1, x2, y2, ...
+     * @param dest the array into which to put the view coordinates, with the same packing.
+     * @param numPoints the number of points to transform.
+     */
+    public void transform( double[] src, float[] dest, int numPoints );
+}
@@ -42,8 +42,14 @@ import com.vividsolutions.jts.geom.Coordinate;
  * @author Martin Davis
  *
  */
-public class IdentityPointTransformation implements PointTransformation {
+public class IdentityPointTransformation implements BulkPointTransformation {
     public void transform( Coordinate model, PointF view ) {
         view.set((float) model.x, (float) model.y);
     }
+
+    public void transform( double[] src, float[] dest, int numPoints ) {
+        for( int i = 0; i < numPoints * 2; i++ ) {
+            dest[i] = (float) src[i];
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,236 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vividsolutions.jts.android;
+
+import android.graphics.Path;
+import android.graphics.RectF;
+
+/**
+ * Clips view space rings and linestrings to a rectangle while appending them to a {@link Path}.
+ * 
+ * <p>Rings are clipped with the Sutherland-Hodgman algorithm, so the parts outside
+ * of the rectangle are replaced by runs along its border. Linestrings are clipped
+ * segment by segment and split where they leave the rectangle.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+class RectClipper {
+    private static final int LEFT = 0;
+    private static final int TOP = 1;
+    private static final int RIGHT = 2;
+    private static final int BOTTOM = 3;
+
+    private float[] in = new float[64];
+    private float[] out = new float[64];
+    private int outSize;
+    private final float[] p = new float[4];
+    private final float[] q = new float[4];
+
+    /**
+     * Clip a ring and append it to a path.
+     * 
+     * @param path the path to append to.
+     * @param coordinates the ring vertices as x1, y1, x2, y2, ..., without the closing one.
+     * @param from the index of the first ordinate of the ring.
+     * @param to the index after the last ordinate of the ring.
+     * @param clip the clipping rectangle.
+     * @param dx the x offset to add to the appended vertices.
+     * @param dy the y offset to add to the appended vertices.
+     * @param removeDuplicatePoints if <code>true</code>, consecutive equal points are skipped.
+     * @return the number of vertices appended.
+     */
+    int appendRing( Path path, float[] coordinates, int from, int to, RectF clip, float dx, float dy,
+            boolean removeDuplicatePoints ) {
+        int size = to - from;
+        if (in.length < size) {
+            in = new float[size * 2];
+            out = new float[size * 2];
+        }
+        System.arraycopy(coordinates, from, in, 0, size);
+        for( int edge = LEFT; edge <= BOTTOM && size > 0; edge++ ) {
+            clipRing(size, edge, clip);
+            float[] tmp = in;
+            in = out;
+            out = tmp;
+            size = outSize;
+        }
+        if (size < 6) {
+            // less than three vertices left
+            return 0;
+        }
+
+        float prevx = in[0];
+        float prevy = in[1];
+        path.moveTo(prevx + dx, prevy + dy);
+        int count = 1;
+        for( int i = 2; i < size; i += 2 ) {
+            float x = in[i];
+            float y = in[i + 1];
+            if (removeDuplicatePoints && x == prevx && y == prevy) {
+                continue;
+            }
+            path.lineTo(x + dx, y + dy);
+            count++;
+            prevx = x;
+            prevy = y;
+        }
+        path.close();
+        return count;
+    }
+
+    /**
+     * Clip the ring in {@link #in} to one edge of the rectangle, into {@link #out}.
+     */
+    private void clipRing( int size, int edge, RectF clip ) {
+        // every vertex can add an intersection too
+        if (out.length < size * 2) {
+            out = new float[size * 2];
+        }
+        outSize = 0;
+        float prevx = in[size - 2];
+        float prevy = in[size - 1];
+        boolean prevInside = isInside(prevx, prevy, edge, clip);
+        for( int i = 0; i < size; i += 2 ) {
+            float x = in[i];
+            float y = in[i + 1];
+            boolean inside = isInside(x, y, edge, clip);
+            if (inside != prevInside) {
+                addIntersection(prevx, prevy, x, y, edge, clip);
+            }
+            if (inside) {
+                out[outSize++] = x;
+                out[outSize++] = y;
+            }
+            prevx = x;
+            prevy = y;
+            prevInside = inside;
+        }
+    }
+
+    private static boolean isInside( float x, float y, int edge, RectF clip ) {
+        switch( edge ) {
+        case LEFT:
+            return x >= clip.left;
+        case TOP:
+            return y >= clip.top;
+        case RIGHT:
+            return x <= clip.right;
+        default:
+            return y <= clip.bottom;
+        }
+    }
+
+    private void addIntersection( float x1, float y1, float x2, float y2, int edge, RectF clip ) {
+        float x;
+        float y;
+        if (edge == LEFT || edge == RIGHT) {
+            x = edge == LEFT ? clip.left : clip.right;
+            y = y1 + (y2 - y1) * (x - x1) / (x2 - x1);
+        } else {
+            y = edge == TOP ? clip.top : clip.bottom;
+            x = x1 + (x2 - x1) * (y - y1) / (y2 - y1);
+        }
+        out[outSize++] = x;
+        out[outSize++] = y;
+    }
+
+    /**
+     * Clip a linestring and append the parts inside the rectangle to a path.
+     * 
+     * @param path the path to append to.
+     * @param coordinates the linestring vertices as x1, y1, x2, y2, ...
+     * @param from the index of the first ordinate of the linestring.
+     * @param to the index after the last ordinate of the linestring.
+     * @param clip the clipping rectangle.
+     * @param dx the x offset to add to the appended vertices.
+     * @param dy the y offset to add to the appended vertices.
+     * @param removeDuplicatePoints if <code>true</code>, consecutive equal points are skipped.
+     * @return the number of vertices appended.
+     */
+    int appendLine( Path path, float[] coordinates, int from, int to, RectF clip, float dx, float dy,
+            boolean removeDuplicatePoints ) {
+        int count = 0;
+        // whether the last appended vertex is the start of the current segment
+        boolean connected = false;
+        float prevx = 0;
+        float prevy = 0;
+        for( int i = from + 2; i < to; i += 2 ) {
+            float x1 = coordinates[i - 2];
+            float y1 = coordinates[i - 1];
+            float x2 = coordinates[i];
+            float y2 = coordinates[i + 1];
+            if (removeDuplicatePoints && x1 == x2 && y1 == y2) {
+                continue;
+            }
+
+            // Liang-Barsky
+            float sx = x2 - x1;
+            float sy = y2 - y1;
+            float t0 = 0f;
+            float t1 = 1f;
+            p[0] = -sx;
+            p[1] = sx;
+            p[2] = -sy;
+            p[3] = sy;
+            q[0] = x1 - clip.left;
+            q[1] = clip.right - x1;
+            q[2] = y1 - clip.top;
+            q[3] = clip.bottom - y1;
+            boolean visible = true;
+            for( int k = 0; k < 4 && visible; k++ ) {
+                if (p[k] == 0) {
+                    visible = q[k] >= 0;
+                } else {
+                    float t = q[k] / p[k];
+                    if (p[k] < 0) {
+                        if (t > t1)
+                            visible = false;
+                        else if (t > t0)
+                            t0 = t;
+                    } else {
+                        if (t < t0)
+                            visible = false;
+                        else if (t < t1)
+                            t1 = t;
+                    }
+                }
+            }
+            if (!visible) {
+                connected = false;
+                continue;
+            }
+
+            if (!connected || t0 > 0) {
+                prevx = x1 + t0 * sx;
+                prevy = y1 + t0 * sy;
+                path.moveTo(prevx + dx, prevy + dy);
+                count++;
+            }
+            float endx = t1 < 1 ? x1 + t1 * sx : x2;
+            float endy = t1 < 1 ? y1 + t1 * sy : y2;
+            if (!removeDuplicatePoints || endx != prevx || endy != prevy) {
+                path.lineTo(endx + dx, endy + dy);
+                count++;
+                prevx = endx;
+                prevy = endy;
+            }
+            connected = t1 == 1;
+        }
+        return count;
+    }
+}
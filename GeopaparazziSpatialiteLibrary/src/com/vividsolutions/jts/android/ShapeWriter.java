@@ -91,9 +91,9 @@ public class ShapeWriter {
     private PointShapeFactory pointFactory = DEFAULT_POINT_FACTORY;
 
     /**
-     * Cache a PointF object to use to transfer coordinates into shape
+     * Cache the vertex arrays used to transform rings and linestrings in one go
      */
-    private PointF transPoint = new PointF();
+    private VertexBuffer vertexBuffer = new VertexBuffer();
 
     /**
      * If true, decimation will be used to reduce the number of vertices
@@ -103,6 +103,7 @@ public class ShapeWriter {
     private boolean doRemoveDuplicatePoints = false;
 
     private double decimationDistance = 0;
+    private float simplificationTolerance = 0;
 
     /**
      * Creates a new ShapeWriter with a specified point transformation
@@ -132,7 +133,7 @@ public class ShapeWriter {
         this(pointTransformer, getShape(shapeName, size));
     }
 
-    private static PointShapeFactory getShape( String shapeName, float size ) {
+    static PointShapeFactory getShape( String shapeName, float size ) {
         if (shapeName.equals("circle")) {
             return new PointShapeFactory.Circle(size);
         } else if (shapeName.equals("cross")) {
@@ -192,6 +193,21 @@ public class ShapeWriter {
         this.decimationDistance = decimationDistance;
     }
 
+    /**
+     * Sets the tolerance of the Douglas-Peucker simplification 
+     * applied to rings and linestrings after they have been transformed.
+     * The tolerance is specified in the output coordinate system,
+     * so when rendering to a screen image it is a distance in pixels 
+     * and gives the same level of detail at every scale.
+     * <p>
+     * The default tolerance is 0.0, which disables simplification.
+     * 
+     * @param simplificationTolerance the view distance within which vertices are simplified away
+     */
+    public void setSimplificationTolerance( float simplificationTolerance ) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
     /**
      * Creates a {@link Shape} representing a {@link Geometry}, 
      * according to the specified PointTransformation
@@ -241,46 +257,20 @@ public class ShapeWriter {
     }
 
     private void appendRing( PolygonShape poly, Coordinate[] coords ) {
-        double prevx = Double.NaN;
-        double prevy = Double.NaN;
-        Coordinate prev = null;
-
-        Path tmpPath = null;
-        int n = coords.length - 1;
         /**
          * Don't include closing point.
          * Ring path will be closed explicitly, which provides a 
          * more accurate path representation.
          */
+        int n = coords.length - 1;
+        vertexBuffer.reset(decimationDistance, simplificationTolerance);
         for( int i = 0; i < n; i++ ) {
-
-            if (decimationDistance > 0.0) {
-                boolean isDecimated = prev != null && Math.abs(coords[i].x - prev.x) < decimationDistance
-                        && Math.abs(coords[i].y - prev.y) < decimationDistance;
-                if (i < n && isDecimated)
-                    continue;
-                prev = coords[i];
-            }
-
-            transformPoint(coords[i], transPoint);
-
-            if (doRemoveDuplicatePoints) {
-                // skip duplicate points (except the last point)
-                boolean isDup = transPoint.x == prevx && transPoint.y == prevy;
-                if (i < n && isDup)
-                    continue;
-                prevx = transPoint.x;
-                prevy = transPoint.y;
-            }
-            if (tmpPath != null) {
-                tmpPath.lineTo(transPoint.x, transPoint.y);
-            } else {
-                tmpPath = new Path();
-                tmpPath.moveTo(transPoint.x, transPoint.y);
-            }
+            vertexBuffer.add(coords[i].x, coords[i].y, false);
         }
-        // handle closing point
-        tmpPath.close();
+        vertexBuffer.transform(pointTransformer);
+
+        Path tmpPath = new Path();
+        vertexBuffer.appendTo(tmpPath, doRemoveDuplicatePoints, true);
 
         Path mainPath = poly.getPath();
         if (mainPath == null) {
@@ -324,40 +314,15 @@ public class ShapeWriter {
     private PathShape toShape( LineString lineString ) {
         Path shape = new Path();
 
-        Coordinate prev = lineString.getCoordinateN(0);
-        transformPoint(prev, transPoint);
-        shape.moveTo((float) transPoint.x, (float) transPoint.y);
-
-        double prevx = (double) transPoint.x;
-        double prevy = (double) transPoint.y;
-
-        int n = lineString.getNumPoints() - 1;
-        // int count = 0;
-        for( int i = 1; i <= n; i++ ) {
-            Coordinate currentCoord = lineString.getCoordinateN(i);
-            if (decimationDistance > 0.0) {
-                boolean isDecimated = prev != null && Math.abs(currentCoord.x - prev.x) < decimationDistance
-                        && Math.abs(currentCoord.y - prev.y) < decimationDistance;
-                if (i < n && isDecimated) {
-                    continue;
-                }
-                prev = currentCoord;
-            }
-
-            transformPoint(currentCoord, transPoint);
-
-            if (doRemoveDuplicatePoints) {
-                // skip duplicate points (except the last point)
-                boolean isDup = transPoint.x == prevx && transPoint.y == prevy;
-                if (i < n && isDup)
-                    continue;
-                prevx = transPoint.x;
-                prevy = transPoint.y;
-                // count++;
-            }
-            shape.lineTo((float) transPoint.x, (float) transPoint.y);
+        Coordinate[] coords = lineString.getCoordinates();
+        int n = coords.length - 1;
+        vertexBuffer.reset(decimationDistance, simplificationTolerance);
+        for( int i = 0; i <= n; i++ ) {
+            // first and last point are always kept
+            vertexBuffer.add(coords[i].x, coords[i].y, i == n);
         }
-        // System.out.println(count);
+        vertexBuffer.transform(pointTransformer);
+        vertexBuffer.appendTo(shape, doRemoveDuplicatePoints, false);
         return new PathShape(shape);
     }
 
@@ -0,0 +1,236 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vividsolutions.jts.android;
+
+import java.util.Arrays;
+
+import android.graphics.Path;
+import android.graphics.PointF;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Reusable buffer of the vertices of a single ring or linestring.
+ * 
+ * <p>Model coordinates are decimated while being added, then transformed 
+ * in one go, simplified in view space and appended to a {@link Path}.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+class VertexBuffer {
+    private double[] model = new double[256];
+    private float[] view = new float[256];
+    private int size = 0;
+    private double decimationDistance = 0;
+    private float simplificationTolerance = 0;
+    private boolean[] keep = new boolean[128];
+    private int[] stack = new int[256];
+
+    private final Coordinate tmpCoordinate = new Coordinate();
+    private final PointF tmpPoint = new PointF();
+
+    /**
+     * Clear the buffer.
+     * 
+     * @param decimationDistance the axis distance below which consecutive vertices are dropped.
+     * @param simplificationTolerance the view distance within which vertices are simplified away, 0 to disable.
+     */
+    void reset( double decimationDistance, float simplificationTolerance ) {
+        this.decimationDistance = decimationDistance;
+        this.simplificationTolerance = simplificationTolerance;
+        size = 0;
+    }
+
+    /**
+     * Add a model vertex, unless it is too close to the previous one.
+     * 
+     * @param x the model x.
+     * @param y the model y.
+     * @param force if <code>true</code>, the vertex is never decimated.
+     */
+    void add( double x, double y, boolean force ) {
+        int index = size * 2;
+        if (!force && size > 0 && decimationDistance > 0.0) {
+            if (Math.abs(x - model[index - 2]) < decimationDistance && Math.abs(y - model[index - 1]) < decimationDistance) {
+                return;
+            }
+        }
+        if (index + 2 > model.length) {
+            double[] newModel = new double[model.length * 2];
+            System.arraycopy(model, 0, newModel, 0, index);
+            model = newModel;
+            view = new float[newModel.length];
+        }
+        model[index] = x;
+        model[index + 1] = y;
+        size++;
+    }
+
+    /**
+     * Transform the buffered vertices to view space and simplify them.
+     * 
+     * @param pointTransformer the transformation to use.
+     */
+    void transform( PointTransformation pointTransformer ) {
+        if (pointTransformer instanceof BulkPointTransformation) {
+            ((BulkPointTransformation) pointTransformer).transform(model, view, size);
+        } else {
+            for( int i = 0; i < size * 2; i += 2 ) {
+                tmpCoordinate.x = model[i];
+                tmpCoordinate.y = model[i + 1];
+                pointTransformer.transform(tmpCoordinate, tmpPoint);
+                view[i] = tmpPoint.x;
+                view[i + 1] = tmpPoint.y;
+            }
+        }
+        if (simplificationTolerance > 0 && size > 2) {
+            simplify();
+        }
+    }
+
+    /**
+     * Douglas-Peucker simplification of the view vertices, done in place.
+     * 
+     * <p>The first and last vertices are always kept, so rings stay closed. The recursion
+     * is unrolled on a stack of index ranges to avoid allocations.</p>
+     */
+    private void simplify() {
+        if (keep.length < size) {
+            keep = new boolean[model.length / 2];
+        }
+        Arrays.fill(keep, 0, size, false);
+        keep[0] = true;
+        keep[size - 1] = true;
+
+        float sqTolerance = simplificationTolerance * simplificationTolerance;
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        stack[stackSize++] = size - 1;
+        while( stackSize > 0 ) {
+            int last = stack[--stackSize];
+            int first = stack[--stackSize];
+            float maxSqDistance = sqTolerance;
+            int index = -1;
+            for( int i = first + 1; i < last; i++ ) {
+                float sqDistance = sqSegmentDistance(i, first, last);
+                if (sqDistance > maxSqDistance) {
+                    index = i;
+                    maxSqDistance = sqDistance;
+                }
+            }
+            if (index != -1) {
+                keep[index] = true;
+                if (stackSize + 4 > stack.length) {
+                    int[] newStack = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, newStack, 0, stackSize);
+                    stack = newStack;
+                }
+                stack[stackSize++] = first;
+                stack[stackSize++] = index;
+                stack[stackSize++] = index;
+                stack[stackSize++] = last;
+            }
+        }
+
+        int newSize = 0;
+        for( int i = 0; i < size; i++ ) {
+            if (keep[i]) {
+                view[newSize * 2] = view[i * 2];
+                view[newSize * 2 + 1] = view[i * 2 + 1];
+                newSize++;
+            }
+        }
+        size = newSize;
+    }
+
+    /**
+     * @return the squared distance of the view vertex <code>p</code> from the segment <code>a</code>-<code>b</code>.
+     */
+    private float sqSegmentDistance( int p, int a, int b ) {
+        float x = view[a * 2];
+        float y = view[a * 2 + 1];
+        float dx = view[b * 2] - x;
+        float dy = view[b * 2 + 1] - y;
+        float px = view[p * 2];
+        float py = view[p * 2 + 1];
+        if (dx != 0 || dy != 0) {
+            float t = ((px - x) * dx + (py - y) * dy) / (dx * dx + dy * dy);
+            if (t > 1) {
+                x = view[b * 2];
+                y = view[b * 2 + 1];
+            } else if (t > 0) {
+                x += dx * t;
+                y += dy * t;
+            }
+        }
+        dx = px - x;
+        dy = py - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return the number of buffered vertices.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copy the transformed vertices as x1, y1, x2, y2, ...
+     * 
+     * @param destination the array to copy to, big enough for {@link #size()} vertices.
+     * @param offset the index of the first copied ordinate.
+     */
+    void copyTo( float[] destination, int offset ) {
+        System.arraycopy(view, 0, destination, offset, size * 2);
+    }
+
+    /**
+     * Append the transformed vertices to a path.
+     * 
+     * @param path the path to append to.
+     * @param removeDuplicatePoints if <code>true</code>, consecutive equal view points are skipped.
+     * @param isRing if <code>true</code>, the path is closed, else the last point is always kept.
+     * @return the number of vertices appended.
+     */
+    int appendTo( Path path, boolean removeDuplicatePoints, boolean isRing ) {
+        if (size == 0) {
+            return 0;
+        }
+        float prevx = view[0];
+        float prevy = view[1];
+        path.moveTo(prevx, prevy);
+        int count = 1;
+        int last = size * 2 - 2;
+        for( int i = 2; i <= last; i += 2 ) {
+            float x = view[i];
+            float y = view[i + 1];
+            if (removeDuplicatePoints && x == prevx && y == prevy && (isRing || i < last)) {
+                continue;
+            }
+            path.lineTo(x, y);
+            count++;
+            prevx = x;
+            prevy = y;
+        }
+        if (isRing) {
+            path.close();
+        }
+        return count;
+    }
+}
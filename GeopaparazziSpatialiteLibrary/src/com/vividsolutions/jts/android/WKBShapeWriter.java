@@ -0,0 +1,484 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vividsolutions.jts.android;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PointF;
+import android.graphics.RectF;
+
+import com.vividsolutions.jts.android.geom.DrawableShape;
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Draws WKB geometries directly on a {@link Canvas}, without
+ * building the intermediate JTS {@link com.vividsolutions.jts.geom.Geometry}.
+ *
+ * <p>The WKB is walked once and every vertex is transformed and appended
+ * to reused {@link Path}s, applying the same decimation and duplicate
+ * points removal as the {@link ShapeWriter}. The geometry can either be
+ * drawn right away or just read, to keep the resulting paths or to append
+ * them clipped to a rectangle through {@link #appendClipped(Path, Path, RectF, float, float)}.</p>
+ *
+ * <p>Instances are not thread safe.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class WKBShapeWriter {
+    private static final int WKB_POINT = 1;
+    private static final int WKB_LINESTRING = 2;
+    private static final int WKB_POLYGON = 3;
+    private static final int WKB_MULTIPOINT = 4;
+    private static final int WKB_MULTILINESTRING = 5;
+    private static final int WKB_MULTIPOLYGON = 6;
+    private static final int WKB_GEOMETRYCOLLECTION = 7;
+
+    private static final int EWKB_Z_FLAG = 0x80000000;
+    private static final int EWKB_M_FLAG = 0x40000000;
+    private static final int EWKB_SRID_FLAG = 0x20000000;
+
+    private PointTransformation pointTransformer = ShapeWriter.DEFAULT_POINT_TRANSFORMATION;
+    private PointShapeFactory pointFactory = ShapeWriter.DEFAULT_POINT_FACTORY;
+
+    private boolean doRemoveDuplicatePoints = false;
+    private double decimationDistance = 0;
+    private float simplificationTolerance = 0;
+
+    private final Coordinate modelCoordinate = new Coordinate();
+    private final PointF transPoint = new PointF();
+    private final VertexBuffer vertexBuffer = new VertexBuffer();
+    private float[] points = new float[16];
+    private int pointsCount = 0;
+    private int vertexCount = 0;
+    private final Path polygonPath = new Path();
+    private final Path linePath = new Path();
+
+    private final RectClipper clipper = new RectClipper();
+    private float[] partsCoordinates = new float[256];
+    private int partsCoordinatesCount = 0;
+    private int[] partEnds = new int[16];
+    private boolean[] partIsRing = new boolean[16];
+    private int partsCount = 0;
+
+    private byte[] wkb;
+    private int position;
+    private boolean isLittleEndian;
+
+    /**
+     * Creates a new WKBShapeWriter with a specified point transformation
+     * and point shape factory.
+     *
+     * @param pointTransformer a transformation from model to view space to use
+     * @param pointFactory the PointShapeFactory to use
+     */
+    public WKBShapeWriter( PointTransformation pointTransformer, PointShapeFactory pointFactory ) {
+        if (pointTransformer != null)
+            this.pointTransformer = pointTransformer;
+        if (pointFactory != null)
+            this.pointFactory = pointFactory;
+        polygonPath.setFillType(Path.FillType.EVEN_ODD);
+    }
+
+    /**
+     * Creates a new WKBShapeWriter with a specified point transformation
+     * and the default point shape factory.
+     *
+     * @param pointTransformer a transformation from model to view space to use
+     */
+    public WKBShapeWriter( PointTransformation pointTransformer ) {
+        this(pointTransformer, (PointShapeFactory) null);
+    }
+
+    public WKBShapeWriter( PointTransformation pointTransformer, String shapeName, float size ) {
+        this(pointTransformer, ShapeWriter.getShape(shapeName, size));
+    }
+
+    /**
+     * @see ShapeWriter#setRemoveDuplicatePoints(boolean)
+     */
+    public void setRemoveDuplicatePoints( boolean doRemoveDuplicatePoints ) {
+        this.doRemoveDuplicatePoints = doRemoveDuplicatePoints;
+    }
+
+    /**
+     * @see ShapeWriter#setDecimation(double)
+     */
+    public void setDecimation( double decimationDistance ) {
+        this.decimationDistance = decimationDistance;
+    }
+
+    /**
+     * @see ShapeWriter#setSimplificationTolerance(float)
+     */
+    public void setSimplificationTolerance( float simplificationTolerance ) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
+    /**
+     * Draws a WKB geometry.
+     *
+     * <p>Polygonal parts are filled and stroked, linear parts are only stroked,
+     * points are drawn through the {@link PointShapeFactory}.</p>
+     *
+     * @param geometryBytes the WKB (or spatialite EWKB) of the geometry.
+     * @param canvas the canvas to draw on.
+     * @param fill the fill paint, can be <code>null</code>.
+     * @param stroke the stroke paint, can be <code>null</code>.
+     */
+    public void draw( byte[] geometryBytes, Canvas canvas, Paint fill, Paint stroke ) {
+        if (!read(geometryBytes)) {
+            return;
+        }
+        drawPaths(canvas, polygonPath, linePath, fill, stroke);
+        for( int i = 0; i < pointsCount * 2; i += 2 ) {
+            drawPoint(points[i], points[i + 1], canvas, fill, stroke);
+        }
+    }
+
+    /**
+     * Reads a WKB geometry into the transformed paths and points of this writer,
+     * without drawing it.
+     * 
+     * <p>The result is available through {@link #getPolygonPath()}, {@link #getLinePath()}
+     * and {@link #getPoints()} until the next call.</p>
+     *
+     * @param geometryBytes the WKB (or spatialite EWKB) of the geometry.
+     * @return <code>false</code> if the geometry could not be read.
+     */
+    public boolean read( byte[] geometryBytes ) {
+        wkb = geometryBytes;
+        position = 0;
+        polygonPath.rewind();
+        linePath.rewind();
+        pointsCount = 0;
+        vertexCount = 0;
+        partsCoordinatesCount = 0;
+        partsCount = 0;
+        try {
+            readGeometry();
+        } catch (RuntimeException e) {
+            // malformed geometry, skip it as the WKBReader based path did
+            e.printStackTrace();
+            return false;
+        } finally {
+            wkb = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return the polygonal parts of the last read geometry.
+     */
+    public Path getPolygonPath() {
+        return polygonPath;
+    }
+
+    /**
+     * @return the linear parts of the last read geometry.
+     */
+    public Path getLinePath() {
+        return linePath;
+    }
+
+    /**
+     * @return the transformed points of the last read geometry as x1, y1, x2, y2, ...
+     */
+    public float[] getPoints() {
+        return points;
+    }
+
+    /**
+     * @return the number of points in {@link #getPoints()}.
+     */
+    public int getPointsCount() {
+        return pointsCount;
+    }
+
+    /**
+     * @return the number of vertices put in the paths by the last read.
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Get the view bounds of the rings and linestrings of the last read geometry.
+     *
+     * @param bounds the rectangle to set.
+     * @return <code>false</code> if the geometry has no rings or linestrings.
+     */
+    public boolean getBounds( RectF bounds ) {
+        if (partsCoordinatesCount == 0) {
+            return false;
+        }
+        bounds.set(partsCoordinates[0], partsCoordinates[1], partsCoordinates[0], partsCoordinates[1]);
+        for( int i = 2; i < partsCoordinatesCount; i += 2 ) {
+            float x = partsCoordinates[i];
+            float y = partsCoordinates[i + 1];
+            if (x < bounds.left)
+                bounds.left = x;
+            else if (x > bounds.right)
+                bounds.right = x;
+            if (y < bounds.top)
+                bounds.top = y;
+            else if (y > bounds.bottom)
+                bounds.bottom = y;
+        }
+        return true;
+    }
+
+    /**
+     * Append the rings and linestrings of the last read geometry to paths,
+     * clipped to a rectangle.
+     *
+     * <p>Rings are clipped to closed rings along the rectangle's border, so the rectangle
+     * should be larger than the drawn area by the stroke width.</p>
+     *
+     * @param polygons the path to append the rings to.
+     * @param lines the path to append the linestrings to.
+     * @param clip the clipping rectangle in view space.
+     * @param dx the x offset to add to the appended vertices.
+     * @param dy the y offset to add to the appended vertices.
+     * @return the number of vertices appended.
+     */
+    public int appendClipped( Path polygons, Path lines, RectF clip, float dx, float dy ) {
+        int count = 0;
+        int from = 0;
+        for( int i = 0; i < partsCount; i++ ) {
+            int to = partEnds[i];
+            if (partIsRing[i]) {
+                count += clipper.appendRing(polygons, partsCoordinates, from, to, clip, dx, dy, doRemoveDuplicatePoints);
+            } else {
+                count += clipper.appendLine(lines, partsCoordinates, from, to, clip, dx, dy, doRemoveDuplicatePoints);
+            }
+            from = to;
+        }
+        return count;
+    }
+
+    /**
+     * Draws a point shape at a view position.
+     *
+     * @param x the view x.
+     * @param y the view y.
+     * @param canvas the canvas to draw on.
+     * @param fill the fill paint, can be <code>null</code>.
+     * @param stroke the stroke paint, can be <code>null</code>.
+     */
+    public void drawPoint( float x, float y, Canvas canvas, Paint fill, Paint stroke ) {
+        transPoint.set(x, y);
+        DrawableShape shape = pointFactory.createPoint(transPoint);
+        if (fill != null)
+            shape.fill(canvas, fill);
+        if (stroke != null)
+            shape.draw(canvas, stroke);
+    }
+
+    /**
+     * Draws polygon and line paths.
+     *
+     * @param canvas the canvas to draw on.
+     * @param polygonPath the path to fill and stroke.
+     * @param linePath the path to stroke only.
+     * @param fill the fill paint, can be <code>null</code>.
+     * @param stroke the stroke paint, can be <code>null</code>.
+     */
+    public static void drawPaths( Canvas canvas, Path polygonPath, Path linePath, Paint fill, Paint stroke ) {
+        if (!polygonPath.isEmpty()) {
+            if (fill != null) {
+                fill.setStyle(Paint.Style.FILL);
+                canvas.drawPath(polygonPath, fill);
+            }
+            if (stroke != null) {
+                stroke.setStyle(Paint.Style.STROKE);
+                canvas.drawPath(polygonPath, stroke);
+            }
+        }
+        if (!linePath.isEmpty() && stroke != null) {
+            stroke.setStyle(Paint.Style.STROKE);
+            canvas.drawPath(linePath, stroke);
+        }
+    }
+
+    private void readGeometry() {
+        isLittleEndian = wkb[position++] == 1;
+        int typeInt = readInt();
+
+        boolean hasZ = (typeInt & EWKB_Z_FLAG) != 0;
+        boolean hasM = (typeInt & EWKB_M_FLAG) != 0;
+        if ((typeInt & EWKB_SRID_FLAG) != 0) {
+            // skip the srid
+            position += 4;
+        }
+        int geometryType = typeInt & 0xffff;
+        if (geometryType >= 1000) {
+            // ISO flavour
+            int dimensionCode = geometryType / 1000;
+            hasZ = hasZ || dimensionCode == 1 || dimensionCode == 3;
+            hasM = hasM || dimensionCode == 2 || dimensionCode == 3;
+            geometryType = geometryType % 1000;
+        }
+        int extraOrdinates = (hasZ ? 1 : 0) + (hasM ? 1 : 0);
+
+        switch( geometryType ) {
+        case WKB_POINT:
+            readPoint(extraOrdinates);
+            break;
+        case WKB_LINESTRING:
+            readLineString(extraOrdinates);
+            break;
+        case WKB_POLYGON:
+            readPolygon(extraOrdinates);
+            break;
+        case WKB_MULTIPOINT:
+        case WKB_MULTILINESTRING:
+        case WKB_MULTIPOLYGON:
+        case WKB_GEOMETRYCOLLECTION:
+            int numGeometries = readInt();
+            for( int i = 0; i < numGeometries; i++ ) {
+                readGeometry();
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unrecognized WKB geometry type: " + geometryType);
+        }
+    }
+
+    private void readPoint( int extraOrdinates ) {
+        modelCoordinate.x = readDouble();
+        modelCoordinate.y = readDouble();
+        position += 8 * extraOrdinates;
+        if (Double.isNaN(modelCoordinate.x)) {
+            // empty point
+            return;
+        }
+        pointTransformer.transform(modelCoordinate, transPoint);
+        int index = pointsCount * 2;
+        if (index + 2 > points.length) {
+            float[] newPoints = new float[points.length * 2];
+            System.arraycopy(points, 0, newPoints, 0, index);
+            points = newPoints;
+        }
+        points[index] = transPoint.x;
+        points[index + 1] = transPoint.y;
+        pointsCount++;
+    }
+
+    private void readLineString( int extraOrdinates ) {
+        int numPoints = readInt();
+        int n = numPoints - 1;
+        vertexBuffer.reset(decimationDistance, simplificationTolerance);
+        for( int i = 0; i <= n; i++ ) {
+            double x = readDouble();
+            double y = readDouble();
+            position += 8 * extraOrdinates;
+            // first and last point are always kept
+            vertexBuffer.add(x, y, i == n);
+        }
+        vertexBuffer.transform(pointTransformer);
+        vertexCount += vertexBuffer.appendTo(linePath, doRemoveDuplicatePoints, false);
+        storePart(false);
+    }
+
+    private void readPolygon( int extraOrdinates ) {
+        int numRings = readInt();
+        for( int r = 0; r < numRings; r++ ) {
+            readRing(extraOrdinates);
+        }
+    }
+
+    private void readRing( int extraOrdinates ) {
+        int numPoints = readInt();
+        /*
+         * Don't include closing point.
+         * Ring path will be closed explicitly, which provides a
+         * more accurate path representation.
+         */
+        int n = numPoints - 1;
+        vertexBuffer.reset(decimationDistance, simplificationTolerance);
+        for( int i = 0; i < n; i++ ) {
+            double x = readDouble();
+            double y = readDouble();
+            position += 8 * extraOrdinates;
+            vertexBuffer.add(x, y, false);
+        }
+        if (numPoints > 0) {
+            // skip the closing point
+            position += 16 + 8 * extraOrdinates;
+        }
+        vertexBuffer.transform(pointTransformer);
+        vertexCount += vertexBuffer.appendTo(polygonPath, doRemoveDuplicatePoints, true);
+        storePart(true);
+    }
+
+    /**
+     * Keep the transformed vertices of the buffer for {@link #appendClipped(Path, Path, RectF, float, float)}.
+     */
+    private void storePart( boolean isRing ) {
+        int size = vertexBuffer.size();
+        if (size == 0) {
+            return;
+        }
+        int end = partsCoordinatesCount + size * 2;
+        if (end > partsCoordinates.length) {
+            float[] newCoordinates = new float[Math.max(end, partsCoordinates.length * 2)];
+            System.arraycopy(partsCoordinates, 0, newCoordinates, 0, partsCoordinatesCount);
+            partsCoordinates = newCoordinates;
+        }
+        if (partsCount == partEnds.length) {
+            int[] newEnds = new int[partEnds.length * 2];
+            System.arraycopy(partEnds, 0, newEnds, 0, partsCount);
+            partEnds = newEnds;
+            boolean[] newIsRing = new boolean[partIsRing.length * 2];
+            System.arraycopy(partIsRing, 0, newIsRing, 0, partsCount);
+            partIsRing = newIsRing;
+        }
+        vertexBuffer.copyTo(partsCoordinates, partsCoordinatesCount);
+        partEnds[partsCount] = end;
+        partIsRing[partsCount] = isRing;
+        partsCount++;
+        partsCoordinatesCount = end;
+    }
+
+    private int readInt() {
+        byte[] b = wkb;
+        int p = position;
+        position += 4;
+        if (isLittleEndian) {
+            return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16 | (b[p + 3] & 0xff) << 24;
+        } else {
+            return (b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8 | (b[p + 3] & 0xff);
+        }
+    }
+
+    private double readDouble() {
+        byte[] b = wkb;
+        int p = position;
+        position += 8;
+        long bits;
+        if (isLittleEndian) {
+            bits = (b[p] & 0xffL) | (b[p + 1] & 0xffL) << 8 | (b[p + 2] & 0xffL) << 16 | (b[p + 3] & 0xffL) << 24
+                    | (b[p + 4] & 0xffL) << 32 | (b[p + 5] & 0xffL) << 40 | (b[p + 6] & 0xffL) << 48 | (b[p + 7] & 0xffL) << 56;
+        } else {
+            bits = (b[p] & 0xffL) << 56 | (b[p + 1] & 0xffL) << 48 | (b[p + 2] & 0xffL) << 40 | (b[p + 3] & 0xffL) << 32
+                    | (b[p + 4] & 0xffL) << 24 | (b[p + 5] & 0xffL) << 16 | (b[p + 6] & 0xffL) << 8 | (b[p + 7] & 0xffL);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+}
@@ -25,6 +25,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import jsqlite.Exception;
 
@@ -43,10 +46,14 @@ import android.content.Context;
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class SpatialDatabasesManager {
+    private static final String METADATA_CACHE_FILE = "spatial_metadata.cache"; //$NON-NLS-1$
+    private static final int MAX_DISCOVERY_THREADS = 4;
 
     private List<ISpatialDatabaseHandler> sdbHandlers = new ArrayList<ISpatialDatabaseHandler>();
     private HashMap<SpatialVectorTable, ISpatialDatabaseHandler> vectorTablesMap = new HashMap<SpatialVectorTable, ISpatialDatabaseHandler>();
     private HashMap<SpatialRasterTable, ISpatialDatabaseHandler> rasterTablesMap = new HashMap<SpatialRasterTable, ISpatialDatabaseHandler>();
+    private HashMap<ISpatialDatabaseHandler, File> handlerFiles = new HashMap<ISpatialDatabaseHandler, File>();
+    private SpatialMetadataCache metadataCache;
 
     private static SpatialDatabasesManager spatialDbManager = null;
     private SpatialDatabasesManager() {
@@ -63,28 +70,126 @@ public class SpatialDatabasesManager {
         spatialDbManager = null;
     }
 
+    /**
+     * Find the spatial databases of the maps folder.
+     * 
+     * <p>The tables of the databases that didn't change since the last run are
+     * taken from the metadata cache, without opening the databases. The others
+     * are read in parallel and then released, databases are opened again only
+     * once their tables are queried.</p>
+     * 
+     * @param context the context to use.
+     * @param mapsDir the folder to search for databases.
+     */
     public void init( Context context, File mapsDir ) {
         File[] sqliteFiles = mapsDir.listFiles(new FilenameFilter(){
             public boolean accept( File dir, String filename ) {
                 return filename.endsWith(".sqlite") || filename.endsWith(".mbtiles");
             }
         });
+        if (sqliteFiles == null) {
+            return;
+        }
+
+        metadataCache = new SpatialMetadataCache(new File(context.getCacheDir(), METADATA_CACHE_FILE));
+        metadataCache.load();
 
-        for( File sqliteFile : sqliteFiles ) {
-            ISpatialDatabaseHandler sdb = null;
+        List<Callable<Void>> discoveries = new ArrayList<Callable<Void>>();
+        for( final File sqliteFile : sqliteFiles ) {
+            final ISpatialDatabaseHandler sdb;
             if (sqliteFile.getName().endsWith("mbtiles")) {
                 sdb = new MbtilesDatabaseHandler(sqliteFile.getAbsolutePath());
             } else {
                 sdb = new SpatialiteDatabaseHandler(sqliteFile.getAbsolutePath());
             }
             sdbHandlers.add(sdb);
+            handlerFiles.put(sdb, sqliteFile);
+
+            SpatialMetadataCache.Entry entry = metadataCache.get(sqliteFile);
+            if (entry != null) {
+                sdb.setTables(entry.vectorTables, entry.rasterTables);
+            } else {
+                discoveries.add(new Callable<Void>(){
+                    public Void call() throws java.lang.Exception {
+                        discover(sqliteFile, sdb);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        if (discoveries.size() > 0) {
+            int threads = Math.min(discoveries.size(), MAX_DISCOVERY_THREADS);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            boolean interrupted = false;
+            try {
+                executor.invokeAll(discoveries);
+            } catch (InterruptedException e) {
+                // the unfinished discoveries are cancelled, let the caller see the interrupt
+                interrupted = true;
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdown();
+            }
+            if (!interrupted) {
+                // an interrupted discovery would save a cache with databases missing
+                metadataCache.save();
+            }
         }
     }
+
+    /**
+     * Read the tables of a database and put them in the metadata cache.
+     * 
+     * @param sqliteFile the database file.
+     * @param sdb the handler of the database.
+     */
+    private void discover( File sqliteFile, ISpatialDatabaseHandler sdb ) {
+        try {
+            List<SpatialVectorTable> vectorTables = sdb.getSpatialVectorTables(false);
+            List<SpatialRasterTable> rasterTables;
+            try {
+                rasterTables = sdb.getSpatialRasterTables(false);
+            } catch (java.lang.Exception e) {
+                // not all databases have raster tables
+                rasterTables = new ArrayList<SpatialRasterTable>();
+                sdb.setTables(vectorTables, rasterTables);
+            }
+            // release the connections, until the tables are needed
+            sdb.close();
+            metadataCache.put(sqliteFile, vectorTables, rasterTables);
+        } catch (java.lang.Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Update the metadata cache with the current tables and styles.
+     */
+    private void saveMetadataCache() {
+        if (metadataCache == null) {
+            return;
+        }
+        for( ISpatialDatabaseHandler sdbHandler : sdbHandlers ) {
+            try {
+                List<SpatialVectorTable> vectorTables = sdbHandler.getSpatialVectorTables(false);
+                List<SpatialRasterTable> rasterTables = sdbHandler.getSpatialRasterTables(false);
+                metadataCache.put(handlerFiles.get(sdbHandler), vectorTables, rasterTables);
+            } catch (java.lang.Exception e) {
+                // keep the old entry, if any
+            }
+        }
+        metadataCache.save();
+    }
+
     public List<ISpatialDatabaseHandler> getSpatialDatabaseHandlers() {
         return sdbHandlers;
     }
 
     public List<SpatialVectorTable> getSpatialVectorTables( boolean forceRead ) throws Exception {
+        if (forceRead) {
+            vectorTablesMap.clear();
+        }
         List<SpatialVectorTable> tables = new ArrayList<SpatialVectorTable>();
         for( ISpatialDatabaseHandler sdbHandler : sdbHandlers ) {
             List<SpatialVectorTable> spatialTables = sdbHandler.getSpatialVectorTables(forceRead);
@@ -99,6 +204,9 @@ public class SpatialDatabasesManager {
         for( int i = 0; i < tables.size(); i++ ) {
             tables.get(i).getStyle().order = i;
         }
+        if (forceRead) {
+            saveMetadataCache();
+        }
         return tables;
     }
 
@@ -126,12 +234,14 @@ public class SpatialDatabasesManager {
             ISpatialDatabaseHandler value = entry.getValue();
             value.updateStyle(key.getStyle());
         }
+        saveMetadataCache();
     }
 
     public void updateStyle( SpatialVectorTable spatialTable ) throws Exception {
         ISpatialDatabaseHandler spatialDatabaseHandler = vectorTablesMap.get(spatialTable);
         if (spatialDatabaseHandler != null) {
             spatialDatabaseHandler.updateStyle(spatialTable.getStyle());
+            saveMetadataCache();
         }
     }
 
@@ -181,6 +291,8 @@ public class SpatialDatabasesManager {
         for( ISpatialDatabaseHandler sdbHandler : sdbHandlers ) {
             sdbHandler.close();
         }
+        // closing checkpoints the databases, store their final state
+        saveMetadataCache();
     }
 
 }
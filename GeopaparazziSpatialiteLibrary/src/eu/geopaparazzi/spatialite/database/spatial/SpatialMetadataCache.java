@@ -0,0 +1,262 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialRasterTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialVectorTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.Style;
+
+/**
+ * A persistent cache of the tables found in the spatial databases.
+ *
+ * <p>Entries are keyed by the database path and are valid as long as
+ * the file's modification time and size don't change, so that the
+ * databases don't need to be opened and queried at every startup.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialMetadataCache {
+    private static final int VERSION = 1;
+
+    /**
+     * The cached metadata of a database file.
+     */
+    public static class Entry {
+        public final long lastModified;
+        public final long length;
+        public final List<SpatialVectorTable> vectorTables;
+        public final List<SpatialRasterTable> rasterTables;
+
+        public Entry( long lastModified, long length, List<SpatialVectorTable> vectorTables,
+                List<SpatialRasterTable> rasterTables ) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.vectorTables = vectorTables;
+            this.rasterTables = rasterTables;
+        }
+    }
+
+    private final File cacheFile;
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * @param cacheFile the file the cache is persisted to.
+     */
+    public SpatialMetadataCache( File cacheFile ) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Get the cached tables of a database, if still valid.
+     *
+     * @param dbFile the database file.
+     * @return the entry or <code>null</code>, if missing or stale.
+     */
+    public synchronized Entry get( File dbFile ) {
+        Entry entry = entries.get(dbFile.getAbsolutePath());
+        if (entry == null || entry.lastModified != dbFile.lastModified() || entry.length != dbFile.length()) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cache the tables of a database with the current state of its file.
+     *
+     * @param dbFile the database file.
+     * @param vectorTables the vector tables.
+     * @param rasterTables the raster tables.
+     */
+    public synchronized void put( File dbFile, List<SpatialVectorTable> vectorTables, List<SpatialRasterTable> rasterTables ) {
+        entries.put(dbFile.getAbsolutePath(), new Entry(dbFile.lastModified(), dbFile.length(), vectorTables, rasterTables));
+    }
+
+    /**
+     * Read the cache from disk.
+     *
+     * <p>A missing or unreadable cache file just leaves the cache empty.</p>
+     */
+    public synchronized void load() {
+        entries.clear();
+        if (!cacheFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int filesCount = in.readInt();
+            for( int i = 0; i < filesCount; i++ ) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+
+                int vectorCount = in.readInt();
+                List<SpatialVectorTable> vectorTables = new ArrayList<SpatialVectorTable>(vectorCount);
+                for( int j = 0; j < vectorCount; j++ ) {
+                    String name = in.readUTF();
+                    String geomName = in.readUTF();
+                    int geomType = in.readInt();
+                    String srid = in.readUTF();
+                    SpatialVectorTable table = new SpatialVectorTable(name, geomName, geomType, srid);
+                    table.setStyle(readStyle(in));
+                    vectorTables.add(table);
+                }
+
+                int rasterCount = in.readInt();
+                List<SpatialRasterTable> rasterTables = new ArrayList<SpatialRasterTable>(rasterCount);
+                for( int j = 0; j < rasterCount; j++ ) {
+                    String tableName = in.readUTF();
+                    String columnName = readString(in);
+                    String srid = in.readUTF();
+                    int minZoom = in.readInt();
+                    int maxZoom = in.readInt();
+                    double centerX = in.readDouble();
+                    double centerY = in.readDouble();
+                    String tileQuery = readString(in);
+                    rasterTables.add(new SpatialRasterTable(tableName, columnName, srid, minZoom, maxZoom, centerX, centerY,
+                            tileQuery));
+                }
+                entries.put(path, new Entry(lastModified, length, vectorTables, rasterTables));
+            }
+        } catch (Exception e) {
+            // a corrupted cache is just rebuilt
+            e.printStackTrace();
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the cache to disk.
+     */
+    public synchronized void save() {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)));
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for( java.util.Map.Entry<String, Entry> mapEntry : entries.entrySet() ) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+
+                out.writeInt(entry.vectorTables.size());
+                for( SpatialVectorTable table : entry.vectorTables ) {
+                    out.writeUTF(table.getName());
+                    out.writeUTF(table.getGeomName());
+                    out.writeInt(table.getGeomType());
+                    out.writeUTF(table.getSrid());
+                    writeStyle(out, table.getStyle());
+                }
+
+                out.writeInt(entry.rasterTables.size());
+                for( SpatialRasterTable table : entry.rasterTables ) {
+                    out.writeUTF(table.getTableName());
+                    writeString(out, table.getColumnName());
+                    out.writeUTF(table.getSrid());
+                    out.writeInt(table.getMinZoom());
+                    out.writeInt(table.getMaxZoom());
+                    out.writeDouble(table.getCenterX());
+                    out.writeDouble(table.getCenterY());
+                    writeString(out, table.getTileQuery());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            cacheFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static Style readStyle( DataInputStream in ) throws IOException {
+        Style style = new Style();
+        style.name = in.readUTF();
+        style.size = in.readFloat();
+        style.fillcolor = readString(in);
+        style.strokecolor = readString(in);
+        style.fillalpha = in.readFloat();
+        style.strokealpha = in.readFloat();
+        style.shape = readString(in);
+        style.width = in.readFloat();
+        style.textsize = in.readFloat();
+        style.decimationFactor = in.readFloat();
+        style.textfield = readString(in);
+        style.enabled = in.readInt();
+        style.order = in.readInt();
+        return style;
+    }
+
+    private static void writeStyle( DataOutputStream out, Style style ) throws IOException {
+        out.writeUTF(style.name);
+        out.writeFloat(style.size);
+        writeString(out, style.fillcolor);
+        writeString(out, style.strokecolor);
+        out.writeFloat(style.fillalpha);
+        out.writeFloat(style.strokealpha);
+        writeString(out, style.shape);
+        out.writeFloat(style.width);
+        out.writeFloat(style.textsize);
+        out.writeFloat(style.decimationFactor);
+        writeString(out, style.textfield);
+        out.writeInt(style.enabled);
+        out.writeInt(style.order);
+    }
+
+    private static String readString( DataInputStream in ) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    private static void writeString( DataOutputStream out, String string ) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null)
+            out.writeUTF(string);
+    }
+}
@@ -35,6 +35,7 @@ public class GeometryIterator implements Iterator<Geometry> {
     private WKBReader wkbReader = new WKBReader();
     // private WKTReader wktReader = new WKTReader();
     private Stmt stmt;
+    private SpatialiteConnectionPool.ReadConnection readConnection;
 
     public GeometryIterator( Database database, String query ) {
         try {
@@ -44,6 +45,21 @@ public class GeometryIterator implements Iterator<Geometry> {
         }
     }
 
+    /**
+     * Create an iterator on an already prepared and bound statement of a pooled connection.
+     * 
+     * <p>The statement is owned by the connection's cache, so {@link #close()}
+     * only resets it for the next use instead of finalizing it, and gives
+     * the connection back to its pool.</p>
+     * 
+     * @param stmt the prepared statement.
+     * @param readConnection the connection the statement belongs to.
+     */
+    public GeometryIterator( Stmt stmt, SpatialiteConnectionPool.ReadConnection readConnection ) {
+        this.stmt = stmt;
+        this.readConnection = readConnection;
+    }
+
     @Override
     public boolean hasNext() {
         if (stmt == null)
@@ -79,6 +95,25 @@ public class GeometryIterator implements Iterator<Geometry> {
         return null;
     }
 
+    /**
+     * Get the raw WKB of the current geometry, without parsing it.
+     * 
+     * <p>To be used instead of {@link #next()} by renderers that
+     * walk the WKB themselves.</p>
+     * 
+     * @return the WKB bytes or <code>null</code>.
+     */
+    public byte[] nextWKB() {
+        if (stmt == null)
+            return null;
+        try {
+            return stmt.column_bytes(0);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
@@ -90,7 +125,16 @@ public class GeometryIterator implements Iterator<Geometry> {
     }
 
     public void close() throws Exception {
-        if (stmt != null)
+        if (readConnection != null) {
+            try {
+                if (stmt != null)
+                    stmt.reset();
+            } finally {
+                readConnection.release();
+                readConnection = null;
+            }
+        } else if (stmt != null) {
             stmt.close();
+        }
     }
 }
@@ -18,6 +18,16 @@ public interface ISpatialDatabaseHandler {
 
     public abstract List<SpatialRasterTable> getSpatialRasterTables( boolean forceRead ) throws Exception;
 
+    /**
+     * Set the tables of the database, as read from a metadata cache.
+     * 
+     * <p>The database is then not opened until the tables are actually queried.</p>
+     * 
+     * @param vectorTables the vector tables, with their styles.
+     * @param rasterTables the raster tables.
+     */
+    public abstract void setTables( List<SpatialVectorTable> vectorTables, List<SpatialRasterTable> rasterTables );
+
     public abstract byte[] getRasterTile( String query );
 
     /**
@@ -20,7 +20,13 @@ package eu.geopaparazzi.spatialite.database.spatial.core;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import jsqlite.Exception;
 import android.graphics.Paint;
@@ -41,6 +47,18 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
     private List<SpatialRasterTable> rasterTableList;
     private String fileName;
     private MBTilesDroidSpitter db;
+    private boolean isOpen = false;
+
+    /**
+     * Marks the tiles that are not in the database.
+     */
+    private static final byte[] NO_TILE = new byte[0];
+    private static final int TILE_OVERHEAD_BYTES = 64;
+
+    private final long maxTilesCacheBytes = Runtime.getRuntime().maxMemory() / 32;
+    private long tilesCacheBytes = 0;
+    private final LinkedHashMap<Long, byte[]> tilesCache = new LinkedHashMap<Long, byte[]>(64, 0.75f, true);
+    private final HashMap<Long, FutureTask<byte[]>> pendingTiles = new HashMap<Long, FutureTask<byte[]>>();
 
     public MbtilesDatabaseHandler( String dbPath ) {
         File spatialDbFile = new File(dbPath);
@@ -58,6 +76,21 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
         return fileName;
     }
 
+    /**
+     * @return the mbtiles database, opened on first use.
+     */
+    private synchronized MBTilesDroidSpitter getDb() {
+        if (!isOpen) {
+            db.open(true, "1.0");
+            isOpen = true;
+        }
+        return db;
+    }
+
+    public void setTables( List<SpatialVectorTable> vectorTables, List<SpatialRasterTable> rasterTables ) {
+        rasterTableList = rasterTables;
+    }
+
     public List<SpatialVectorTable> getSpatialVectorTables( boolean forceRead ) throws Exception {
         return Collections.emptyList();
     }
@@ -66,8 +99,7 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
         if (rasterTableList == null || forceRead) {
             rasterTableList = new ArrayList<SpatialRasterTable>();
 
-            db.open(true, "1.0");
-            MbTilesMetadata metadata = db.getMetadata();
+            MbTilesMetadata metadata = getDb().getMetadata();
             float[] bounds = metadata.bounds;// left, bottom, right, top
 
             // String tableName = metadata.name;
@@ -90,7 +122,7 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
 
     @Override
     public float[] getTableBounds( SpatialVectorTable spatialTable, String destSrid ) throws Exception {
-        MbTilesMetadata metadata = db.getMetadata();
+        MbTilesMetadata metadata = getDb().getMetadata();
         float[] bounds = metadata.bounds;// left, bottom, right, top
         float w = bounds[0];
         float s = bounds[1];
@@ -107,11 +139,80 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
         int z = Integer.parseInt(split[0]);
         int x = Integer.parseInt(split[1]);
         int y = Integer.parseInt(split[2]);
+        return getTile(z, x, y);
+    }
 
-        int[] tmsTileXY = googleTile2TmsTile(x, y, z);
+    /**
+     * Get the encoded image of a tile.
+     * 
+     * <p>Tiles are kept in a memory bounded LRU cache and concurrent requests
+     * of the same tile share a single database read.</p>
+     * 
+     * @param z the zoom level.
+     * @param x the google tile x.
+     * @param y the google tile y.
+     * @return the image bytes or <code>null</code> if the tile is not available.
+     */
+    public byte[] getTile( final int z, final int x, final int y ) {
+        Long key = ((long) z << 58) | ((long) x << 29) | y;
+        FutureTask<byte[]> read;
+        boolean isReader = false;
+        synchronized (tilesCache) {
+            byte[] tileBytes = tilesCache.get(key);
+            if (tileBytes != null) {
+                return tileBytes == NO_TILE ? null : tileBytes;
+            }
+            read = pendingTiles.get(key);
+            if (read == null) {
+                read = new FutureTask<byte[]>(new Callable<byte[]>(){
+                    public byte[] call() throws java.lang.Exception {
+                        int tmsY = (1 << z) - 1 - y;
+                        return getDb().getTile(z, x, tmsY);
+                    }
+                });
+                pendingTiles.put(key, read);
+                isReader = true;
+            }
+        }
 
-        byte[] tileAsBytes = db.getTileAsBytes(String.valueOf(tmsTileXY[0]), String.valueOf(tmsTileXY[1]), split[0]);
-        return tileAsBytes;
+        if (isReader) {
+            read.run();
+        }
+        byte[] tileBytes = null;
+        boolean failed = false;
+        try {
+            tileBytes = read.get();
+        } catch (InterruptedException e) {
+            // only waiters can get here, the reader ran the read itself
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            failed = true;
+        }
+        if (isReader) {
+            synchronized (tilesCache) {
+                pendingTiles.remove(key);
+                // failed reads are not cached, missing tiles are
+                if (!failed) {
+                    putTile(key, tileBytes == null ? NO_TILE : tileBytes);
+                }
+            }
+        }
+        return tileBytes;
+    }
+
+    private void putTile( Long key, byte[] tileBytes ) {
+        byte[] old = tilesCache.put(key, tileBytes);
+        if (old != null) {
+            tilesCacheBytes -= old.length + TILE_OVERHEAD_BYTES;
+        }
+        tilesCacheBytes += tileBytes.length + TILE_OVERHEAD_BYTES;
+        Iterator<byte[]> iterator = tilesCache.values().iterator();
+        while( tilesCacheBytes > maxTilesCacheBytes && iterator.hasNext() ) {
+            tilesCacheBytes -= iterator.next().length + TILE_OVERHEAD_BYTES;
+            iterator.remove();
+        }
     }
 
     /**
@@ -128,9 +229,15 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
         return new int[]{tx, (int) ((Math.pow(2, zoom) - 1) - ty)};
     }
 
-    public void close() throws Exception {
-        if (db != null) {
+    public synchronized void close() throws Exception {
+        synchronized (tilesCache) {
+            tilesCache.clear();
+            tilesCacheBytes = 0;
+        }
+        if (isOpen) {
             db.close();
+            // reopened on the next query
+            isOpen = false;
         }
     }
 
@@ -0,0 +1,276 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import jsqlite.Database;
+import jsqlite.Exception;
+import jsqlite.Stmt;
+
+/**
+ * The connections to a single spatialite file.
+ *
+ * <p>There is one read-write connection, to be used for metadata and style
+ * updates, and a small pool of read-only connections, lent to the rendering
+ * and to the queries, so that they don't serialize on a single native handle.</p>
+ *
+ * <p>While the pool is open, the database is switched to WAL journal mode, so that
+ * readers don't block each other nor the writer. Since the files are often shared with
+ * desktop tools, the original journal mode is restored when the last connection is
+ * closed. If the app is killed before that, the file is left in WAL mode, which any
+ * sqlite from 3.7.0 on reads fine.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialiteConnectionPool {
+    /**
+     * The max number of read-only connections per file.
+     */
+    public static final int MAX_READ_CONNECTIONS = 3;
+
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+    /**
+     * Page cache per connection, in KiB (negative in the pragma).
+     */
+    private static final int CACHE_SIZE_KIB = 2048;
+    private static final long MMAP_SIZE_BYTES = 16L * 1024L * 1024L;
+
+    /**
+     * A pooled read-only connection, with its cache of prepared statements.
+     */
+    public class ReadConnection {
+        private final Database db;
+        private final HashMap<String, Stmt> stmts = new HashMap<String, Stmt>();
+
+        private ReadConnection( Database db ) {
+            this.db = db;
+        }
+
+        /**
+         * @return the connection's database.
+         */
+        public Database getDatabase() {
+            return db;
+        }
+
+        /**
+         * Get a statement cached on this connection.
+         *
+         * @param key the key of the statement.
+         * @return the statement or <code>null</code>, if not prepared yet.
+         */
+        public Stmt getCachedStmt( String key ) {
+            return stmts.get(key);
+        }
+
+        /**
+         * Prepare a statement on this connection and cache it.
+         *
+         * <p>Cached statements are closed with the connection, users just reset them.</p>
+         *
+         * @param key the key of the statement.
+         * @param query the query to prepare.
+         * @return the statement.
+         * @throws Exception
+         */
+        public Stmt prepareCachedStmt( String key, String query ) throws Exception {
+            Stmt stmt = db.prepare(query);
+            stmts.put(key, stmt);
+            return stmt;
+        }
+
+        /**
+         * Give the connection back to the pool.
+         */
+        public void release() {
+            releaseReadConnection(this);
+        }
+
+        private void close() {
+            try {
+                for( Stmt stmt : stmts.values() ) {
+                    stmt.close();
+                }
+                stmts.clear();
+                db.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final String path;
+    private final Database writeDb;
+    private final LinkedList<ReadConnection> idleReaders = new LinkedList<ReadConnection>();
+    private final List<ReadConnection> allReaders = new ArrayList<ReadConnection>();
+    private int borrowedReaders = 0;
+    private boolean isClosed = false;
+    private String originalJournalMode;
+
+    /**
+     * Open the read-write connection of the file.
+     *
+     * <p>Read-only connections are opened lazily, when needed.</p>
+     *
+     * @param path the path to the spatialite file.
+     * @throws Exception
+     */
+    public SpatialiteConnectionPool( String path ) throws Exception {
+        this.path = path;
+        writeDb = new Database();
+        writeDb.open(path, jsqlite.Constants.SQLITE_OPEN_READWRITE | jsqlite.Constants.SQLITE_OPEN_CREATE);
+        writeDb.busy_timeout(BUSY_TIMEOUT_MILLIS);
+        try {
+            originalJournalMode = pragma(writeDb, "PRAGMA journal_mode;"); //$NON-NLS-1$
+            pragma(writeDb, "PRAGMA journal_mode=WAL;"); //$NON-NLS-1$
+        } catch (Exception e) {
+            // readers will just have to wait for the writer
+            e.printStackTrace();
+        }
+        tune(writeDb);
+    }
+
+    /**
+     * @return the read-write connection, to be used for metadata and updates.
+     */
+    public Database getWriteDatabase() {
+        return writeDb;
+    }
+
+    /**
+     * Borrow a read-only connection, waiting if they are all in use.
+     *
+     * <p>The connection has to be given back through {@link ReadConnection#release()}.</p>
+     *
+     * @return the connection.
+     * @throws Exception if the pool is closed or the connection can't be opened.
+     */
+    public synchronized ReadConnection acquireReadConnection() throws Exception {
+        while( !isClosed && idleReaders.isEmpty() && allReaders.size() >= MAX_READ_CONNECTIONS ) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Exception("Interrupted while waiting for a connection to " + path);
+            }
+        }
+        if (isClosed) {
+            throw new Exception("The connection pool of " + path + " is closed.");
+        }
+        if (!idleReaders.isEmpty()) {
+            borrowedReaders++;
+            return idleReaders.removeFirst();
+        }
+        Database db = new Database();
+        db.open(path, jsqlite.Constants.SQLITE_OPEN_READONLY);
+        db.busy_timeout(BUSY_TIMEOUT_MILLIS);
+        tune(db);
+        ReadConnection readConnection = new ReadConnection(db);
+        allReaders.add(readConnection);
+        borrowedReaders++;
+        return readConnection;
+    }
+
+    private synchronized void releaseReadConnection( ReadConnection readConnection ) {
+        borrowedReaders--;
+        if (isClosed) {
+            readConnection.close();
+            if (borrowedReaders == 0) {
+                closeWriteDatabase();
+            }
+            return;
+        }
+        idleReaders.addFirst(readConnection);
+        notifyAll();
+    }
+
+    /**
+     * Close all the connections.
+     *
+     * <p>Read connections still in use are closed as they are released, the
+     * read-write connection is closed with the last of them.</p>
+     *
+     * @throws Exception
+     */
+    public synchronized void close() throws Exception {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        for( ReadConnection readConnection : idleReaders ) {
+            readConnection.close();
+        }
+        idleReaders.clear();
+        allReaders.clear();
+        notifyAll();
+        if (borrowedReaders == 0) {
+            closeWriteDatabase();
+        }
+    }
+
+    /**
+     * Restore the original journal mode and close the read-write connection.
+     *
+     * <p>Leaving WAL mode needs all the other connections to be closed.</p>
+     */
+    private void closeWriteDatabase() {
+        try {
+            if (originalJournalMode != null && originalJournalMode.matches("[a-zA-Z]+") //$NON-NLS-1$
+                    && !originalJournalMode.equalsIgnoreCase("wal")) { //$NON-NLS-1$
+                pragma(writeDb, "PRAGMA journal_mode=" + originalJournalMode + ";"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        try {
+            writeDb.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void tune( Database db ) throws Exception {
+        pragma(db, "PRAGMA cache_size=-" + CACHE_SIZE_KIB + ";"); //$NON-NLS-1$
+        // ignored by sqlite versions without memory mapped io
+        pragma(db, "PRAGMA mmap_size=" + MMAP_SIZE_BYTES + ";"); //$NON-NLS-1$
+    }
+
+    /**
+     * Run a pragma.
+     *
+     * @param db the database.
+     * @param pragma the pragma.
+     * @return the first value returned by the pragma or <code>null</code>.
+     * @throws Exception
+     */
+    private static String pragma( Database db, String pragma ) throws Exception {
+        Stmt stmt = db.prepare(pragma);
+        try {
+            if (stmt.step()) {
+                return stmt.column_string(0);
+            }
+            return null;
+        } finally {
+            stmt.close();
+        }
+    }
+}
@@ -80,7 +80,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
 
     private final String PROPERTIESTABLE = "dataproperties";
 
-    private Database db;
+    private SpatialiteConnectionPool connectionPool;
 
     private HashMap<String, Paint> fillPaints = new HashMap<String, Paint>();
     private HashMap<String, Paint> strokePaints = new HashMap<String, Paint>();
@@ -88,20 +88,33 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     private List<SpatialVectorTable> vectorTableList;
     private List<SpatialRasterTable> rasterTableList;
     private String fileName;
+    private String filePath;
 
+    /**
+     * Create the handler.
+     * 
+     * <p>The database is opened lazily, on the first query.</p>
+     * 
+     * @param dbPath the path to the database file.
+     */
     public SpatialiteDatabaseHandler( String dbPath ) {
-        try {
-            File spatialDbFile = new File(dbPath);
-            if (!spatialDbFile.getParentFile().exists()) {
-                throw new RuntimeException();
-            }
-            db = new jsqlite.Database();
-            db.open(spatialDbFile.getAbsolutePath(), jsqlite.Constants.SQLITE_OPEN_READWRITE
-                    | jsqlite.Constants.SQLITE_OPEN_CREATE);
-            fileName = spatialDbFile.getName();
-        } catch (Exception e) {
-            e.printStackTrace();
+        File spatialDbFile = new File(dbPath);
+        if (!spatialDbFile.getParentFile().exists()) {
+            throw new RuntimeException();
+        }
+        filePath = spatialDbFile.getAbsolutePath();
+        fileName = spatialDbFile.getName();
+    }
+
+    private synchronized SpatialiteConnectionPool getConnectionPool() throws Exception {
+        if (connectionPool == null) {
+            connectionPool = new SpatialiteConnectionPool(filePath);
         }
+        return connectionPool;
+    }
+
+    private Database getDatabase() throws Exception {
+        return getConnectionPool().getWriteDatabase();
     }
 
     public String getFileName() {
@@ -115,7 +128,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
      * @throws Exception
      */
     public String getSpatialiteVersion() throws Exception {
-        Stmt stmt = db.prepare("SELECT spatialite_version();");
+        Stmt stmt = getDatabase().prepare("SELECT spatialite_version();");
         try {
             if (stmt.step()) {
                 String value = stmt.column_string(0);
@@ -134,7 +147,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
      * @throws Exception
      */
     public String getProj4Version() throws Exception {
-        Stmt stmt = db.prepare("SELECT proj4_version();");
+        Stmt stmt = getDatabase().prepare("SELECT proj4_version();");
         try {
             if (stmt.step()) {
                 String value = stmt.column_string(0);
@@ -153,7 +166,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
      * @throws Exception
      */
     public String getGeosVersion() throws Exception {
-        Stmt stmt = db.prepare("SELECT geos_version();");
+        Stmt stmt = getDatabase().prepare("SELECT geos_version();");
         try {
             if (stmt.step()) {
                 String value = stmt.column_string(0);
@@ -165,6 +178,12 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         return "-";
     }
 
+    @Override
+    public void setTables( List<SpatialVectorTable> vectorTables, List<SpatialRasterTable> rasterTables ) {
+        vectorTableList = vectorTables;
+        rasterTableList = rasterTables;
+    }
+
     @Override
     public List<SpatialVectorTable> getSpatialVectorTables( boolean forceRead ) throws Exception {
         if (vectorTableList == null || forceRead) {
@@ -187,7 +206,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             boolean is3 = true;
             Stmt stmt = null;
             try {
-                stmt = db.prepare(query3);
+                stmt = getDatabase().prepare(query3);
             } catch (java.lang.Exception e) {
                 // try with spatialite 4 syntax
                 StringBuilder sb4 = new StringBuilder();
@@ -203,7 +222,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
                 sb4.append(METADATA_TABLE_GEOMETRY_COLUMNS);
                 sb4.append(";");
                 String query4 = sb4.toString();
-                stmt = db.prepare(query4);
+                stmt = getDatabase().prepare(query4);
                 is3 = false;
             }
             try {
@@ -260,7 +279,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             sb.append(METADATA_TABLE_RASTER_COLUMNS);
             sb.append(";");
             String query = sb.toString();
-            Stmt stmt = db.prepare(query);
+            Stmt stmt = getDatabase().prepare(query);
             try {
                 while( stmt.step() ) {
                     String tableName = stmt.column_string(0);
@@ -317,7 +336,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
                 centerBuilder.append("';");
                 String centerQuery = centerBuilder.toString();
 
-                centerStmt = db.prepare(centerQuery);
+                centerStmt = getDatabase().prepare(centerQuery);
                 if (centerStmt.step()) {
                     // String geomBytes = centerStmt.column_string(0);
                     // System.out.println();
@@ -359,7 +378,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             zoomBuilder.append(tableName);
             zoomBuilder.append("';");
             String zoomQuery = zoomBuilder.toString();
-            zoomStmt = db.prepare(zoomQuery);
+            zoomStmt = getDatabase().prepare(zoomQuery);
             if (zoomStmt.step()) {
                 zoomLevels[0] = zoomStmt.column_int(0);
                 zoomLevels[1] = zoomStmt.column_int(1);
@@ -377,7 +396,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
      */
     private void checkPropertiesTable() throws Exception {
         String checkTableQuery = "SELECT name FROM sqlite_master WHERE type='table' AND name='" + PROPERTIESTABLE + "';";
-        Stmt stmt = db.prepare(checkTableQuery);
+        Stmt stmt = getDatabase().prepare(checkTableQuery);
         boolean tableExists = false;
         try {
             if (stmt.step()) {
@@ -409,7 +428,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             sb.append(DECIMATION).append(" REAL");
             sb.append(" );");
             String query = sb.toString();
-            db.exec(query, null);
+            getDatabase().exec(query, null);
 
             for( SpatialVectorTable spatialTable : vectorTableList ) {
                 StringBuilder sbIn = new StringBuilder();
@@ -437,7 +456,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
                 sbIn.append(" );");
 
                 String insertQuery = sbIn.toString();
-                db.exec(insertQuery, null);
+                getDatabase().exec(insertQuery, null);
             }
         }
     }
@@ -473,7 +492,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         sbSel.append(NAME).append(" ='").append(tableName).append("';");
 
         String selectQuery = sbSel.toString();
-        Stmt stmt = db.prepare(selectQuery);
+        Stmt stmt = getDatabase().prepare(selectQuery);
         try {
             if (stmt.step()) {
                 style.size = (float) stmt.column_double(0);
@@ -528,18 +547,23 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         qSb.append(";");
 
         String selectQuery = qSb.toString();
-        Stmt stmt = db.prepare(selectQuery);
+        SpatialiteConnectionPool.ReadConnection readConnection = getConnectionPool().acquireReadConnection();
         try {
-            if (stmt.step()) {
-                float w = (float) stmt.column_double(0);
-                float s = (float) stmt.column_double(1);
-                float e = (float) stmt.column_double(2);
-                float n = (float) stmt.column_double(3);
+            Stmt stmt = readConnection.getDatabase().prepare(selectQuery);
+            try {
+                if (stmt.step()) {
+                    float w = (float) stmt.column_double(0);
+                    float s = (float) stmt.column_double(1);
+                    float e = (float) stmt.column_double(2);
+                    float n = (float) stmt.column_double(3);
 
-                return new float[]{n, s, e, w};
+                    return new float[]{n, s, e, w};
+                }
+            } finally {
+                stmt.close();
             }
         } finally {
-            stmt.close();
+            readConnection.release();
         }
         return null;
     }
@@ -574,7 +598,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         sbIn.append("';");
 
         String updateQuery = sbIn.toString();
-        db.exec(updateQuery, null);
+        getDatabase().exec(updateQuery, null);
     }
 
     @Override
@@ -615,15 +639,19 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
 
     public List<byte[]> getWKBFromTableInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e, double w ) {
         List<byte[]> list = new ArrayList<byte[]>();
-        String query = buildGeometriesInBoundsQuery(destSrid, table, n, s, e, w);
         try {
-            Stmt stmt = db.prepare(query);
+            SpatialiteConnectionPool.ReadConnection readConnection = getConnectionPool().acquireReadConnection();
             try {
-                while( stmt.step() ) {
-                    list.add(stmt.column_bytes(0));
+                Stmt stmt = getBoundsStmt(readConnection, destSrid, table, n, s, e, w);
+                try {
+                    while( stmt.step() ) {
+                        list.add(stmt.column_bytes(0));
+                    }
+                } finally {
+                    stmt.reset();
                 }
             } finally {
-                stmt.close();
+                readConnection.release();
             }
             return list;
         } catch (Exception ex) {
@@ -635,14 +663,19 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     @Override
     public byte[] getRasterTile( String query ) {
         try {
-            Stmt stmt = db.prepare(query);
+            SpatialiteConnectionPool.ReadConnection readConnection = getConnectionPool().acquireReadConnection();
             try {
-                if (stmt.step()) {
-                    byte[] bytes = stmt.column_bytes(0);
-                    return bytes;
+                Stmt stmt = readConnection.getDatabase().prepare(query);
+                try {
+                    if (stmt.step()) {
+                        byte[] bytes = stmt.column_bytes(0);
+                        return bytes;
+                    }
+                } finally {
+                    stmt.close();
                 }
             } finally {
-                stmt.close();
+                readConnection.release();
             }
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -653,32 +686,75 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     @Override
     public GeometryIterator getGeometryIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
             double w ) {
-        String query = buildGeometriesInBoundsQuery(destSrid, table, n, s, e, w);
-        return new GeometryIterator(db, query);
+        SpatialiteConnectionPool.ReadConnection readConnection = null;
+        try {
+            readConnection = getConnectionPool().acquireReadConnection();
+            Stmt stmt = getBoundsStmt(readConnection, destSrid, table, n, s, e, w);
+            return new GeometryIterator(stmt, readConnection);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            if (readConnection != null)
+                readConnection.release();
+        }
+        return new GeometryIterator((Stmt) null, null);
     }
 
-    private String buildGeometriesInBoundsQuery( String destSrid, SpatialVectorTable table, double n, double s, double e, double w ) {
-        boolean doTransform = false;
-        if (!table.getSrid().equals(destSrid)) {
-            doTransform = true;
+    /**
+     * Get the cached bounds statement for a table, bound to the given bounds.
+     * 
+     * <p>The statement is compiled once per connection, table, geometry column and srid and reused on every
+     * redraw, so that sqlite doesn't need to parse and plan the query again.
+     * The caller has to reset the statement once done.</p>
+     * 
+     * @param readConnection the connection to query.
+     * @param destSrid the srid of the bounds and of the returned geometries.
+     * @param table the table to query.
+     * @param n north bound.
+     * @param s south bound.
+     * @param e east bound.
+     * @param w west bound.
+     * @return the bound statement, ready to be stepped.
+     * @throws Exception
+     */
+    private Stmt getBoundsStmt( SpatialiteConnectionPool.ReadConnection readConnection, String destSrid,
+            SpatialVectorTable table, double n, double s, double e, double w ) throws Exception {
+        // tables with many geometry columns have a layer per column
+        String key = table.getName() + "." + table.getGeomName() + "@" + destSrid; //$NON-NLS-1$ //$NON-NLS-2$
+        boolean doTransform = !table.getSrid().equals(destSrid);
+        Stmt stmt = readConnection.getCachedStmt(key);
+        if (stmt == null) {
+            stmt = readConnection.prepareCachedStmt(key, buildGeometriesInBoundsQuery(table, doTransform));
+        } else {
+            stmt.reset();
         }
+        stmt.bind(1, w);
+        stmt.bind(2, n);
+        stmt.bind(3, e);
+        stmt.bind(4, s);
+        if (doTransform) {
+            stmt.bind(5, Integer.parseInt(destSrid));
+            stmt.bind(6, Integer.parseInt(table.getSrid()));
+        }
+        return stmt;
+    }
 
+    /**
+     * Build the parametric bounds query for a table.
+     * 
+     * <p>Parameters are ?1=w, ?2=n, ?3=e, ?4=s and, if a transform is needed, 
+     * ?5=destination srid and ?6=table srid.</p>
+     * 
+     * @param table the table to query.
+     * @param doTransform if <code>true</code>, geometries and bounds are reprojected.
+     * @return the query.
+     */
+    private String buildGeometriesInBoundsQuery( SpatialVectorTable table, boolean doTransform ) {
         StringBuilder mbrSb = new StringBuilder();
         if (doTransform)
             mbrSb.append("ST_Transform(");
-        mbrSb.append("BuildMBR(");
-        mbrSb.append(w);
-        mbrSb.append(", ");
-        mbrSb.append(n);
-        mbrSb.append(", ");
-        mbrSb.append(e);
-        mbrSb.append(", ");
-        mbrSb.append(s);
+        mbrSb.append("BuildMBR(?1, ?2, ?3, ?4");
         if (doTransform) {
-            mbrSb.append(", ");
-            mbrSb.append(destSrid);
-            mbrSb.append("), ");
-            mbrSb.append(table.getSrid());
+            mbrSb.append(", ?5), ?6");
         }
         mbrSb.append(")");
         String mbr = mbrSb.toString();
@@ -689,21 +765,9 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             qSb.append("ST_Transform(");
         qSb.append(table.getGeomName());
         if (doTransform) {
-            qSb.append(", ");
-            qSb.append(destSrid);
-            qSb.append(")");
+            qSb.append(", ?5)");
         }
         qSb.append("))");
-        // qSb.append(", AsText(");
-        // if (doTransform)
-        // qSb.append("ST_Transform(");
-        // qSb.append(table.geomName);
-        // if (doTransform) {
-        // qSb.append(", ");
-        // qSb.append(destSrid);
-        // qSb.append(")");
-        // }
-        // qSb.append(")");
         qSb.append(" FROM ");
         qSb.append(table.getName());
         qSb.append(" WHERE ST_Intersects(");
@@ -723,9 +787,11 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         return q;
     }
 
-    public void close() throws Exception {
-        if (db != null) {
-            db.close();
+    public synchronized void close() throws Exception {
+        if (connectionPool != null) {
+            connectionPool.close();
+            // reopened on the next query
+            connectionPool = null;
         }
     }
 
@@ -812,23 +878,28 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             // Logger.i(this, query);
         }
 
-        Stmt stmt = db.prepare(query);
+        SpatialiteConnectionPool.ReadConnection readConnection = getConnectionPool().acquireReadConnection();
         try {
-            while( stmt.step() ) {
-                int column_count = stmt.column_count();
-                for( int i = 0; i < column_count; i++ ) {
-                    String cName = stmt.column_name(i);
-                    if (cName.equalsIgnoreCase(spatialTable.getGeomName())) {
-                        continue;
+            Stmt stmt = readConnection.getDatabase().prepare(query);
+            try {
+                while( stmt.step() ) {
+                    int column_count = stmt.column_count();
+                    for( int i = 0; i < column_count; i++ ) {
+                        String cName = stmt.column_name(i);
+                        if (cName.equalsIgnoreCase(spatialTable.getGeomName())) {
+                            continue;
+                        }
+
+                        String value = stmt.column_string(i);
+                        sb.append(indentStr).append(cName).append(": ").append(value).append("\n");
                     }
-
-                    String value = stmt.column_string(i);
-                    sb.append(indentStr).append(cName).append(": ").append(value).append("\n");
+                    sb.append("\n");
                 }
-                sb.append("\n");
+            } finally {
+                stmt.close();
             }
         } finally {
-            stmt.close();
+            readConnection.release();
         }
     }
 
@@ -877,23 +948,28 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         sbQ.append("));");
         String query = sbQ.toString();
 
-        Stmt stmt = db.prepare(query);
+        SpatialiteConnectionPool.ReadConnection readConnection = getConnectionPool().acquireReadConnection();
         try {
-            while( stmt.step() ) {
-                int column_count = stmt.column_count();
-                for( int i = 0; i < column_count; i++ ) {
-                    String cName = stmt.column_name(i);
-                    if (cName.equalsIgnoreCase(spatialTable.getGeomName())) {
-                        continue;
+            Stmt stmt = readConnection.getDatabase().prepare(query);
+            try {
+                while( stmt.step() ) {
+                    int column_count = stmt.column_count();
+                    for( int i = 0; i < column_count; i++ ) {
+                        String cName = stmt.column_name(i);
+                        if (cName.equalsIgnoreCase(spatialTable.getGeomName())) {
+                            continue;
+                        }
+
+                        String value = stmt.column_string(i);
+                        sb.append(indentStr).append(cName).append(": ").append(value).append("\n");
                     }
-
-                    String value = stmt.column_string(i);
-                    sb.append(indentStr).append(cName).append(": ").append(value).append("\n");
+                    sb.append("\n");
                 }
-                sb.append("\n");
+            } finally {
+                stmt.close();
             }
         } finally {
-            stmt.close();
+            readConnection.release();
         }
     }
 
@@ -14,6 +14,10 @@ import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesMetadata.
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesMetadata.MetadataValidator;
 
 public class MBTilesDroidSpitter {
+    /**
+     * Always the same sql, so that the compiled statement is reused by the connection's cache.
+     */
+    private static final String TILE_QUERY = "select tile_data from tiles where zoom_level=? and tile_column=? and tile_row=?";
     // private static final int VERSION_BDD = 1;
     // private MbTilesSQLite mbtilesdb;
 
@@ -72,6 +76,26 @@ public class MBTilesDroidSpitter {
         return bb;
     }
 
+    /**
+     * Get the encoded image of a tile.
+     * 
+     * @param z the zoom level.
+     * @param x the tile column.
+     * @param y the tms tile row.
+     * @return the image bytes or <code>null</code> if no tile matched.
+     */
+    public byte[] getTile( int z, int x, int y ) {
+        Cursor c = db.rawQuery(TILE_QUERY, new String[]{Integer.toString(z), Integer.toString(x), Integer.toString(y)});
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return c.getBlob(0);
+        } finally {
+            c.close();
+        }
+    }
+
     // Warning: you should have checked that those x y z are real integers
     /**
      * @return the bitmap of the tile or null if no tile matched the given parameters